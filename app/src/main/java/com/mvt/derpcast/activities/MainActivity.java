@@ -23,6 +23,7 @@ import android.widget.SeekBar;
 import android.widget.TabHost;
 import android.widget.TabWidget;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.connectsdk.device.ConnectableDevice;
 import com.connectsdk.device.ConnectableDeviceListener;
@@ -52,6 +53,8 @@ import java.util.TimerTask;
 
 public class MainActivity extends ActionBarActivity {
 
+    private static final int MAX_MEDIA_COUNT = 50;
+
     private ServiceConnection _serviceConnection;
     private CastService _castService;
     private ConnectableDevice _device;
@@ -59,6 +62,7 @@ public class MainActivity extends ActionBarActivity {
     private MediaAdapter _videoAdapter;
     private MediaAdapter _audioAdapter;
     private BroadcastReceiver _broadcastReceiver;
+    private MediaScraper _mediaScraper;
     private Timer _timer;
 
     private long _mediaDuration;
@@ -98,7 +102,13 @@ public class MainActivity extends ActionBarActivity {
 
     @Override
     protected void onDestroy() {
+        if (_mediaScraper != null) {
+            _mediaScraper.cancel();
+            _mediaScraper = null;
+        }
+
         if (_castService != null) {
+            _castService.setPlayStateListener(null);
             _castService = null;
             unbindService(_serviceConnection);
         }
@@ -262,11 +272,30 @@ public class MainActivity extends ActionBarActivity {
             }
         };
 
+        // Long press queues media to play after the playing media
+        AdapterView.OnItemLongClickListener mediaLongClickListener = new AdapterView.OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+                MediaAdapter mediaAdapter = (MediaAdapter)parent.getAdapter();
+                MediaInfo mediaInfo = mediaAdapter.getMediaInfo(position);
+
+                if (_castService == null || _castService.getPlayingMediaInfo() == null) {
+                    return false;
+                }
+
+                _castService.enqueue(mediaInfo);
+                Toast.makeText(MainActivity.this, getString(R.string.queued, mediaInfo.title), Toast.LENGTH_SHORT).show();
+                return true;
+            }
+        };
+
         _videoListView = (ListView)findViewById(R.id.video_list_view);
         _videoListView.setOnItemClickListener(mediaClickListener);
+        _videoListView.setOnItemLongClickListener(mediaLongClickListener);
 
         _audioListView = (ListView)findViewById(R.id.audio_list_view);
         _audioListView.setOnItemClickListener(mediaClickListener);
+        _audioListView.setOnItemLongClickListener(mediaLongClickListener);
 
         // Media buttons
         ImageButton playButton = (ImageButton) findViewById(R.id.play_button);
@@ -340,6 +369,31 @@ public class MainActivity extends ActionBarActivity {
                         error.printStackTrace();
                     }
                 });
+                _castService.setPlayStateListener(new MediaControl.PlayStateListener() {
+                    @Override
+                    public void onSuccess(final MediaControl.PlayStateStatus playState) {
+                        if (_device == null) {
+                            return;
+                        }
+
+                        if (playState == MediaControl.PlayStateStatus.Finished ||
+                                playState == MediaControl.PlayStateStatus.Idle ||
+                                playState == MediaControl.PlayStateStatus.Unknown) {
+                            // Queued media keeps the controls open
+                            if (_castService == null || !_castService.willPlayNext()) {
+                                stop();
+                            }
+                        }
+                        else if (!_mediaController.isShown()) {
+                            showMediaControls(_device.getMediaControl());
+                        }
+                    }
+
+                    @Override
+                    public void onError(ServiceCommandError error) {
+                        error.printStackTrace();
+                    }
+                });
 
                 _deviceAdapter = _castService.getDeviceAdapter();
                 _deviceAdapter.setDeviceAddedListener(new DeviceAddedListener() {
@@ -459,8 +513,13 @@ public class MainActivity extends ActionBarActivity {
             mediaFormats.put("mp4", "video/mp4");
             mediaFormats.put("webm", "video/webm");
 
-            MediaScraper mediaScraper = new MediaScraper(mediaFormats);
-            mediaScraper.scrape(MainActivity.this, pageUrl, 2, new MediaScraperListener() {
+            if (_mediaScraper != null) {
+                _mediaScraper.cancel();
+            }
+
+            _mediaScraper = new MediaScraper(mediaFormats);
+            _mediaScraper.setMaxMediaCount(MAX_MEDIA_COUNT);
+            _mediaScraper.scrape(MainActivity.this, pageUrl, 2, new MediaScraperListener() {
                 @Override
                 public void mediaFound(MediaInfo mediaInfo) {
                     if (mediaInfo.format.startsWith("video/")) {
@@ -470,6 +529,15 @@ public class MainActivity extends ActionBarActivity {
                     }
                 }
 
+                @Override
+                public void mediaUpdated(MediaInfo mediaInfo) {
+                    if (mediaInfo.format.startsWith("video/")) {
+                        _videoAdapter.updateMediaInfo(mediaInfo);
+                    } else if (mediaInfo.format.startsWith("audio/")) {
+                        _audioAdapter.updateMediaInfo(mediaInfo);
+                    }
+                }
+
                 @Override
                 public void finished(final int mediaFound) {
                     runOnUiThread(new Runnable() {
@@ -591,6 +659,10 @@ public class MainActivity extends ActionBarActivity {
         _durationTextView.setText(R.string.zero_time);
         _seekBar.setProgress(0);
 
+        if (_timer != null) {
+            _timer.cancel();
+        }
+
         if (_device.hasCapability(MediaControl.Position)) {
             _timer = new Timer();
             _timer.schedule(new TimerTask() {
@@ -607,26 +679,8 @@ public class MainActivity extends ActionBarActivity {
     private void connectDevice(ConnectableDevice device) {
         _device = device;
 
-        if (device.hasCapability(MediaControl.PlayState_Subscribe)) {
-            final MediaControl mediaControl = device.getMediaControl();
-            mediaControl.subscribePlayState(new MediaControl.PlayStateListener() {
-                @Override
-                public void onSuccess(final MediaControl.PlayStateStatus playState) {
-                    if (playState == MediaControl.PlayStateStatus.Finished ||
-                            playState == MediaControl.PlayStateStatus.Idle ||
-                            playState == MediaControl.PlayStateStatus.Unknown) {
-                        stop();
-                    }
-                    else if (!_mediaController.isShown()) {
-                        showMediaControls(mediaControl);
-                    }
-                }
-
-                @Override
-                public void onError(ServiceCommandError error) {
-                    error.printStackTrace();
-                }
-            });
+        if (_castService != null) {
+            _castService.subscribePlayState(device);
         }
 
         device.getListeners().clear();
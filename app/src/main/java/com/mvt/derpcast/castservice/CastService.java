@@ -14,18 +14,38 @@ import android.media.RemoteControlClient;
 import android.net.wifi.WifiManager;
 import android.os.IBinder;
 import android.support.v4.content.LocalBroadcastManager;
+import android.text.TextUtils;
 import android.view.KeyEvent;
 import android.widget.RemoteViews;
 
+import com.connectsdk.core.Util;
 import com.connectsdk.device.ConnectableDevice;
 import com.connectsdk.discovery.DiscoveryManager;
+import com.connectsdk.service.DLNAService;
+import com.connectsdk.service.capability.MediaControl;
 import com.connectsdk.service.capability.MediaPlayer;
+import com.connectsdk.service.capability.listeners.ResponseListener;
 import com.connectsdk.service.command.ServiceCommandError;
+import com.connectsdk.service.command.ServiceSubscription;
+import com.koushikdutta.ion.Ion;
 import com.mvt.derpcast.R;
 import com.mvt.derpcast.activities.MainActivity;
 import com.mvt.derpcast.device.DeviceAdapter;
 import com.mvt.derpcast.media.MediaAdapter;
 import com.mvt.derpcast.media.MediaInfo;
+import com.mvt.derpcast.proxy.StreamProxy;
+import com.mvt.derpcast.proxy.StreamStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class CastService extends IntentService {
 
@@ -41,10 +61,18 @@ public class CastService extends IntentService {
     private RemoteControlClient _remoteControlClient;
     private BroadcastReceiver _broadcastReceiver;
     private WifiManager.WifiLock _wifiLock;
+    private StreamProxy _streamProxy;
     private ConnectableDevice _device;
     private MediaInfo _mediaInfo;
     private MediaPlayer.MediaLaunchObject _mediaLaunchObject;
     private MediaPlayer.LaunchListener _launchListener;
+    private MediaControl.PlayStateListener _playStateListener;
+    private ServiceSubscription<MediaControl.PlayStateListener> _playStateSubscription;
+
+    // Media to play after the current media, and the head of it once announced to the renderer
+    private final List<MediaInfo> _queue = new ArrayList<MediaInfo>();
+    private MediaInfo _nextMediaInfo;
+    private String _nextMediaUrl;
 
     private DeviceAdapter _deviceAdapter;
     private MediaAdapter _videoAdapter;
@@ -52,6 +80,7 @@ public class CastService extends IntentService {
 
     private boolean _serviceStarted;
     private boolean _playing;
+    private boolean _launching;
     private String _title;
 
     public CastService() {
@@ -66,6 +95,7 @@ public class CastService extends IntentService {
 
             WifiManager wifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
             _wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL, "DerpCastWifiLock");
+            _streamProxy = new StreamProxy(new File(getCacheDir(), "stream"));
 
             _deviceAdapter = new DeviceAdapter(CastService.this);
             _videoAdapter = new MediaAdapter();
@@ -127,6 +157,8 @@ public class CastService extends IntentService {
     @Override
     public void onDestroy() {
         stop();
+        subscribePlayState(null);
+        _streamProxy.stop();
         DiscoveryManager.destroy();
         super.onDestroy();
     }
@@ -135,6 +167,43 @@ public class CastService extends IntentService {
         _launchListener = launchListener;
     }
 
+    public void setPlayStateListener(MediaControl.PlayStateListener playStateListener) {
+        _playStateListener = playStateListener;
+    }
+
+    /**
+     * Subscribes to the play state of the device, replacing the subscription to a previous
+     * device. Play states go to the queue first and are then passed on to the play state listener.
+     */
+    public void subscribePlayState(ConnectableDevice device) {
+        if (_playStateSubscription != null) {
+            _playStateSubscription.unsubscribe();
+            _playStateSubscription = null;
+        }
+
+        if (device == null || !device.hasCapability(MediaControl.PlayState_Subscribe)) {
+            return;
+        }
+
+        _playStateSubscription = device.getMediaControl().subscribePlayState(new MediaControl.PlayStateListener() {
+            @Override
+            public void onSuccess(MediaControl.PlayStateStatus playState) {
+                onPlayStateChanged(playState);
+
+                if (_playStateListener != null) {
+                    _playStateListener.onSuccess(playState);
+                }
+            }
+
+            @Override
+            public void onError(ServiceCommandError error) {
+                if (_playStateListener != null) {
+                    _playStateListener.onError(error);
+                }
+            }
+        });
+    }
+
     public void play(ConnectableDevice device, MediaInfo mediaInfo, String title) {
 
         if (device == null ||
@@ -145,23 +214,31 @@ public class CastService extends IntentService {
         }
 
         _playing = true;
+        _launching = true;
         _mediaInfo = mediaInfo;
+        _nextMediaInfo = null;
+        _nextMediaUrl = null;
+        _queue.remove(mediaInfo);
         _device = device;
         _title = title;
 
         String imageUrl = mediaInfo.format.startsWith("video/") ? MEDIA_VIDEO_ART_URL : MEDIA_LOGO_URL;
         MediaPlayer mediaPlayer = device.getMediaPlayer();
-        mediaPlayer.playMedia(mediaInfo.url, mediaInfo.format, title, mediaInfo.url, imageUrl, false, new MediaPlayer.LaunchListener() {
+        mediaPlayer.playMedia(getStreamUrl(mediaInfo), mediaInfo.format, title, mediaInfo.url, imageUrl, false, new MediaPlayer.LaunchListener() {
             @Override
             public void onSuccess(MediaPlayer.MediaLaunchObject mediaLaunchObject) {
+                _launching = false;
                 _mediaLaunchObject = mediaLaunchObject;
                 if (_launchListener != null) {
                     _launchListener.onSuccess(_mediaLaunchObject);
                 }
+
+                announceNextMedia();
             }
 
             @Override
             public void onError(ServiceCommandError error) {
+                _launching = false;
                 _mediaLaunchObject = null;
                 if (_launchListener != null) {
                     _launchListener.onError(error);
@@ -209,6 +286,168 @@ public class CastService extends IntentService {
         return _title;
     }
 
+    /**
+     * Throughput and stalls of the playing media since it was first played, or null when it
+     * is not streamed through the proxy.
+     */
+    public StreamStats getStreamStats() {
+        return _mediaInfo != null ? _streamProxy.getStats(_mediaInfo.url) : null;
+    }
+
+    /**
+     * Adds media to play when the current media and the media queued before it have ended.
+     */
+    public void enqueue(MediaInfo mediaInfo) {
+        if (mediaInfo == null || mediaInfo.equals(_mediaInfo) || _queue.contains(mediaInfo)) {
+            return;
+        }
+
+        _queue.add(mediaInfo);
+        announceNextMedia();
+    }
+
+    public List<MediaInfo> getQueue() {
+        return new ArrayList<MediaInfo>(_queue);
+    }
+
+    /**
+     * Whether a stop or end of the current media is followed by other media, so it should not
+     * close the media controls.
+     */
+    public boolean willPlayNext() {
+        return _launching || !_queue.isEmpty();
+    }
+
+    private void onPlayStateChanged(MediaControl.PlayStateStatus playState) {
+        if (_mediaInfo == null || _launching) {
+            return;
+        }
+
+        if (playState == MediaControl.PlayStateStatus.Finished) {
+            // The renderer did not take the announced media, or cannot take any: load the next one
+            if (!_queue.isEmpty()) {
+                MediaInfo nextMediaInfo = _queue.get(0);
+                play(_device, nextMediaInfo, nextMediaInfo.title);
+            }
+        }
+        else if (playState == MediaControl.PlayStateStatus.Playing ||
+                playState == MediaControl.PlayStateStatus.Buffering) {
+            DLNAService dlnaService = getNextMediaService();
+
+            if (dlnaService != null && _nextMediaInfo != null &&
+                    _nextMediaUrl.equals(dlnaService.getTransportURI())) {
+                // The renderer moved on to the announced media by itself
+                _mediaInfo = _nextMediaInfo;
+                _nextMediaInfo = null;
+                _nextMediaUrl = null;
+                _queue.remove(_mediaInfo);
+                _title = _mediaInfo.title;
+
+                Context context = getApplicationContext();
+                setLockScreenControls(context, _title);
+                startForeground(PLAY_NOTIFICATION, getNotification(context, _title));
+
+                if (_launchListener != null && _mediaLaunchObject != null) {
+                    _launchListener.onSuccess(_mediaLaunchObject);
+                }
+
+                announceNextMedia();
+            }
+        }
+    }
+
+    private void announceNextMedia() {
+        DLNAService dlnaService = getNextMediaService();
+        if (dlnaService == null || _launching || _queue.isEmpty() || _queue.get(0).equals(_nextMediaInfo)) {
+            return;
+        }
+
+        final MediaInfo nextMediaInfo = _queue.get(0);
+        _nextMediaInfo = nextMediaInfo;
+        _nextMediaUrl = getStreamUrl(nextMediaInfo);
+
+        dlnaService.setNextMedia(_nextMediaUrl, nextMediaInfo.format, nextMediaInfo.title, new ResponseListener<Object>() {
+            @Override
+            public void onSuccess(Object response) {
+            }
+
+            @Override
+            public void onError(ServiceCommandError error) {
+                // Played after the Finished state instead
+                if (nextMediaInfo.equals(_nextMediaInfo)) {
+                    _nextMediaInfo = null;
+                    _nextMediaUrl = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * URL the renderer gets the media from: the local stream proxy, which requests the media
+     * the way the page it was found on would, or the media URL itself when the proxy can't run.
+     */
+    private String getStreamUrl(MediaInfo mediaInfo) {
+        try {
+            InetAddress address = Util.getIpAddress(getApplicationContext());
+            if (address == null) {
+                // Not on wifi
+                return mediaInfo.url;
+            }
+
+            _streamProxy.start(address);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return mediaInfo.url;
+        }
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("User-Agent", System.getProperty("http.agent"));
+
+        if (mediaInfo.referrer != null) {
+            headers.put("Referer", mediaInfo.referrer);
+        }
+
+        // Cookies the site set while the media was scraped
+        try {
+            Map<String, List<String>> cookies = Ion.getDefault(getApplicationContext())
+                    .getCookieMiddleware()
+                    .getCookieManager()
+                    .get(new URI(mediaInfo.url), Collections.<String, List<String>>emptyMap());
+
+            List<String> cookie = cookies.get("Cookie");
+            if (cookie != null && !cookie.isEmpty()) {
+                headers.put("Cookie", TextUtils.join("; ", cookie));
+            }
+        }
+        catch (URISyntaxException e) {
+            e.printStackTrace();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return _streamProxy.getProxyUrl(mediaInfo.url, mediaInfo.format, headers);
+    }
+
+    /**
+     * DLNA renderers are told the next media ahead of time, so they can switch without a gap.
+     * Cast and AirPlay have no such request, those load the next media when the current one
+     * has finished.
+     */
+    private DLNAService getNextMediaService() {
+        if (_device == null) {
+            return null;
+        }
+
+        MediaPlayer mediaPlayer = _device.getMediaPlayer();
+        if (mediaPlayer instanceof DLNAService && ((DLNAService) mediaPlayer).hasCapability(MediaPlayer.Play_Next)) {
+            return (DLNAService) mediaPlayer;
+        }
+
+        return null;
+    }
+
     public void play() {
         if (_device != null && _device.getMediaControl() != null) {
             _device.getMediaControl().play(null);
@@ -238,8 +477,13 @@ public class CastService extends IntentService {
         }
 
         _playing = false;
+        _launching = false;
         _mediaInfo = null;
+        _nextMediaInfo = null;
+        _nextMediaUrl = null;
+        _queue.clear();
         _mediaLaunchObject = null;
+        _streamProxy.clear();
         _title = null;
 
         if (_wifiLock.isHeld()) {
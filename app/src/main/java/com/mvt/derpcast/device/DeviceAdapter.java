@@ -10,7 +10,7 @@ import android.widget.TextView;
 import com.connectsdk.device.ConnectableDevice;
 import com.connectsdk.discovery.CapabilityFilter;
 import com.connectsdk.discovery.DiscoveryManager;
-import com.connectsdk.discovery.DiscoveryManagerListener;
+import com.connectsdk.discovery.DiscoveryManagerBatchListener;
 import com.connectsdk.discovery.provider.CastDiscoveryProvider;
 import com.connectsdk.discovery.provider.SSDPDiscoveryProvider;
 import com.connectsdk.discovery.provider.ZeroconfDiscoveryProvider;
@@ -27,7 +27,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
 
-public class DeviceAdapter extends BaseAdapter implements DiscoveryManagerListener {
+public class DeviceAdapter extends BaseAdapter implements DiscoveryManagerBatchListener {
 
     private List<ConnectableDevice> _devices = new ArrayList<ConnectableDevice>();
     private DeviceAddedListener _deviceAddedListener;
@@ -39,7 +39,7 @@ public class DeviceAdapter extends BaseAdapter implements DiscoveryManagerListen
 
         DiscoveryManager.init(context);
         DiscoveryManager discoveryManager = DiscoveryManager.getInstance();
-        discoveryManager.addListener(DeviceAdapter.this);
+        discoveryManager.addBatchListener(DeviceAdapter.this);
         discoveryManager.setCapabilityFilters(new CapabilityFilter(MediaPlayer.Display_Video));
         discoveryManager.setPairingLevel(DiscoveryManager.PairingLevel.ON);
         discoveryManager.registerDeviceService(WebOSTVService.class, SSDPDiscoveryProvider.class);
@@ -88,43 +88,53 @@ public class DeviceAdapter extends BaseAdapter implements DiscoveryManagerListen
         View connectedImageView = view.findViewById(R.id.connected_image_view);
         connectedImageView.setVisibility(device.isConnected() ? View.VISIBLE : View.INVISIBLE);
 
+        // Devices remembered from an earlier session are dimmed until they are seen again
+        view.setAlpha(device.isProbable() ? 0.5f : 1f);
+
         return view;
     }
 
     @Override
-    public void onDeviceAdded(DiscoveryManager manager, ConnectableDevice device) {
+    public void onDevicesChanged(DiscoveryManager manager, List<ConnectableDevice> added, List<ConnectableDevice> updated, List<ConnectableDevice> removed) {
         synchronized (_syncRoot) {
-            String deviceId = device.getId();
+            for (ConnectableDevice device : removed) {
+                removeDevice(device);
+            }
 
-            for (ConnectableDevice addedDevice: _devices) {
-              if (deviceId.equals(addedDevice.getId())) return;
+            List<ConnectableDevice> newDevices = new ArrayList<ConnectableDevice>();
+            for (ConnectableDevice device : added) {
+                if (addDevice(device)) newDevices.add(device);
             }
 
-            _devices.add(device);
+            // One redraw for the whole batch, updated devices only need to be drawn again
             notifyDataSetChanged();
 
-            if (_deviceAddedListener != null)
-                _deviceAddedListener.onDeviceAdded(device);
+            if (_deviceAddedListener != null) {
+                for (ConnectableDevice device : newDevices) {
+                    _deviceAddedListener.onDeviceAdded(device);
+                }
+            }
         }
     }
 
-    @Override
-    public void onDeviceUpdated(DiscoveryManager manager, ConnectableDevice device) {
-        notifyDataSetChanged();
+    private boolean addDevice(ConnectableDevice device) {
+        String deviceId = device.getId();
+
+        for (ConnectableDevice addedDevice: _devices) {
+            if (deviceId.equals(addedDevice.getId())) return false;
+        }
+
+        _devices.add(device);
+        return true;
     }
 
-    @Override
-    public void onDeviceRemoved(DiscoveryManager manager, ConnectableDevice device) {
-        synchronized (_syncRoot) {
-            String deviceId = device.getId();
-
-            ListIterator<ConnectableDevice> iterator = _devices.listIterator();
-            while (iterator.hasNext()) {
-                ConnectableDevice currentDevice = iterator.next();
-                if (deviceId.equals(currentDevice.getId())) {
-                    _devices.remove(currentDevice);
-                    notifyDataSetChanged();
-                }
+    private void removeDevice(ConnectableDevice device) {
+        String deviceId = device.getId();
+
+        ListIterator<ConnectableDevice> iterator = _devices.listIterator();
+        while (iterator.hasNext()) {
+            if (deviceId.equals(iterator.next().getId())) {
+                iterator.remove();
             }
         }
     }
@@ -0,0 +1,130 @@
+package com.mvt.derpcast.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Aho-Corasick automaton that finds any number of ASCII keywords in a single pass over the input,
+ * one state transition per character. Matching is case insensitive.
+ */
+public class KeywordMatcher {
+
+    private static final int ALPHABET_SIZE = 128;
+
+    private final int[][] _transitions;
+    private final int[] _tags;
+    private final int[] _matchLengths;
+
+    /**
+     * @param keywords Keywords mapped to tag bits that are reported when the keyword is found
+     */
+    public KeywordMatcher(Map<String, Integer> keywords) {
+        List<int[]> transitions = new ArrayList<int[]>();
+        List<Integer> tags = new ArrayList<Integer>();
+        List<Integer> matchLengths = new ArrayList<Integer>();
+        transitions.add(newState());
+        tags.add(0);
+        matchLengths.add(Integer.MAX_VALUE);
+
+        // Build the keyword trie
+        for (Map.Entry<String, Integer> keyword : keywords.entrySet()) {
+            String text = keyword.getKey().toLowerCase();
+            int state = 0;
+
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c >= ALPHABET_SIZE) {
+                    throw new IllegalArgumentException("Keyword is not ASCII: " + text);
+                }
+
+                if (transitions.get(state)[c] == -1) {
+                    transitions.get(state)[c] = transitions.size();
+                    transitions.add(newState());
+                    tags.add(0);
+                    matchLengths.add(Integer.MAX_VALUE);
+                }
+
+                state = transitions.get(state)[c];
+            }
+
+            tags.set(state, tags.get(state) | keyword.getValue());
+            matchLengths.set(state, Math.min(matchLengths.get(state), text.length()));
+        }
+
+        // Turn the trie into a complete automaton, breadth first so fallback states are resolved before use
+        int stateCount = transitions.size();
+        int[] fallbacks = new int[stateCount];
+        Queue<Integer> queue = new LinkedList<Integer>();
+
+        int[] root = transitions.get(0);
+        for (int c = 0; c < ALPHABET_SIZE; c++) {
+            if (root[c] == -1) {
+                root[c] = 0;
+            }
+            else {
+                fallbacks[root[c]] = 0;
+                queue.add(root[c]);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            int fallback = fallbacks[state];
+            tags.set(state, tags.get(state) | tags.get(fallback));
+            matchLengths.set(state, Math.min(matchLengths.get(state), matchLengths.get(fallback)));
+
+            int[] stateTransitions = transitions.get(state);
+            int[] fallbackTransitions = transitions.get(fallback);
+            for (int c = 0; c < ALPHABET_SIZE; c++) {
+                if (stateTransitions[c] == -1) {
+                    stateTransitions[c] = fallbackTransitions[c];
+                }
+                else {
+                    fallbacks[stateTransitions[c]] = fallbackTransitions[c];
+                    queue.add(stateTransitions[c]);
+                }
+            }
+        }
+
+        _transitions = transitions.toArray(new int[stateCount][]);
+        _tags = new int[stateCount];
+        _matchLengths = new int[stateCount];
+        for (int state = 0; state < stateCount; state++) {
+            _tags[state] = tags.get(state);
+            _matchLengths[state] = matchLengths.get(state);
+        }
+    }
+
+    public int getInitialState() {
+        return 0;
+    }
+
+    public int getNextState(int state, char c) {
+        c = Character.toLowerCase(c);
+        return c < ALPHABET_SIZE ? _transitions[state][c] : 0;
+    }
+
+    /**
+     * @return Tag bits of all keywords that end in the given state
+     */
+    public int getTags(int state) {
+        return _tags[state];
+    }
+
+    /**
+     * @return Length of the shortest keyword that ends in the given state
+     */
+    public int getMatchLength(int state) {
+        return _matchLengths[state];
+    }
+
+    private static int[] newState() {
+        int[] transitions = new int[ALPHABET_SIZE];
+        Arrays.fill(transitions, -1);
+        return transitions;
+    }
+}
@@ -1,5 +1,7 @@
 package com.mvt.derpcast.helpers;
 
+import android.util.LruCache;
+
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -7,11 +9,35 @@ import java.util.regex.Pattern;
 
 public class RegexHelper {
 
+    private static final int MAX_CACHED_PATTERNS = 32;
+    private static final LruCache<String, Pattern> _patternCache = new LruCache<String, Pattern>(MAX_CACHED_PATTERNS);
+
+    public static Pattern getPattern(String pattern) {
+        return getPattern(pattern, Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * Returns a compiled pattern, reusing a previously compiled one for the same pattern and flags.
+     */
+    public static Pattern getPattern(String pattern, int flags) {
+        String key = flags + ":" + pattern;
+        Pattern compiledPattern = _patternCache.get(key);
+
+        if (compiledPattern == null) {
+            compiledPattern = Pattern.compile(pattern, flags);
+            _patternCache.put(key, compiledPattern);
+        }
+
+        return compiledPattern;
+    }
+
     public static List<String> getMatches(String pattern, String text) {
+        return getMatches(getPattern(pattern), text);
+    }
+
+    public static List<String> getMatches(Pattern pattern, CharSequence text) {
         List<String> matches = new ArrayList<String>();
-        Matcher matcher = Pattern
-                .compile(pattern, Pattern.CASE_INSENSITIVE)
-                .matcher(text);
+        Matcher matcher = pattern.matcher(text);
 
         while (matcher.find()) {
             matches.add(matcher.group(1));
@@ -21,13 +47,11 @@ public class RegexHelper {
     }
 
     public static String getFirstMatch(String pattern, String text) {
-        String match = null;
-
-        List<String> matches = getMatches(pattern, text);
-        if (matches.size() > 0) {
-            match = matches.get(0);
-        }
+        return getFirstMatch(getPattern(pattern), text);
+    }
 
-        return match;
+    public static String getFirstMatch(Pattern pattern, CharSequence text) {
+        Matcher matcher = pattern.matcher(text);
+        return matcher.find() ? matcher.group(1) : null;
     }
 }
@@ -0,0 +1,106 @@
+package com.mvt.derpcast.media;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks the pages of a scrape per iframe depth. Every URL is visited at most once,
+ * and a depth counts as done when all of its pages have finished.
+ */
+public class CrawlFrontier {
+
+    private final Set<String> _visitedUrls = new HashSet<String>();
+    private final Map<Integer, List<String>> _queuedUrls = new HashMap<Integer, List<String>>();
+    private final Map<Integer, Integer> _activePageCounts = new HashMap<Integer, Integer>();
+
+    /**
+     * @return False when the URL was added before
+     */
+    public synchronized boolean add(String url, int depth) {
+        if (!_visitedUrls.add(normalizeUrl(url))) {
+            return false;
+        }
+
+        List<String> urls = _queuedUrls.get(depth);
+        if (urls == null) {
+            urls = new ArrayList<String>();
+            _queuedUrls.put(depth, urls);
+        }
+
+        urls.add(url);
+        return true;
+    }
+
+    /**
+     * Removes and returns all URLs queued for a depth.
+     */
+    public synchronized List<String> take(int depth) {
+        List<String> urls = _queuedUrls.remove(depth);
+        return urls != null ? urls : new ArrayList<String>();
+    }
+
+    public synchronized void pageStarted(int depth) {
+        Integer count = _activePageCounts.get(depth);
+        _activePageCounts.put(depth, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * @return Whether this was the last active page at its depth
+     */
+    public synchronized boolean pageFinished(int depth) {
+        Integer count = _activePageCounts.get(depth);
+        if (count == null) {
+            return false;
+        }
+
+        if (count > 1) {
+            _activePageCounts.put(depth, count - 1);
+            return false;
+        }
+
+        _activePageCounts.remove(depth);
+        return true;
+    }
+
+    /**
+     * Returns a key under which equivalent URLs compare equal: lower case scheme and host,
+     * no default port and no fragment.
+     */
+    public static String normalizeUrl(String url) {
+        try {
+            URL parsedUrl = new URL(url.trim());
+            String protocol = parsedUrl.getProtocol().toLowerCase(Locale.US);
+            String host = parsedUrl.getHost().toLowerCase(Locale.US);
+            int port = parsedUrl.getPort() != parsedUrl.getDefaultPort() ? parsedUrl.getPort() : -1;
+            String path = parsedUrl.getPath().length() > 0 ? parsedUrl.getPath() : "/";
+            String query = parsedUrl.getQuery();
+
+            StringBuilder normalizedUrl = new StringBuilder()
+                .append(protocol)
+                .append("://")
+                .append(host);
+
+            if (port != -1) {
+                normalizedUrl.append(':').append(port);
+            }
+
+            normalizedUrl.append(path);
+
+            if (query != null) {
+                normalizedUrl.append('?').append(query);
+            }
+
+            return normalizedUrl.toString();
+        }
+        catch (MalformedURLException e) {
+            return url;
+        }
+    }
+}
@@ -26,6 +26,18 @@ public class MediaAdapter extends BaseAdapter {
         }
     }
 
+    /**
+     * Replaces the media with the same URL, if listed.
+     */
+    public synchronized void updateMediaInfo(MediaInfo mediaInfo) {
+        int index = _mediaInfos.indexOf(mediaInfo);
+        if (index >= 0) {
+            _mediaInfos.set(index, mediaInfo);
+            Collections.sort(_mediaInfos);
+            notifyDataSetChanged();
+        }
+    }
+
     public void setPlayingMediaInfo(MediaInfo mediaInfo) {
         _playingMediaInfo = mediaInfo;
         notifyDataSetChanged();
@@ -73,7 +85,18 @@ public class MediaAdapter extends BaseAdapter {
         TextView sizeTextView = (TextView) view.findViewById(R.id.size_text_view);
 
         int megaBytes = (int)Math.ceil(mediaInfo.size / 1048576d);
-        sizeTextView.setText(megaBytes + "MB");
+        StringBuilder details = new StringBuilder().append(megaBytes).append("MB");
+        if (mediaInfo.duration > 0) {
+            long seconds = mediaInfo.duration / 1000;
+            details.append("  ").append(String.format("%d:%02d", seconds / 60, seconds % 60));
+        }
+        if (mediaInfo.height > 0) {
+            details.append("  ").append(mediaInfo.height).append('p');
+        }
+        if (mediaInfo.bitrate > 0) {
+            details.append("  ").append(mediaInfo.bitrate / 1000).append("kbps");
+        }
+        sizeTextView.setText(details);
 
         View playingImageView = view.findViewById(R.id.playing_image_view);
         playingImageView.setVisibility(mediaInfo.equals(_playingMediaInfo) ? View.VISIBLE : View.INVISIBLE);
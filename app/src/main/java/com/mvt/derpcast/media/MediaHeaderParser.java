@@ -0,0 +1,563 @@
+package com.mvt.derpcast.media;
+
+/**
+ * Reads duration, resolution, codec and bitrate from the headers of a media file.
+ * The file is read in a few ranges; after each call to {@link #parse(byte[], int)} the parser
+ * tells which range it needs next, if any.
+ */
+public class MediaHeaderParser {
+
+    private static final int RANGE_LENGTH = 65536;
+    private static final int MAX_MOOV_LENGTH = 1048576;
+
+    private static final int[] MP3_BITRATES_V1 = { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 };
+    private static final int[] MP3_BITRATES_V2 = { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 };
+    private static final int[] MP3_SAMPLE_RATES = { 44100, 48000, 32000 };
+    private static final int[] AAC_SAMPLE_RATES = { 96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350 };
+
+    private static final int EBML_HEADER = 0x1A45DFA3;
+    private static final int EBML_SEGMENT = 0x18538067;
+    private static final int EBML_INFO = 0x1549A966;
+    private static final int EBML_TIMECODE_SCALE = 0x2AD7B1;
+    private static final int EBML_DURATION = 0x4489;
+    private static final int EBML_TRACKS = 0x1654AE6B;
+    private static final int EBML_TRACK_ENTRY = 0xAE;
+    private static final int EBML_TRACK_TYPE = 0x83;
+    private static final int EBML_CODEC_ID = 0x86;
+    private static final int EBML_VIDEO = 0xE0;
+    private static final int EBML_PIXEL_WIDTH = 0xB0;
+    private static final int EBML_PIXEL_HEIGHT = 0xBA;
+    private static final int EBML_CLUSTER = 0x1F43B675;
+
+    private final String _extension;
+    private final MediaInfoCache.Entry _entry;
+    private long _nextOffset = 0;
+    private int _nextLength = RANGE_LENGTH;
+
+    private int _oggSampleRate;
+    private int _oggPreSkip;
+    private long _oggSerial;
+
+    // Position within the current data while parsing EBML
+    private int _position;
+
+    public MediaHeaderParser(String extension, MediaInfoCache.Entry entry) {
+        _extension = extension;
+        _entry = entry;
+    }
+
+    /**
+     * @return File offset of the next range to read, or -1 when parsing is done
+     */
+    public long getNextOffset() {
+        return _nextOffset;
+    }
+
+    public int getNextLength() {
+        return _nextLength;
+    }
+
+    /**
+     * Parses a range that was read from the offset returned by {@link #getNextOffset()}.
+     */
+    public void parse(byte[] data, int length) {
+        long offset = _nextOffset;
+        int requestedLength = _nextLength;
+        _nextOffset = -1;
+        _nextLength = RANGE_LENGTH;
+
+        try {
+            if ("mp4".equals(_extension) || "m4a".equals(_extension) || "m4v".equals(_extension)) {
+                parseMp4(data, length, offset, requestedLength);
+            }
+            else if ("webm".equals(_extension) || "mkv".equals(_extension)) {
+                parseWebm(data, length);
+            }
+            else if ("mp3".equals(_extension)) {
+                parseMp3(data, length, offset);
+            }
+            else if ("ogg".equals(_extension)) {
+                parseOgg(data, length, offset);
+            }
+            else if ("aac".equals(_extension)) {
+                parseAac(data, length);
+            }
+        }
+        catch (IndexOutOfBoundsException e) {
+            // Truncated header, keep whatever was found so far
+        }
+        catch (IllegalArgumentException e) {
+            // Malformed header, keep whatever was found so far
+        }
+
+        if (_entry.bitrate == 0 && _entry.duration > 0 && _entry.size > 0) {
+            _entry.bitrate = (int)(_entry.size * 8000 / _entry.duration);
+        }
+    }
+
+    // MP4: walk the top level boxes until moov is found, which may be behind mdat at the end of the file
+    private void parseMp4(byte[] data, int length, long offset, int requestedLength) {
+        int position = 0;
+
+        while (position + 8 <= length) {
+            long size = readUInt32(data, position);
+            String type = new String(data, position + 4, 4);
+            int headerSize = 8;
+
+            if (size == 1) {
+                size = readUInt64(data, position + 8);
+                headerSize = 16;
+            }
+            else if (size == 0) {
+                size = _entry.size > 0 ? _entry.size - offset - position : length - position;
+            }
+
+            if (size < headerSize) {
+                return;
+            }
+
+            if ("moov".equals(type)) {
+                if (position + size <= length) {
+                    parseMoov(data, position + headerSize, (int)(position + size));
+                }
+                else if ((position > 0 || requestedLength < size) && size <= MAX_MOOV_LENGTH) {
+                    _nextOffset = offset + position;
+                    _nextLength = (int)size;
+                }
+                else {
+                    // Too large, or the server returned less than asked for, so parse what's there
+                    parseMoov(data, position + headerSize, length);
+                }
+                return;
+            }
+
+            if (position + size > length) {
+                long nextBoxOffset = offset + position + size;
+                if (_entry.size == 0 || nextBoxOffset < _entry.size) {
+                    _nextOffset = nextBoxOffset;
+                }
+                return;
+            }
+
+            position += size;
+        }
+    }
+
+    private void parseMoov(byte[] data, int start, int end) {
+        end = Math.min(end, data.length);
+        String videoCodec = null;
+        String audioCodec = null;
+
+        int[] mvhd = findBox(data, start, end, "mvhd");
+        if (mvhd != null) {
+            int content = mvhd[0];
+            long timescale;
+            long duration;
+            if (data[content] == 1) {
+                timescale = readUInt32(data, content + 20);
+                duration = readUInt64(data, content + 24);
+            }
+            else {
+                timescale = readUInt32(data, content + 12);
+                duration = readUInt32(data, content + 16);
+            }
+
+            if (timescale > 0) {
+                _entry.duration = duration * 1000 / timescale;
+            }
+        }
+
+        int position = start;
+        int[] trak;
+        while ((trak = findBox(data, position, end, "trak")) != null) {
+            position = trak[1];
+
+            int[] hdlr = findBox(data, trak[0], trak[1], "mdia", "hdlr");
+            int[] stsd = findBox(data, trak[0], trak[1], "mdia", "minf", "stbl", "stsd");
+            if (hdlr == null || stsd == null) {
+                continue;
+            }
+
+            String handler = new String(data, hdlr[0] + 8, 4);
+            String codec = new String(data, stsd[0] + 12, 4).trim();
+
+            if ("vide".equals(handler) && videoCodec == null) {
+                videoCodec = codec;
+
+                int[] tkhd = findBox(data, trak[0], trak[1], "tkhd");
+                if (tkhd != null) {
+                    int dimensions = tkhd[0] + (data[tkhd[0]] == 1 ? 88 : 76);
+                    _entry.width = (int)(readUInt32(data, dimensions) >> 16);
+                    _entry.height = (int)(readUInt32(data, dimensions + 4) >> 16);
+                }
+            }
+            else if ("soun".equals(handler) && audioCodec == null) {
+                audioCodec = codec;
+            }
+        }
+
+        _entry.codec = joinCodecs(videoCodec, audioCodec);
+    }
+
+    /**
+     * Finds a box by its path below the given range.
+     * @return Start of the box content and end of the box, or null
+     */
+    private int[] findBox(byte[] data, int start, int end, String... path) {
+        int[] box = null;
+
+        for (String type : path) {
+            box = null;
+            int position = start;
+
+            while (position + 8 <= end) {
+                long size = readUInt32(data, position);
+                if (size < 8 || position + size > end) {
+                    return null;
+                }
+
+                if (type.equals(new String(data, position + 4, 4))) {
+                    box = new int[] { position + 8, (int)(position + size) };
+                    break;
+                }
+
+                position += size;
+            }
+
+            if (box == null) {
+                return null;
+            }
+
+            start = box[0];
+            end = box[1];
+        }
+
+        return box;
+    }
+
+    // WebM: EBML header, then Info and Tracks at the start of the Segment
+    private void parseWebm(byte[] data, int length) {
+        _position = 0;
+        if (readEbmlId(data) != EBML_HEADER) {
+            return;
+        }
+        long headerSize = readEbmlSize(data);
+        _position += headerSize;
+
+        if (readEbmlId(data) != EBML_SEGMENT) {
+            return;
+        }
+        long segmentSize = readEbmlSize(data);
+        int segmentEnd = segmentSize < 0 ? length : (int)Math.min(length, _position + segmentSize);
+
+        long timecodeScale = 1000000;
+        double duration = 0;
+        String videoCodec = null;
+        String audioCodec = null;
+
+        while (_position < segmentEnd) {
+            int id = readEbmlId(data);
+            long size = readEbmlSize(data);
+            if (size < 0 || id == EBML_CLUSTER) {
+                break;
+            }
+
+            int end = (int)Math.min(segmentEnd, _position + size);
+
+            if (id == EBML_INFO) {
+                while (_position < end) {
+                    int childId = readEbmlId(data);
+                    int childSize = readEbmlChildSize(data);
+
+                    if (childId == EBML_TIMECODE_SCALE) {
+                        timecodeScale = readUInt(data, _position, childSize);
+                    }
+                    else if (childId == EBML_DURATION) {
+                        duration = childSize == 4
+                                ? Float.intBitsToFloat((int)readUInt32(data, _position))
+                                : Double.longBitsToDouble(readUInt64(data, _position));
+                    }
+                    _position += childSize;
+                }
+            }
+            else if (id == EBML_TRACKS) {
+                while (_position < end) {
+                    int entryId = readEbmlId(data);
+                    int entrySize = readEbmlChildSize(data);
+                    int entryEnd = Math.min(end, _position + entrySize);
+                    if (entryId != EBML_TRACK_ENTRY) {
+                        _position = entryEnd;
+                        continue;
+                    }
+
+                    long trackType = 0;
+                    String codec = null;
+                    while (_position < entryEnd) {
+                        int childId = readEbmlId(data);
+                        int childSize = readEbmlChildSize(data);
+                        int childEnd = _position + childSize;
+
+                        if (childId == EBML_TRACK_TYPE) {
+                            trackType = readUInt(data, _position, childSize);
+                        }
+                        else if (childId == EBML_CODEC_ID) {
+                            codec = new String(data, _position, childSize).trim();
+                        }
+                        else if (childId == EBML_VIDEO) {
+                            while (_position < childEnd) {
+                                int videoId = readEbmlId(data);
+                                int videoSize = readEbmlChildSize(data);
+                                if (videoId == EBML_PIXEL_WIDTH) {
+                                    _entry.width = (int)readUInt(data, _position, videoSize);
+                                }
+                                else if (videoId == EBML_PIXEL_HEIGHT) {
+                                    _entry.height = (int)readUInt(data, _position, videoSize);
+                                }
+                                _position += videoSize;
+                            }
+                        }
+                        _position = childEnd;
+                    }
+
+                    if (trackType == 1 && videoCodec == null) {
+                        videoCodec = codec;
+                    }
+                    else if (trackType == 2 && audioCodec == null) {
+                        audioCodec = codec;
+                    }
+                }
+            }
+
+            _position = end;
+        }
+
+        _entry.duration = (long)(duration * timecodeScale / 1000000);
+        _entry.codec = joinCodecs(videoCodec, audioCodec);
+    }
+
+    private int readEbmlId(byte[] data) {
+        int first = data[_position] & 0xFF;
+        int length = Integer.numberOfLeadingZeros(first) - 23;
+        if (length < 1 || length > 4) {
+            throw new IllegalArgumentException("Invalid EBML id");
+        }
+
+        int id = (int)readUInt(data, _position, length);
+        _position += length;
+        return id;
+    }
+
+    /**
+     * @return Element size, or -1 when the size is unknown
+     */
+    private long readEbmlSize(byte[] data) {
+        int first = data[_position] & 0xFF;
+        int length = Integer.numberOfLeadingZeros(first) - 23;
+        if (length < 1 || length > 8) {
+            throw new IllegalArgumentException("Invalid EBML size");
+        }
+
+        long size = first & (0xFF >> length);
+        boolean unknown = size == (0xFF >> length);
+        for (int i = 1; i < length; i++) {
+            int b = data[_position + i] & 0xFF;
+            unknown &= b == 0xFF;
+            size = (size << 8) | b;
+        }
+
+        _position += length;
+        return unknown ? -1 : size;
+    }
+
+    private int readEbmlChildSize(byte[] data) {
+        long size = readEbmlSize(data);
+        if (size < 0 || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid EBML child size");
+        }
+
+        return (int)size;
+    }
+
+    // MP3: skip the ID3 tag, then read the first frame header and its Xing or VBRI header
+    private void parseMp3(byte[] data, int length, long offset) {
+        int position = 0;
+        if (offset == 0 && length >= 10 && data[0] == 'I' && data[1] == 'D' && data[2] == '3') {
+            int tagSize = 10 + ((data[6] & 0x7F) << 21 | (data[7] & 0x7F) << 14 | (data[8] & 0x7F) << 7 | (data[9] & 0x7F));
+            if ((data[5] & 0x10) != 0) {
+                tagSize += 10;
+            }
+
+            if (tagSize + 4 > length) {
+                _nextOffset = tagSize;
+                return;
+            }
+
+            position = tagSize;
+        }
+
+        while (position + 4 <= length) {
+            int b1 = data[position + 1] & 0xFF;
+            int b2 = data[position + 2] & 0xFF;
+            int version = (b1 >> 3) & 3;
+            int layer = (b1 >> 1) & 3;
+            int bitrateIndex = (b2 >> 4) & 0xF;
+            int sampleRateIndex = (b2 >> 2) & 3;
+
+            if ((data[position] & 0xFF) != 0xFF || (b1 & 0xE0) != 0xE0 || version == 1 || layer != 1 ||
+                    bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+                position++;
+                continue;
+            }
+
+            boolean mpeg1 = version == 3;
+            boolean mono = ((data[position + 3] & 0xFF) >> 6) == 3;
+            int bitrate = (mpeg1 ? MP3_BITRATES_V1 : MP3_BITRATES_V2)[bitrateIndex] * 1000;
+            int sampleRate = MP3_SAMPLE_RATES[sampleRateIndex] >> (mpeg1 ? 0 : version == 2 ? 1 : 2);
+            int samplesPerFrame = mpeg1 ? 1152 : 576;
+            int sideInfoSize = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+
+            long frames = 0;
+            int xing = position + 4 + sideInfoSize;
+            int vbri = position + 36;
+            if (xing + 12 <= length && (matches(data, xing, "Xing") || matches(data, xing, "Info"))) {
+                if ((readUInt32(data, xing + 4) & 1) != 0) {
+                    frames = readUInt32(data, xing + 8);
+                }
+            }
+            else if (vbri + 18 <= length && matches(data, vbri, "VBRI")) {
+                frames = readUInt32(data, vbri + 14);
+            }
+
+            if (frames > 0) {
+                _entry.duration = frames * samplesPerFrame * 1000 / sampleRate;
+            }
+            else if (_entry.size > 0) {
+                _entry.bitrate = bitrate;
+                _entry.duration = (_entry.size - offset - position) * 8000 / bitrate;
+            }
+
+            _entry.codec = "mp3";
+            return;
+        }
+    }
+
+    // Ogg: the identification header of the first stream, then the granule position of its last page
+    private void parseOgg(byte[] data, int length, long offset) {
+        if (offset == 0) {
+            if (!matches(data, 0, "OggS")) {
+                return;
+            }
+
+            _oggSerial = readUInt32LittleEndian(data, 14);
+            int packet = 27 + (data[26] & 0xFF);
+
+            if (data[packet] == 1 && matches(data, packet + 1, "vorbis")) {
+                _entry.codec = "vorbis";
+                _oggSampleRate = (int)readUInt32LittleEndian(data, packet + 12);
+                _entry.bitrate = (int)readUInt32LittleEndian(data, packet + 20);
+            }
+            else if (matches(data, packet, "OpusHead")) {
+                _entry.codec = "opus";
+                _oggSampleRate = 48000;
+                _oggPreSkip = (data[packet + 10] & 0xFF) | (data[packet + 11] & 0xFF) << 8;
+            }
+            else {
+                return;
+            }
+
+            if (_entry.size > length) {
+                _nextOffset = _entry.size - RANGE_LENGTH;
+                return;
+            }
+        }
+
+        for (int position = length - 27; position >= 0; position--) {
+            if (matches(data, position, "OggS") && readUInt32LittleEndian(data, position + 14) == _oggSerial) {
+                long granule = readUInt32LittleEndian(data, position + 6) | readUInt32LittleEndian(data, position + 10) << 32;
+                if (granule > 0 && _oggSampleRate > 0) {
+                    _entry.duration = (granule - _oggPreSkip) * 1000 / _oggSampleRate;
+                }
+                return;
+            }
+        }
+    }
+
+    // AAC: average the ADTS frames in the range to estimate the bitrate
+    private void parseAac(byte[] data, int length) {
+        int position = 0;
+        int frames = 0;
+        long frameBytes = 0;
+        int sampleRate = 0;
+
+        while (position + 7 <= length) {
+            if ((data[position] & 0xFF) != 0xFF || (data[position + 1] & 0xF6) != 0xF0) {
+                if (frames > 0) {
+                    break;
+                }
+                position++;
+                continue;
+            }
+
+            int sampleRateIndex = (data[position + 2] >> 2) & 0xF;
+            int frameLength = (data[position + 3] & 0x3) << 11 | (data[position + 4] & 0xFF) << 3 | (data[position + 5] & 0xFF) >> 5;
+            if (sampleRateIndex >= AAC_SAMPLE_RATES.length || frameLength < 7 || position + frameLength > length) {
+                break;
+            }
+
+            sampleRate = AAC_SAMPLE_RATES[sampleRateIndex];
+            frames++;
+            frameBytes += frameLength;
+            position += frameLength;
+        }
+
+        if (frames > 0) {
+            _entry.codec = "aac";
+            _entry.bitrate = (int)(frameBytes * 8 * sampleRate / (frames * 1024L));
+            if (_entry.size > 0 && _entry.bitrate > 0) {
+                _entry.duration = _entry.size * 8000 / _entry.bitrate;
+            }
+        }
+    }
+
+    private static String joinCodecs(String videoCodec, String audioCodec) {
+        if (videoCodec != null && audioCodec != null) {
+            return videoCodec + ", " + audioCodec;
+        }
+
+        return videoCodec != null ? videoCodec : audioCodec;
+    }
+
+    private static boolean matches(byte[] data, int position, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (data[position + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static long readUInt(byte[] data, int position, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (data[position + i] & 0xFF);
+        }
+
+        return value;
+    }
+
+    private static long readUInt32(byte[] data, int position) {
+        return readUInt(data, position, 4);
+    }
+
+    private static long readUInt64(byte[] data, int position) {
+        return readUInt(data, position, 8);
+    }
+
+    private static long readUInt32LittleEndian(byte[] data, int position) {
+        return (data[position] & 0xFFL) |
+                (data[position + 1] & 0xFFL) << 8 |
+                (data[position + 2] & 0xFFL) << 16 |
+                (data[position + 3] & 0xFFL) << 24;
+    }
+}
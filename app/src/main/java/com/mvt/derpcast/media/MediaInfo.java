@@ -1,11 +1,19 @@
 package com.mvt.derpcast.media;
 
+import java.util.Locale;
+
 public class MediaInfo implements Comparable<MediaInfo> {
     public String title;
     public String url;
+    public String referrer;
     public String format;
     public String extension;
     public long size;
+    public long duration;
+    public int width;
+    public int height;
+    public String codec;
+    public int bitrate;
 
     public MediaInfo(String url) {
         this.url = url;
@@ -19,7 +27,7 @@ public class MediaInfo implements Comparable<MediaInfo> {
         if (object instanceof MediaInfo)
         {
             MediaInfo mediaInfo = (MediaInfo)object;
-            equal = mediaInfo.url.equalsIgnoreCase(this.url);
+            equal = mediaInfo.url.toLowerCase(Locale.US).equals(this.url.toLowerCase(Locale.US));
         }
 
         return equal;
@@ -27,11 +35,21 @@ public class MediaInfo implements Comparable<MediaInfo> {
 
     @Override
     public int compareTo(MediaInfo mediaInfo) {
-        return Long.valueOf(mediaInfo.size).compareTo(this.size);
+        // Highest resolution first, then highest bitrate, then largest file
+        int result = Long.valueOf((long)mediaInfo.width * mediaInfo.height).compareTo((long)this.width * this.height);
+        if (result == 0) {
+            result = Integer.valueOf(mediaInfo.bitrate).compareTo(this.bitrate);
+        }
+        if (result == 0) {
+            result = Long.valueOf(mediaInfo.size).compareTo(this.size);
+        }
+
+        return result;
     }
 
-        @Override
+    @Override
     public int hashCode() {
-        return this.url.hashCode();
+        // Lower cased the same way as in equals, whatever the default locale
+        return this.url.toLowerCase(Locale.US).hashCode();
     }
 }
@@ -0,0 +1,230 @@
+package com.mvt.derpcast.media;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Disk-backed cache of HEAD results for media URLs, so recently scraped pages need no metadata requests.
+ * Holds a limited number of URLs, evicting the least recently used first. The file is read and written
+ * on a background thread; until it has been read, lookups miss.
+ */
+public class MediaInfoCache {
+
+    private static final String FILE_NAME = "media_info_cache.json";
+    private static final int MAX_ENTRIES = 500;
+    private static final long TIME_TO_LIVE = 60 * 60 * 1000;
+    private static final long ERROR_TIME_TO_LIVE = 60 * 1000;
+
+    private static MediaInfoCache _instance;
+
+    private final File _file;
+    private final ExecutorService _diskExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MediaInfoCache disk");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Map<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean _changed;
+
+    public static class Entry {
+        public int status;
+        public long size;
+        public String format;
+        public String eTag;
+        public String lastModified;
+        public long validated;
+        public boolean probed;
+        public long duration;
+        public int width;
+        public int height;
+        public String codec;
+        public int bitrate;
+
+        /**
+         * @return Whether the entry can be used without revalidating it. Server errors, timeouts
+         * and rate limiting may be gone on the next request, so those are only kept briefly.
+         */
+        public boolean isFresh() {
+            long timeToLive = isDefinitive() ? TIME_TO_LIVE : ERROR_TIME_TO_LIVE;
+            return System.currentTimeMillis() - validated < timeToLive;
+        }
+
+        private boolean isDefinitive() {
+            return status < 500 && status != 408 && status != 429;
+        }
+    }
+
+    private MediaInfoCache(Context context) {
+        _file = new File(context.getCacheDir(), FILE_NAME);
+        _diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    public static synchronized MediaInfoCache getInstance(Context context) {
+        if (_instance == null) {
+            _instance = new MediaInfoCache(context.getApplicationContext());
+        }
+
+        return _instance;
+    }
+
+    public synchronized Entry get(String url) {
+        return _entries.get(url);
+    }
+
+    public synchronized void put(String url, Entry entry) {
+        _entries.put(url, entry);
+        _changed = true;
+    }
+
+    /**
+     * Writes the cache to disk in the background if it has changed. The file is replaced atomically.
+     */
+    public void save() {
+        _diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+    }
+
+    private void write() {
+        String text;
+        synchronized (this) {
+            if (!_changed) {
+                return;
+            }
+
+            text = toJSONArray().toString();
+            _changed = false;
+        }
+
+        try {
+            File tempFile = new File(_file.getPath() + ".tmp");
+            FileWriter writer = new FileWriter(tempFile);
+            try {
+                writer.write(text);
+            }
+            finally {
+                writer.close();
+            }
+
+            if (!tempFile.renameTo(_file)) {
+                throw new IOException("Can't replace " + _file);
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                _changed = true;
+            }
+        }
+    }
+
+    private JSONArray toJSONArray() {
+        JSONArray entries = new JSONArray();
+
+        try {
+            for (Map.Entry<String, Entry> entry : _entries.entrySet()) {
+                Entry value = entry.getValue();
+                JSONObject json = new JSONObject();
+                json.put("url", entry.getKey());
+                json.put("status", value.status);
+                json.put("size", value.size);
+                json.put("format", value.format);
+                json.put("eTag", value.eTag);
+                json.put("lastModified", value.lastModified);
+                json.put("validated", value.validated);
+                json.put("probed", value.probed);
+                json.put("duration", value.duration);
+                json.put("width", value.width);
+                json.put("height", value.height);
+                json.put("codec", value.codec);
+                json.put("bitrate", value.bitrate);
+                entries.put(json);
+            }
+        }
+        catch (JSONException e) { e.printStackTrace(); }
+
+        return entries;
+    }
+
+    private void load() {
+        if (!_file.exists()) {
+            return;
+        }
+
+        Map<String, Entry> loadedEntries = new LinkedHashMap<String, Entry>();
+
+        try {
+            StringBuilder text = new StringBuilder();
+            BufferedReader reader = new BufferedReader(new FileReader(_file));
+            try {
+                char[] buffer = new char[8192];
+                int length;
+                while ((length = reader.read(buffer)) != -1) {
+                    text.append(buffer, 0, length);
+                }
+            }
+            finally {
+                reader.close();
+            }
+
+            JSONArray entries = new JSONArray(text.toString());
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject json = entries.getJSONObject(i);
+                Entry entry = new Entry();
+                entry.status = json.getInt("status");
+                entry.size = json.getLong("size");
+                entry.format = json.optString("format", null);
+                entry.eTag = json.optString("eTag", null);
+                entry.lastModified = json.optString("lastModified", null);
+                entry.validated = json.getLong("validated");
+                entry.probed = json.optBoolean("probed");
+                entry.duration = json.optLong("duration");
+                entry.width = json.optInt("width");
+                entry.height = json.optInt("height");
+                entry.codec = json.optString("codec", null);
+                entry.bitrate = json.optInt("bitrate");
+                loadedEntries.put(json.getString("url"), entry);
+            }
+        }
+        catch (JSONException e) { e.printStackTrace(); }
+        catch (IOException e) { e.printStackTrace(); }
+
+        synchronized (this) {
+            // Entries put while the file was read are newer, so they stay and count as most recently used
+            Map<String, Entry> newerEntries = new LinkedHashMap<String, Entry>(_entries);
+            _entries.clear();
+            _entries.putAll(loadedEntries);
+            _entries.putAll(newerEntries);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.mvt.derpcast.media;
+
+import android.content.Context;
+
+import com.koushikdutta.async.future.Cancellable;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.ion.HeadersCallback;
+import com.koushikdutta.ion.HeadersResponse;
+import com.koushikdutta.ion.Ion;
+
+import java.io.OutputStream;
+
+/**
+ * Reads the headers of a media file with a few small HTTP range requests and fills in
+ * its duration, resolution, codec and bitrate. Servers that ignore the range are cut off
+ * once the requested number of bytes has arrived.
+ */
+public class MediaProber implements Cancellable {
+
+    public interface Listener {
+        void finished();
+    }
+
+    private static final int MAX_RANGE_REQUESTS = 3;
+    private static final int REQUEST_TIMEOUT = 5000;
+
+    private final Context _context;
+    private final String _url;
+    private final MediaHeaderParser _parser;
+    private final Listener _listener;
+    private RangeBuffer _rangeBuffer;
+    private int _requestCount;
+    private boolean _cancelled;
+    private boolean _done;
+
+    public MediaProber(Context context, String url, String extension, MediaInfoCache.Entry entry, Listener listener) {
+        _context = context;
+        _url = url;
+        _parser = new MediaHeaderParser(extension, entry);
+        _listener = listener;
+    }
+
+    public void start() {
+        readNextRange();
+    }
+
+    @Override
+    public boolean cancel() {
+        RangeBuffer rangeBuffer;
+
+        synchronized (this) {
+            if (_done) {
+                return false;
+            }
+
+            _cancelled = true;
+            _done = true;
+            rangeBuffer = _rangeBuffer;
+        }
+
+        if (rangeBuffer != null) {
+            rangeBuffer.cancel();
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return _done;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return _cancelled;
+    }
+
+    private void readNextRange() {
+        long offset = _parser.getNextOffset();
+        int length = _parser.getNextLength();
+        final RangeBuffer rangeBuffer = offset >= 0 ? new RangeBuffer(offset, length) : null;
+        boolean finished;
+
+        synchronized (this) {
+            if (_done) {
+                return;
+            }
+
+            finished = rangeBuffer == null || _requestCount == MAX_RANGE_REQUESTS;
+            if (finished) {
+                _done = true;
+            }
+            else {
+                _requestCount++;
+                _rangeBuffer = rangeBuffer;
+            }
+        }
+
+        if (finished) {
+            _listener.finished();
+            return;
+        }
+
+        Future<RangeBuffer> future = Ion.with(_context)
+            .load(_url)
+            .setTimeout(REQUEST_TIMEOUT)
+            .setHeader("Range", "bytes=" + offset + "-" + (offset + length - 1))
+            .onHeaders(new HeadersCallback() {
+                @Override
+                public void onHeaders(HeadersResponse headersResponse) {
+                    rangeBuffer.setStatus(headersResponse.code());
+                }
+            })
+            .write(rangeBuffer)
+            .setCallback(new FutureCallback<RangeBuffer>() {
+                @Override
+                public void onCompleted(Exception e, RangeBuffer result) {
+                    rangeRead(rangeBuffer);
+                }
+            });
+
+        rangeBuffer.setFuture(future);
+    }
+
+    private void rangeRead(RangeBuffer rangeBuffer) {
+        if (!rangeBuffer.markRead()) {
+            return;
+        }
+
+        if (rangeBuffer.isValid()) {
+            _parser.parse(rangeBuffer.data, rangeBuffer.length);
+            readNextRange();
+        }
+        else {
+            synchronized (this) {
+                if (_done) {
+                    return;
+                }
+                _done = true;
+            }
+
+            _listener.finished();
+        }
+    }
+
+    /**
+     * Collects the bytes of one range and cancels the request once they have all arrived.
+     */
+    private class RangeBuffer extends OutputStream {
+        final long offset;
+        final byte[] data;
+        int length;
+        private int _status;
+        private boolean _full;
+        private boolean _read;
+        private Future<RangeBuffer> _future;
+
+        RangeBuffer(long offset, int length) {
+            this.offset = offset;
+            this.data = new byte[Math.max(length, 0)];
+        }
+
+        synchronized void setStatus(int status) {
+            _status = status;
+        }
+
+        /**
+         * A server that ignores the range header can only be used for the start of the file.
+         */
+        synchronized boolean isValid() {
+            return length > 0 && (_status == 206 || (_status == 200 && offset == 0));
+        }
+
+        synchronized boolean markRead() {
+            boolean read = _read;
+            _read = true;
+            return !read;
+        }
+
+        void setFuture(Future<RangeBuffer> future) {
+            boolean full;
+            synchronized (this) {
+                _future = future;
+                full = _full;
+            }
+
+            if (full) {
+                future.cancel();
+            }
+        }
+
+        void cancel() {
+            Future<RangeBuffer> future;
+            synchronized (this) {
+                _full = true;
+                future = _future;
+            }
+
+            if (future != null) {
+                future.cancel();
+            }
+        }
+
+        @Override
+        public void write(int oneByte) {
+            write(new byte[] { (byte)oneByte }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) {
+            synchronized (this) {
+                if (_full) {
+                    return;
+                }
+
+                int copyCount = Math.min(count, data.length - length);
+                System.arraycopy(buffer, offset, data, length, copyCount);
+                length += copyCount;
+
+                if (length < data.length) {
+                    return;
+                }
+            }
+
+            cancel();
+            rangeRead(this);
+        }
+    }
+}
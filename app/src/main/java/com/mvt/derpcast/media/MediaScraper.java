@@ -3,130 +3,225 @@ package com.mvt.derpcast.media;
 import android.content.Context;
 import android.text.TextUtils;
 
+import com.koushikdutta.async.future.Cancellable;
 import com.koushikdutta.async.future.FutureCallback;
 import com.koushikdutta.ion.HeadersCallback;
 import com.koushikdutta.ion.HeadersResponse;
 import com.koushikdutta.ion.Ion;
 import com.koushikdutta.ion.Response;
+import com.koushikdutta.ion.builder.Builders;
+import com.mvt.derpcast.helpers.KeywordMatcher;
 import com.mvt.derpcast.helpers.RegexHelper;
 
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.regex.Pattern;
 
 public class MediaScraper {
 
-    private String _mediaPattern;
-    private String _mediaAttributePattern;
-    private final String _iframePattern = "<iframe .*src=['\"](.+?)['\"]";
-    private List<MediaInfo> _foundMediaInfos = new ArrayList<MediaInfo>();
+    private static final int DEFAULT_MAX_REQUESTS = 6;
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 2;
+    private static final int REQUEST_TIMEOUT = 5000;
+
+    private final Pattern _mediaPattern;
+    private final KeywordMatcher _keywordMatcher;
+    private final ScrapeScheduler _scheduler;
+    private final Set<MediaInfo> _foundMediaInfos = new HashSet<MediaInfo>();
+    private final CrawlFrontier _frontier = new CrawlFrontier();
+    private final List<PageRequest> _pageRequests = new ArrayList<PageRequest>();
     private Map<String, String> _mediaFormats;
-    private int _activeRequestCount = 0;
+    private int _maxMediaCount = Integer.MAX_VALUE;
+    private int _maxDepth;
+    private Context _context;
+    private MediaScraperListener _listener;
+    private MediaInfoCache _cache;
 
     public MediaScraper(Map<String, String> mediaFormats) {
+        this(mediaFormats, DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+    public MediaScraper(Map<String, String> mediaFormats, int maxRequests, int maxRequestsPerHost) {
         _mediaFormats = mediaFormats;
-        _mediaPattern = String.format("([^'\"]+\\.(%1$s)(?:\\?.*?)?)", TextUtils.join("|", mediaFormats.keySet()));
-        _mediaAttributePattern = _mediaPattern + "['\"]";
+        String mediaPattern = String.format("([^'\"]+\\.(%1$s)(?:\\?.*?)?)", TextUtils.join("|", mediaFormats.keySet()));
+        _mediaPattern = RegexHelper.getPattern(mediaPattern);
+        _keywordMatcher = MediaUrlScanner.createKeywordMatcher(mediaFormats.keySet());
+        _scheduler = new ScrapeScheduler(maxRequests, maxRequestsPerHost, new ScrapeScheduler.Listener() {
+            @Override
+            public void finished() {
+                _cache.save();
+                _listener.finished(getFoundMediaCount());
+            }
+        });
     }
 
-    public void scrape(final Context context, final String pageUrl, final int iframeDepth, final MediaScraperListener listener) {
+    /**
+     * Scrapes a page for media. The listener's finished method is called exactly once,
+     * unless the scrape is cancelled first.
+     */
+    public void scrape(Context context, String pageUrl, int iframeDepth, MediaScraperListener listener) {
+        _context = context;
+        _listener = listener;
+        _cache = MediaInfoCache.getInstance(context);
+        _maxDepth = iframeDepth;
+
+        _scheduler.hold();
         if (pageUrl != null) {
+            _frontier.add(pageUrl, 0);
+            scrapeDepth(0);
+        }
+        _scheduler.release();
+    }
+
+    /**
+     * Cancels all outstanding requests. No more listener methods are called afterwards.
+     */
+    public void cancel() {
+        _scheduler.cancel();
+
+        for (PageRequest pageRequest : getPageRequests()) {
+            pageRequest.parser.stop();
+        }
+    }
+
+    /**
+     * Stops reading pages once this many media URLs have been found.
+     */
+    public void setMaxMediaCount(int maxMediaCount) {
+        _maxMediaCount = maxMediaCount;
+    }
+
+    /**
+     * Fetches all pages queued for a depth in parallel. Iframes found on them are only followed
+     * when no media has been found once the whole depth is done, regardless of which page finishes first.
+     */
+    private void scrapeDepth(int depth) {
+        // Counts as a page itself, so the depth can't be done before all of its pages are submitted
+        _frontier.pageStarted(depth);
+
+        for (String pageUrl : _frontier.take(depth)) {
             String mediaUrl = RegexHelper.getFirstMatch(_mediaPattern, pageUrl);
             if (mediaUrl != null) {
-                MediaInfo mediaInfo = new MediaInfo(mediaUrl);
-                _foundMediaInfos.add(mediaInfo);
-                addMediaMetaData(context, mediaInfo, listener);
+                addMediaUrl(mediaUrl, null);
+                continue;
+            }
+
+            PageRequest pageRequest = new PageRequest(pageUrl, depth);
+            synchronized (MediaScraper.this) {
+                _pageRequests.add(pageRequest);
+            }
+
+            _frontier.pageStarted(depth);
+            _scheduler.submit(pageRequest);
+        }
+
+        finishPage(depth);
+    }
+
+    private void finishPage(int depth) {
+        if (_frontier.pageFinished(depth) &&
+                depth < _maxDepth &&
+                getFoundMediaCount() == 0 &&
+                !_scheduler.isCancelled()) {
+            scrapeDepth(depth + 1);
+        }
+    }
+
+    /**
+     * @param referrer Page the media was found on, which some sites only serve the media to
+     */
+    private void addMediaUrl(String mediaUrl, String referrer) {
+        MediaInfo mediaInfo = new MediaInfo(mediaUrl);
+        mediaInfo.referrer = referrer;
+        List<PageRequest> stoppedPageRequests = null;
+
+        synchronized (MediaScraper.this) {
+            if (_foundMediaInfos.size() >= _maxMediaCount || _foundMediaInfos.contains(mediaInfo)) {
                 return;
             }
 
-            _activeRequestCount++;
+            _foundMediaInfos.add(mediaInfo);
 
-            Ion.with(context)
-                .load(pageUrl)
-                .setTimeout(5000)
-                .asString()
-                .withResponse()
-                .setCallback(new FutureCallback<Response<String>>() {
-                    @Override
-                    public void onCompleted(Exception e, Response<String> response) {
-                        _activeRequestCount--;
+            if (_foundMediaInfos.size() >= _maxMediaCount) {
+                stoppedPageRequests = new ArrayList<PageRequest>(_pageRequests);
+            }
+        }
 
-                        if (e != null) {
-                            e.printStackTrace();
-                        } else if (response != null) {
-                            String html = response.getResult();
-                            if (html != null) {
-                                List<String> mediaUrls = RegexHelper.getMatches(_mediaAttributePattern, html);
-                                for (final String mediaUrl : mediaUrls) {
-                                    synchronized (MediaScraper.this) {
-                                        final MediaInfo mediaInfo = new MediaInfo(getAbsoluteUrl(pageUrl, mediaUrl));
-
-                                        if (!_foundMediaInfos.contains(mediaInfo)) {
-                                            _foundMediaInfos.add(mediaInfo);
-                                            addMediaMetaData(context, mediaInfo, listener);
-                                        }
-                                    }
-                                }
-
-                                if (iframeDepth > 0 && _foundMediaInfos.size() == 0) {
-                                    List<String> iframeUrls = RegexHelper.getMatches(_iframePattern, html);
-                                    for (String iframeUrl : iframeUrls) {
-                                        scrape(context, getAbsoluteUrl(pageUrl, iframeUrl), iframeDepth - 1, listener);
-                                    }
-                                }
-                            }
-                        }
+        MediaInfoCache.Entry cacheEntry = _cache.get(mediaInfo.url);
+        if (cacheEntry != null && cacheEntry.isFresh()) {
+            probeMedia(mediaInfo, cacheEntry);
+        }
+        else {
+            _scheduler.submit(new MetaDataRequest(mediaInfo, cacheEntry));
+        }
 
-                        if (_activeRequestCount <= 0) {
-                            listener.finished(_foundMediaInfos.size());
-                        }
-                    }
-                });
+        if (stoppedPageRequests != null) {
+            for (PageRequest pageRequest : stoppedPageRequests) {
+                pageRequest.parser.stop();
+                _scheduler.cancel(pageRequest);
+            }
         }
     }
 
-    private void addMediaMetaData(final Context context, final MediaInfo mediaInfo, final MediaScraperListener listener) {
-        _activeRequestCount++;
+    /**
+     * Reports the media right away, then reads the media headers if that hasn't been done for
+     * this cache entry yet and reports the media again with what they tell.
+     */
+    private void probeMedia(MediaInfo mediaInfo, MediaInfoCache.Entry cacheEntry) {
+        reportMedia(mediaInfo, cacheEntry, false);
 
-        Ion.with(context)
-            .load("HEAD", mediaInfo.url)
-            .setTimeout(5000)
-            .onHeaders(new HeadersCallback() {
-                @Override
-                public void onHeaders(HeadersResponse headersResponse) {
-                    if (headersResponse.code() < 400) {
-                        int fileNameIndex = mediaInfo.url.lastIndexOf('/') + 1;
-                        int queryStringIndex = mediaInfo.url.lastIndexOf('?');
-                        queryStringIndex = queryStringIndex != -1 ? queryStringIndex : mediaInfo.url.length();
-                        String fileName = mediaInfo.url.substring(fileNameIndex, queryStringIndex);
-                        String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
-
-                        mediaInfo.title = fileName;
-                        mediaInfo.extension = extension;
-                        mediaInfo.format = _mediaFormats.get(extension);
-
-                        String contentLength = headersResponse.getHeaders().get("Content-Length");
-                        if (contentLength != null && contentLength != "") {
-                            mediaInfo.size = Long.parseLong(contentLength);
-                        }
-                        listener.mediaFound(mediaInfo);
-                    }
-                }
-            })
-            .asInputStream()
-            .withResponse()
-            .setCallback(new FutureCallback<Response<InputStream>>() {
-                @Override
-                public void onCompleted(Exception e, Response<InputStream> inputStreamResponse) {
-                    _activeRequestCount--;
-                    if (_activeRequestCount <= 0) {
-                        listener.finished(_foundMediaInfos.size());
-                    }
-                }
-            });
+        if (cacheEntry.status < 400 && !cacheEntry.probed) {
+            _scheduler.submit(new ProbeRequest(mediaInfo, cacheEntry));
+        }
+    }
+
+    private void reportMedia(MediaInfo mediaInfo, MediaInfoCache.Entry cacheEntry, boolean update) {
+        if (cacheEntry.status < 400 && !_scheduler.isCancelled()) {
+            String fileName = getFileName(mediaInfo.url);
+            String extension = getExtension(fileName);
+
+            mediaInfo.title = fileName;
+            mediaInfo.extension = extension;
+            mediaInfo.format = cacheEntry.format != null ? cacheEntry.format : _mediaFormats.get(extension);
+            mediaInfo.size = cacheEntry.size;
+            mediaInfo.duration = cacheEntry.duration;
+            mediaInfo.width = cacheEntry.width;
+            mediaInfo.height = cacheEntry.height;
+            mediaInfo.codec = cacheEntry.codec;
+            mediaInfo.bitrate = cacheEntry.bitrate;
+
+            if (update) {
+                _listener.mediaUpdated(mediaInfo);
+            }
+            else {
+                _listener.mediaFound(mediaInfo);
+            }
+        }
+    }
+
+    private String getFileName(String url) {
+        int fileNameIndex = url.lastIndexOf('/') + 1;
+        int queryStringIndex = url.lastIndexOf('?');
+        queryStringIndex = queryStringIndex != -1 ? queryStringIndex : url.length();
+        return url.substring(fileNameIndex, queryStringIndex);
+    }
+
+    private String getExtension(String fileName) {
+        return fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
+    }
+
+    private synchronized int getFoundMediaCount() {
+        return _foundMediaInfos.size();
+    }
+
+    private synchronized List<PageRequest> getPageRequests() {
+        return new ArrayList<PageRequest>(_pageRequests);
     }
 
     private String getAbsoluteUrl(String pageUrl, String url) {
@@ -150,4 +245,162 @@ public class MediaScraper {
 
         return absoluteUrl;
     }
+
+    private class PageRequest implements ScrapeScheduler.Request {
+        final String url;
+        final int depth;
+        final MediaStreamParser parser;
+
+        PageRequest(final String url, final int depth) {
+            this.url = url;
+            this.depth = depth;
+            this.parser = new MediaStreamParser(_keywordMatcher, depth < _maxDepth, new MediaUrlScanner.Listener() {
+                @Override
+                public void mediaUrlFound(String mediaUrl) {
+                    addMediaUrl(getAbsoluteUrl(url, mediaUrl), url);
+                }
+
+                @Override
+                public void iframeUrlFound(String iframeUrl) {
+                    _frontier.add(getAbsoluteUrl(url, iframeUrl), depth + 1);
+                }
+            });
+        }
+
+        @Override
+        public String getUrl() {
+            return url;
+        }
+
+        @Override
+        public Cancellable start() {
+            return Ion.with(_context)
+                .load(url)
+                .setTimeout(REQUEST_TIMEOUT)
+                .write(parser)
+                .withResponse()
+                .setCallback(new FutureCallback<Response<MediaStreamParser>>() {
+                    @Override
+                    public void onCompleted(Exception e, Response<MediaStreamParser> response) {
+                        if (e != null) {
+                            if (!(e instanceof CancellationException)) {
+                                e.printStackTrace();
+                            }
+                        } else {
+                            parser.close();
+                        }
+
+                        synchronized (MediaScraper.this) {
+                            _pageRequests.remove(PageRequest.this);
+                        }
+
+                        // Next depth is submitted before this request finishes, so the scheduler doesn't go idle
+                        finishPage(depth);
+                        _scheduler.finish(PageRequest.this);
+                    }
+                });
+        }
+    }
+
+    private class MetaDataRequest implements ScrapeScheduler.Request {
+        final MediaInfo mediaInfo;
+        final MediaInfoCache.Entry cacheEntry;
+
+        MetaDataRequest(MediaInfo mediaInfo, MediaInfoCache.Entry cacheEntry) {
+            this.mediaInfo = mediaInfo;
+            this.cacheEntry = cacheEntry;
+        }
+
+        @Override
+        public String getUrl() {
+            return mediaInfo.url;
+        }
+
+        @Override
+        public Cancellable start() {
+            Builders.Any.B builder = Ion.with(_context)
+                .load("HEAD", mediaInfo.url)
+                .setTimeout(REQUEST_TIMEOUT);
+
+            // Revalidate a stale cache entry
+            if (cacheEntry != null) {
+                if (cacheEntry.eTag != null) {
+                    builder.setHeader("If-None-Match", cacheEntry.eTag);
+                }
+                if (cacheEntry.lastModified != null) {
+                    builder.setHeader("If-Modified-Since", cacheEntry.lastModified);
+                }
+            }
+
+            return builder
+                .onHeaders(new HeadersCallback() {
+                    @Override
+                    public void onHeaders(HeadersResponse headersResponse) {
+                        int code = headersResponse.code();
+                        MediaInfoCache.Entry entry = cacheEntry;
+
+                        if (code != 304 || entry == null) {
+                            entry = new MediaInfoCache.Entry();
+                            entry.status = code;
+                            entry.format = _mediaFormats.get(getExtension(getFileName(mediaInfo.url)));
+                            entry.eTag = headersResponse.getHeaders().get("ETag");
+                            entry.lastModified = headersResponse.getHeaders().get("Last-Modified");
+
+                            String contentLength = headersResponse.getHeaders().get("Content-Length");
+                            if (!TextUtils.isEmpty(contentLength)) {
+                                entry.size = Long.parseLong(contentLength);
+                            }
+                        }
+
+                        entry.validated = System.currentTimeMillis();
+                        _cache.put(mediaInfo.url, entry);
+                        probeMedia(mediaInfo, entry);
+                    }
+                })
+                .asInputStream()
+                .withResponse()
+                .setCallback(new FutureCallback<Response<InputStream>>() {
+                    @Override
+                    public void onCompleted(Exception e, Response<InputStream> inputStreamResponse) {
+                        _scheduler.finish(MetaDataRequest.this);
+                    }
+                });
+        }
+    }
+
+    private class ProbeRequest implements ScrapeScheduler.Request {
+        final MediaInfo mediaInfo;
+        final MediaInfoCache.Entry cacheEntry;
+
+        ProbeRequest(MediaInfo mediaInfo, MediaInfoCache.Entry cacheEntry) {
+            this.mediaInfo = mediaInfo;
+            this.cacheEntry = cacheEntry;
+        }
+
+        @Override
+        public String getUrl() {
+            return mediaInfo.url;
+        }
+
+        @Override
+        public Cancellable start() {
+            String extension = getExtension(getFileName(mediaInfo.url));
+            MediaProber prober = new MediaProber(_context, mediaInfo.url, extension, cacheEntry, new MediaProber.Listener() {
+                @Override
+                public void finished() {
+                    cacheEntry.probed = true;
+                    _cache.put(mediaInfo.url, cacheEntry);
+
+                    // A new instance, the reported one may be on screen
+                    MediaInfo probedMediaInfo = new MediaInfo(mediaInfo.url);
+                    probedMediaInfo.referrer = mediaInfo.referrer;
+                    reportMedia(probedMediaInfo, cacheEntry, true);
+                    _scheduler.finish(ProbeRequest.this);
+                }
+            });
+
+            prober.start();
+            return prober;
+        }
+    }
 }
@@ -2,5 +2,11 @@ package com.mvt.derpcast.media;
 
 public interface MediaScraperListener {
     void mediaFound(MediaInfo mediaInfo);
+
+    /**
+     * Called with the details read from the media headers of media that was already found.
+     */
+    void mediaUpdated(MediaInfo mediaInfo);
+
     void finished(int mediaFound);
 }
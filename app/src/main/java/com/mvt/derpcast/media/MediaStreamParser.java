@@ -0,0 +1,96 @@
+package com.mvt.derpcast.media;
+
+import com.mvt.derpcast.helpers.KeywordMatcher;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Scans an HTML response for media and iframe URLs while it is being downloaded.
+ * Bytes of a character that is split across chunks are carried over to the next chunk.
+ */
+public class MediaStreamParser extends OutputStream {
+
+    private final MediaUrlScanner _scanner;
+    private final CharsetDecoder _decoder;
+    private final CharBuffer _charBuffer = CharBuffer.allocate(8192);
+    private ByteBuffer _byteBuffer = ByteBuffer.allocate(8192);
+    private boolean _closed;
+
+    public MediaStreamParser(KeywordMatcher keywordMatcher, boolean scanIframes, MediaUrlScanner.Listener listener) {
+        _scanner = new MediaUrlScanner(keywordMatcher, scanIframes, listener);
+        _decoder = Charset.forName("UTF-8")
+                .newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Ignores all further input. Called when enough media has been found.
+     */
+    public synchronized void stop() {
+        _scanner.stop();
+    }
+
+    public synchronized boolean isStopped() {
+        return _scanner.isStopped();
+    }
+
+    @Override
+    public void write(int oneByte) {
+        write(new byte[] { (byte)oneByte }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) {
+        if (_scanner.isStopped() || _closed) {
+            return;
+        }
+
+        if (_byteBuffer.remaining() < length) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(_byteBuffer.position() + length);
+            _byteBuffer.flip();
+            byteBuffer.put(_byteBuffer);
+            _byteBuffer = byteBuffer;
+        }
+
+        _byteBuffer.put(buffer, offset, length);
+        _byteBuffer.flip();
+        decode(false);
+        _byteBuffer.compact();
+    }
+
+    /**
+     * Decodes and scans any bytes left over from the last chunk.
+     */
+    @Override
+    public synchronized void close() {
+        if (_scanner.isStopped() || _closed) {
+            return;
+        }
+
+        _closed = true;
+        _byteBuffer.flip();
+        decode(true);
+
+        _decoder.flush(_charBuffer);
+        _charBuffer.flip();
+        _scanner.scan(_charBuffer);
+        _charBuffer.clear();
+    }
+
+    private void decode(boolean endOfInput) {
+        CoderResult result;
+        do {
+            result = _decoder.decode(_byteBuffer, _charBuffer, endOfInput);
+            _charBuffer.flip();
+            _scanner.scan(_charBuffer);
+            _charBuffer.clear();
+        } while (result.isOverflow() && !_scanner.isStopped());
+    }
+}
@@ -0,0 +1,189 @@
+package com.mvt.derpcast.media;
+
+import com.mvt.derpcast.helpers.KeywordMatcher;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds quoted media URLs and iframe sources in HTML in a single linear pass, without backtracking.
+ * A quoted value is a media URL when it contains a media extension that is either followed by the
+ * closing quote or by a query string.
+ */
+public class MediaUrlScanner {
+
+    public interface Listener {
+        void mediaUrlFound(String mediaUrl);
+        void iframeUrlFound(String iframeUrl);
+    }
+
+    private static final int TAG_MEDIA = 1;
+    private static final int TAG_IFRAME = 2;
+    private static final int TAG_SRC = 4;
+    private static final int MAX_URL_LENGTH = 65536;
+
+    private static final int IFRAME_NONE = 0;
+    private static final int IFRAME_NAME = 1;
+    private static final int IFRAME_TAG = 2;
+    private static final int IFRAME_SRC = 3;
+    private static final int IFRAME_SRC_VALUE = 4;
+
+    private final KeywordMatcher _keywordMatcher;
+    private final boolean _scanIframes;
+    private final Listener _listener;
+    private int _state;
+    private long _position;
+    private long _whitespacePosition = -1;
+    private boolean _stopped;
+
+    private final StringBuilder _segment = new StringBuilder();
+    private boolean _segmentOverflow;
+    private int _extensionEnd = -1;
+    private int _extensionQuery = -1;
+    private int _lineBreak = -1;
+
+    private final StringBuilder _iframeUrl = new StringBuilder();
+    private int _iframeState = IFRAME_NONE;
+    private char _iframeQuote;
+
+    public MediaUrlScanner(KeywordMatcher keywordMatcher, boolean scanIframes, Listener listener) {
+        _keywordMatcher = keywordMatcher;
+        _scanIframes = scanIframes;
+        _listener = listener;
+        _state = keywordMatcher.getInitialState();
+    }
+
+    /**
+     * Builds the keyword matcher for a set of media extensions. It can be shared by any number of scanners.
+     */
+    public static KeywordMatcher createKeywordMatcher(Collection<String> extensions) {
+        Map<String, Integer> keywords = new HashMap<String, Integer>();
+        for (String extension : extensions) {
+            keywords.put("." + extension, TAG_MEDIA);
+        }
+        keywords.put("<iframe", TAG_IFRAME);
+        keywords.put("src=", TAG_SRC);
+
+        return new KeywordMatcher(keywords);
+    }
+
+    public void stop() {
+        _stopped = true;
+    }
+
+    public boolean isStopped() {
+        return _stopped;
+    }
+
+    public void scan(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length && !_stopped; i++) {
+            scan(text.charAt(i));
+        }
+    }
+
+    private void scan(char c) {
+        _state = _keywordMatcher.getNextState(_state, c);
+        int tags = _keywordMatcher.getTags(_state);
+
+        scanMedia(c, tags);
+
+        if (_scanIframes) {
+            scanIframe(c, tags);
+        }
+
+        if (Character.isWhitespace(c)) {
+            _whitespacePosition = _position;
+        }
+
+        _position++;
+    }
+
+    private void scanMedia(char c, int tags) {
+        int length = _segment.length();
+
+        if (c == '\'' || c == '"') {
+            // A query string may not span lines
+            boolean mediaFound = !_segmentOverflow && (_extensionEnd == length || _extensionQuery > _lineBreak);
+            if (mediaFound) {
+                _listener.mediaUrlFound(_segment.toString());
+            }
+
+            _segment.setLength(0);
+            _segmentOverflow = false;
+            _extensionEnd = -1;
+            _extensionQuery = -1;
+            _lineBreak = -1;
+            return;
+        }
+
+        if (_segmentOverflow) {
+            return;
+        }
+
+        if (length == MAX_URL_LENGTH) {
+            _segmentOverflow = true;
+            _segment.setLength(0);
+            return;
+        }
+
+        _segment.append(c);
+
+        if (c == '?' && _extensionEnd == length) {
+            _extensionQuery = length;
+        }
+        else if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+            _lineBreak = length;
+        }
+
+        // The extension needs at least one character in front of it
+        if ((tags & TAG_MEDIA) != 0 && _keywordMatcher.getMatchLength(_state) <= length) {
+            _extensionEnd = length + 1;
+        }
+    }
+
+    private void scanIframe(char c, int tags) {
+        switch (_iframeState) {
+            case IFRAME_NAME:
+                _iframeState = Character.isWhitespace(c) ? IFRAME_TAG : IFRAME_NONE;
+                break;
+            case IFRAME_TAG:
+                if (c == '>') {
+                    _iframeState = IFRAME_NONE;
+                }
+                else if ((tags & TAG_SRC) != 0 && _whitespacePosition == _position - 4) {
+                    _iframeState = IFRAME_SRC;
+                }
+                break;
+            case IFRAME_SRC:
+                if (c == '\'' || c == '"') {
+                    _iframeQuote = c;
+                    _iframeUrl.setLength(0);
+                    _iframeState = IFRAME_SRC_VALUE;
+                }
+                else {
+                    _iframeState = IFRAME_TAG;
+                }
+                break;
+            case IFRAME_SRC_VALUE:
+                if (c == _iframeQuote) {
+                    if (_iframeUrl.length() > 0) {
+                        _listener.iframeUrlFound(_iframeUrl.toString());
+                    }
+                    _iframeState = IFRAME_NONE;
+                }
+                else if (_iframeUrl.length() < MAX_URL_LENGTH) {
+                    _iframeUrl.append(c);
+                }
+                else {
+                    _iframeState = IFRAME_NONE;
+                }
+                break;
+        }
+
+        if ((tags & TAG_IFRAME) != 0) {
+            _iframeState = IFRAME_NAME;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.mvt.derpcast.media;
+
+import android.net.Uri;
+
+import com.koushikdutta.async.future.Cancellable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the requests of a single scrape with a limited number in flight, both in total and per host.
+ * Reports exactly once when all requests have finished, unless the scrape was cancelled.
+ */
+public class ScrapeScheduler {
+
+    public interface Request {
+        String getUrl();
+
+        /**
+         * Starts the request, which must call {@link ScrapeScheduler#finish(Request)} when it completes.
+         */
+        Cancellable start();
+    }
+
+    public interface Listener {
+        void finished();
+    }
+
+    private final int _maxRequests;
+    private final int _maxRequestsPerHost;
+    private final Listener _listener;
+    private final LinkedList<Request> _queuedRequests = new LinkedList<Request>();
+    private final Map<Request, Cancellable> _activeRequests = new HashMap<Request, Cancellable>();
+    private final Map<String, Integer> _hostRequestCounts = new HashMap<String, Integer>();
+    private final AtomicInteger _pendingCount = new AtomicInteger();
+    private final AtomicBoolean _finished = new AtomicBoolean();
+    private volatile boolean _cancelled;
+
+    public ScrapeScheduler(int maxRequests, int maxRequestsPerHost, Listener listener) {
+        _maxRequests = maxRequests;
+        _maxRequestsPerHost = maxRequestsPerHost;
+        _listener = listener;
+    }
+
+    /**
+     * Keeps the scheduler from finishing until {@link #release()} is called,
+     * so requests can be submitted without it finishing in between.
+     */
+    public void hold() {
+        _pendingCount.incrementAndGet();
+    }
+
+    public void release() {
+        if (_pendingCount.decrementAndGet() == 0 &&
+                !_cancelled &&
+                _finished.compareAndSet(false, true)) {
+            _listener.finished();
+        }
+    }
+
+    public void submit(Request request) {
+        synchronized (this) {
+            if (_cancelled) {
+                return;
+            }
+
+            _pendingCount.incrementAndGet();
+            _queuedRequests.add(request);
+        }
+
+        startRequests();
+    }
+
+    public void finish(Request request) {
+        synchronized (this) {
+            if (!_activeRequests.containsKey(request)) {
+                return;
+            }
+
+            _activeRequests.remove(request);
+            removeHostRequest(request);
+        }
+
+        startRequests();
+        release();
+    }
+
+    /**
+     * Cancels a single request, whether it is queued or in flight.
+     */
+    public void cancel(Request request) {
+        Cancellable cancellable = null;
+
+        synchronized (this) {
+            if (_activeRequests.containsKey(request)) {
+                cancellable = _activeRequests.remove(request);
+                removeHostRequest(request);
+            }
+            else if (!_queuedRequests.remove(request)) {
+                return;
+            }
+        }
+
+        if (cancellable != null) {
+            cancellable.cancel();
+        }
+
+        startRequests();
+        release();
+    }
+
+    /**
+     * Cancels all requests. The listener will not be called anymore.
+     */
+    public void cancel() {
+        List<Cancellable> cancellables;
+
+        synchronized (this) {
+            _cancelled = true;
+            _queuedRequests.clear();
+            cancellables = new ArrayList<Cancellable>(_activeRequests.values());
+            _activeRequests.clear();
+            _hostRequestCounts.clear();
+        }
+
+        for (Cancellable cancellable : cancellables) {
+            if (cancellable != null) {
+                cancellable.cancel();
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return _cancelled;
+    }
+
+    private void startRequests() {
+        List<Request> startedRequests = new ArrayList<Request>();
+
+        synchronized (this) {
+            Iterator<Request> iterator = _queuedRequests.iterator();
+            while (iterator.hasNext() && _activeRequests.size() < _maxRequests) {
+                Request request = iterator.next();
+                String host = getHost(request);
+                Integer hostRequestCount = _hostRequestCounts.get(host);
+                hostRequestCount = hostRequestCount != null ? hostRequestCount : 0;
+
+                if (hostRequestCount < _maxRequestsPerHost) {
+                    iterator.remove();
+                    _activeRequests.put(request, null);
+                    _hostRequestCounts.put(host, hostRequestCount + 1);
+                    startedRequests.add(request);
+                }
+            }
+        }
+
+        // Requests are started outside the lock, since they may finish right away
+        for (Request request : startedRequests) {
+            Cancellable cancellable = request.start();
+            boolean active;
+
+            synchronized (this) {
+                active = _activeRequests.containsKey(request);
+                if (active) {
+                    _activeRequests.put(request, cancellable);
+                }
+            }
+
+            // Cancelled while starting
+            if (!active && cancellable != null) {
+                cancellable.cancel();
+            }
+        }
+    }
+
+    private void removeHostRequest(Request request) {
+        String host = getHost(request);
+        Integer hostRequestCount = _hostRequestCounts.get(host);
+
+        if (hostRequestCount != null && hostRequestCount > 1) {
+            _hostRequestCounts.put(host, hostRequestCount - 1);
+        }
+        else {
+            _hostRequestCounts.remove(host);
+        }
+    }
+
+    private String getHost(Request request) {
+        String host = Uri.parse(request.getUrl()).getHost();
+        return host != null ? host.toLowerCase(Locale.US) : "";
+    }
+}
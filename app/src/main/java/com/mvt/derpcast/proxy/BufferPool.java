@@ -0,0 +1,35 @@
+package com.mvt.derpcast.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Direct buffers for copying between channels, reused so streaming doesn't allocate per request.
+ */
+public class BufferPool {
+
+    private final int _bufferSize;
+    private final int _maxPooled;
+    private final LinkedList<ByteBuffer> _buffers = new LinkedList<ByteBuffer>();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        _bufferSize = bufferSize;
+        _maxPooled = maxPooled;
+    }
+
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = _buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(_bufferSize);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer != null && _buffers.size() < _maxPooled) {
+            _buffers.add(buffer);
+        }
+    }
+}
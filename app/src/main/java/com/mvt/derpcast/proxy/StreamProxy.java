@@ -0,0 +1,475 @@
+package com.mvt.derpcast.proxy;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HTTP server on the local network that renderers fetch media through, instead of from the
+ * site it was found on. It adds the referrer and cookies the site expects, follows redirects,
+ * speaks plain http towards the renderer and serves ranges from a read ahead disk cache.
+ */
+public class StreamProxy {
+
+    static final String PATH = "/stream/";
+    static final int MAX_SOURCES = 4;
+    static final int MAX_HEADER_LENGTH = 16 * 1024;
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int MAX_POOLED_BUFFERS = 8;
+
+    private static final String TAG = "StreamProxy";
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    private static final Pattern FILE_NAME_PATTERN = Pattern.compile("[^/?#]+(?=[?#]|$)");
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final File _cacheDirectory;
+    private final BufferPool _bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private final Map<String, StreamSource> _sources = new HashMap<String, StreamSource>();
+
+    // Most recently played last, so the oldest source is closed when there are too many
+    private final LinkedHashMap<String, String> _sourceIds = new LinkedHashMap<String, String>(MAX_SOURCES, 0.75f, true);
+
+    // Deletes caches in the background, as stopping happens on the main thread
+    private final ExecutorService _cleanupExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "StreamProxy cleanup");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private ServerSocketChannel _serverChannel;
+    private ExecutorService _executor;
+    private InetAddress _address;
+    private File _sessionDirectory;
+
+    public StreamProxy(File cacheDirectory) {
+        _cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Starts listening on the given address of this device, if not listening already.
+     */
+    public synchronized void start(InetAddress address) throws IOException {
+        _address = address;
+
+        if (_serverChannel != null) {
+            return;
+        }
+
+        // Caches of earlier runs are left behind when the process is killed while streaming
+        final File sessionDirectory = new File(_cacheDirectory, newId());
+        _sessionDirectory = sessionDirectory;
+        _cleanupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = _cacheDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (!file.equals(sessionDirectory)) {
+                            deleteFiles(file);
+                        }
+                    }
+                }
+            }
+        });
+
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.socket().bind(new InetSocketAddress(0));
+        _executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "StreamProxy connection");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        final ServerSocketChannel serverChannel = _serverChannel;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop(serverChannel);
+            }
+        }, "StreamProxy");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        clear();
+
+        if (_serverChannel != null) {
+            try {
+                _serverChannel.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            _serverChannel = null;
+            _executor.shutdown();
+            _executor = null;
+        }
+    }
+
+    /**
+     * Returns the URL a renderer can fetch the media from through the proxy. The same media
+     * keeps its URL and cache for as long as it is one of the last few registered.
+     *
+     * @param headers Request headers the origin expects, like Referer, Cookie and User-Agent
+     */
+    public synchronized String getProxyUrl(String url, String mimeType, Map<String, String> headers) {
+        if (_serverChannel == null) {
+            throw new IllegalStateException("StreamProxy not started");
+        }
+
+        String id = _sourceIds.get(url);
+        if (id == null) {
+            // Anyone on the network can reach the proxy, the id keeps them from guessing the media
+            id = newId();
+            _sources.put(id, new StreamSource(url, mimeType, headers, new File(_sessionDirectory, id), _bufferPool));
+            _sourceIds.put(url, id);
+
+            Iterator<Map.Entry<String, String>> iterator = _sourceIds.entrySet().iterator();
+            while (_sourceIds.size() > MAX_SOURCES) {
+                closeSource(iterator.next().getValue());
+                iterator.remove();
+            }
+        }
+
+        Matcher matcher = FILE_NAME_PATTERN.matcher(url);
+        String fileName = matcher.find() ? matcher.group().replaceAll("[^A-Za-z0-9._-]", "_") : "media";
+
+        return "http://" + _address.getHostAddress() + ":" + _serverChannel.socket().getLocalPort() + PATH + id + "/" + fileName;
+    }
+
+    /**
+     * Throughput and stalls of the media behind a URL from getProxyUrl, or null when the
+     * media is no longer served.
+     */
+    public synchronized StreamStats getStats(String url) {
+        String id = _sourceIds.get(url);
+        StreamSource source = id != null ? _sources.get(id) : null;
+
+        return source != null ? source.stats : null;
+    }
+
+    /**
+     * Closes all media. Their caches are deleted in the background.
+     */
+    public synchronized void clear() {
+        for (String id : _sourceIds.values()) {
+            closeSource(id);
+        }
+
+        _sourceIds.clear();
+    }
+
+    private void closeSource(String id) {
+        final StreamSource source = _sources.remove(id);
+        if (source != null) {
+            source.close();
+            Log.i(TAG, source.url + ": " + source.stats);
+
+            _cleanupExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    source.deleteCache();
+                }
+            });
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel serverChannel) {
+        while (true) {
+            final SocketChannel channel;
+
+            try {
+                channel = serverChannel.accept();
+            }
+            catch (IOException e) {
+                // Closed by stop
+                return;
+            }
+
+            ExecutorService executor;
+            synchronized (this) {
+                executor = _executor;
+            }
+
+            if (executor == null) {
+                close(channel);
+                return;
+            }
+
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handle(channel);
+                        }
+                        catch (IOException e) {
+                            // Renderers close connections they no longer need all the time
+                        }
+                        finally {
+                            close(channel);
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                // Stopped meanwhile
+                close(channel);
+                return;
+            }
+        }
+    }
+
+    private void handle(SocketChannel channel) throws IOException {
+        String[] lines = readHeader(channel);
+        String[] requestLine = lines[0].split(" ");
+        Map<String, String> headers = new HashMap<String, String>();
+
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US), lines[i].substring(colon + 1).trim());
+            }
+        }
+
+        if (requestLine.length < 2) {
+            respond(channel, "400 Bad Request", null);
+            return;
+        }
+
+        String method = requestLine[0];
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            respond(channel, "405 Method Not Allowed", null);
+            return;
+        }
+
+        StreamSource source = null;
+        String path = requestLine[1];
+        if (path.startsWith(PATH)) {
+            int slash = path.indexOf('/', PATH.length());
+            String id = path.substring(PATH.length(), slash > 0 ? slash : path.length());
+
+            synchronized (this) {
+                source = _sources.get(id);
+            }
+        }
+
+        if (source == null) {
+            respond(channel, "404 Not Found", null);
+            return;
+        }
+
+        source.stats.addRequest();
+
+        try {
+            source.open();
+        }
+        catch (IOException e) {
+            respond(channel, "502 Bad Gateway", null);
+            throw e;
+        }
+
+        Map<String, String> responseHeaders = new LinkedHashMap<String, String>();
+        responseHeaders.put("Content-Type", source.getContentType());
+
+        // DLNA renderers ask whether they may seek, and won't without this answer
+        if ("1".equals(headers.get("getcontentfeatures.dlna.org"))) {
+            responseHeaders.put("contentFeatures.dlna.org", source.isCached() ? "DLNA.ORG_OP=01;DLNA.ORG_CI=0" : "DLNA.ORG_OP=00;DLNA.ORG_CI=0");
+        }
+        responseHeaders.put("transferMode.dlna.org", "Streaming");
+
+        if (source.isCached()) {
+            serveCached(channel, source, method, headers.get("range"), responseHeaders);
+        }
+        else {
+            serveRelayed(channel, source, method, headers.get("range"), responseHeaders);
+        }
+    }
+
+    private void serveCached(SocketChannel channel, StreamSource source, String method, String range, Map<String, String> responseHeaders) throws IOException {
+        long length = source.getLength();
+        long start = 0;
+        long end = length - 1;
+        String status = "200 OK";
+
+        Matcher matcher = range != null ? RANGE_PATTERN.matcher(range.trim()) : null;
+        if (matcher != null && matcher.matches() && (matcher.group(1).length() > 0 || matcher.group(2).length() > 0)) {
+            try {
+                if (matcher.group(1).length() == 0) {
+                    // Suffix range, the last bytes
+                    start = Math.max(0, length - Long.parseLong(matcher.group(2)));
+                }
+                else {
+                    start = Long.parseLong(matcher.group(1));
+                    if (matcher.group(2).length() > 0) {
+                        end = Math.min(end, Long.parseLong(matcher.group(2)));
+                    }
+                }
+            }
+            catch (NumberFormatException e) {
+                start = length;
+            }
+
+            if (start >= length || start > end) {
+                responseHeaders.put("Content-Range", "bytes */" + length);
+                responseHeaders.put("Content-Length", "0");
+                respond(channel, "416 Requested Range Not Satisfiable", responseHeaders);
+                return;
+            }
+
+            status = "206 Partial Content";
+            responseHeaders.put("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+
+        responseHeaders.put("Accept-Ranges", "bytes");
+        responseHeaders.put("Content-Length", String.valueOf(end - start + 1));
+        respond(channel, status, responseHeaders);
+
+        if (method.equals("GET")) {
+            source.serve(start, end, channel);
+        }
+    }
+
+    private void serveRelayed(SocketChannel channel, StreamSource source, String method, String range, Map<String, String> responseHeaders) throws IOException {
+        long start = 0;
+        long end = -1;
+
+        Matcher matcher = range != null ? RANGE_PATTERN.matcher(range.trim()) : null;
+        if (matcher != null && matcher.matches() && matcher.group(1).length() > 0) {
+            start = Long.parseLong(matcher.group(1));
+            end = matcher.group(2).length() > 0 ? Long.parseLong(matcher.group(2)) : -1;
+        }
+
+        HttpURLConnection connection = source.connect(start, end);
+
+        try {
+            int status = connection.getResponseCode();
+            if (status == 416) {
+                respond(channel, "416 Requested Range Not Satisfiable", null);
+                return;
+            }
+
+            if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+                respond(channel, "502 Bad Gateway", null);
+                return;
+            }
+
+            String[] passedHeaders = { "Content-Length", "Content-Range", "Accept-Ranges" };
+            for (String header : passedHeaders) {
+                String value = connection.getHeaderField(header);
+                if (value != null) {
+                    responseHeaders.put(header, value);
+                }
+            }
+
+            respond(channel, status == HttpURLConnection.HTTP_PARTIAL ? "206 Partial Content" : "200 OK", responseHeaders);
+
+            if (method.equals("GET")) {
+                source.relay(Channels.newChannel(connection.getInputStream()), channel);
+            }
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String[] readHeader(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_LENGTH);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed in request header");
+            }
+
+            String header = new String(buffer.array(), 0, buffer.position(), "ISO-8859-1");
+            int end = header.indexOf("\r\n\r\n");
+            if (end >= 0) {
+                // Media requests have no body, anything after the header is ignored
+                return header.substring(0, end).split("\r\n");
+            }
+        }
+
+        throw new IOException("Request header too long");
+    }
+
+    private static void respond(SocketChannel channel, String status, Map<String, String> headers) throws IOException {
+        StringBuilder response = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                response.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        else {
+            response.append("Content-Length: 0\r\n");
+        }
+
+        response.append("Connection: close\r\n\r\n");
+
+        ByteBuffer buffer = ByteBuffer.wrap(response.toString().getBytes("ISO-8859-1"));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void deleteFiles(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteFiles(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private static String newId() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+
+        StringBuilder id = new StringBuilder();
+        for (byte b : bytes) {
+            id.append(String.format(Locale.US, "%02x", b & 0xff));
+        }
+
+        return id.toString();
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,676 @@
+package com.mvt.derpcast.proxy;
+
+import android.os.SystemClock;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One origin URL served by the StreamProxy. When the origin supports ranges, every request
+ * is served from a disk cache of fixed size segments that a fetcher per request fills ahead
+ * of the renderer, so a slow origin is absorbed by the read ahead instead of stalling the
+ * renderer. Other origins are relayed as they are.
+ *
+ * Every cached segment is a file of its own, deleted when the segment is evicted. Bytes sent
+ * with transferTo may still be on their way from the page cache after the call returns, so
+ * a file region that was sent from is never written again.
+ */
+class StreamSource {
+
+    static final int SEGMENT_SIZE = 1024 * 1024;
+    static final int CACHE_SEGMENTS = 12;
+    static final int READ_AHEAD_SEGMENTS = 8;
+    static final int CONNECT_TIMEOUT = 15000;
+    static final int READ_TIMEOUT = 30000;
+    static final int MAX_REDIRECTS = 5;
+    static final int MAX_RETRIES = 3;
+    static final int RETRY_DELAY = 1000;
+
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes\\s+\\d+-\\d+/(\\d+)");
+
+    final String url;
+    final String mimeType;
+    final StreamStats stats = new StreamStats();
+
+    private final Map<String, String> _headers;
+    private final File _cacheDirectory;
+    private final BufferPool _bufferPool;
+
+    // Held while the origin is asked about the media, so only one request asks
+    private final Object _openLock = new Object();
+    private boolean _opened;
+    private long _length = -1;
+    private boolean _acceptsRanges;
+    private String _contentType;
+
+    private boolean _closed;
+    private int _nextFileId;
+
+    // Cache slots: the segment each holds (-1 when free), its file, how many bytes of it are
+    // on disk, how many readers and fetchers are using it and when it was last read
+    private final long[] _slotSegments = new long[CACHE_SEGMENTS];
+    private final File[] _slotFiles = new File[CACHE_SEGMENTS];
+    private final RandomAccessFile[] _slotAccess = new RandomAccessFile[CACHE_SEGMENTS];
+    private final int[] _slotFilled = new int[CACHE_SEGMENTS];
+    private final int[] _slotPins = new int[CACHE_SEGMENTS];
+    private final long[] _slotUsed = new long[CACHE_SEGMENTS];
+    private final List<Reader> _readers = new ArrayList<Reader>();
+
+    StreamSource(String url, String mimeType, Map<String, String> headers, File cacheDirectory, BufferPool bufferPool) {
+        this.url = url;
+        this.mimeType = mimeType;
+        _headers = headers;
+        _cacheDirectory = cacheDirectory;
+        _bufferPool = bufferPool;
+
+        Arrays.fill(_slotSegments, -1);
+    }
+
+    /**
+     * Asks the origin for the first byte, to learn the length and whether it serves ranges.
+     * Only the first request for the source waits for this. The source itself isn't locked
+     * meanwhile, so closing it never waits for the origin.
+     */
+    void open() throws IOException {
+        synchronized (_openLock) {
+            synchronized (this) {
+                if (_closed) {
+                    throw new IOException("Stream closed");
+                }
+
+                if (_opened) {
+                    return;
+                }
+            }
+
+            long length = -1;
+            boolean acceptsRanges = false;
+            String contentType = null;
+
+            HttpURLConnection connection = connect(0, 0);
+            try {
+                int status = connection.getResponseCode();
+                contentType = connection.getContentType();
+
+                if (status == HttpURLConnection.HTTP_PARTIAL) {
+                    Matcher matcher = CONTENT_RANGE_PATTERN.matcher(String.valueOf(connection.getHeaderField("Content-Range")));
+                    if (matcher.matches()) {
+                        length = Long.parseLong(matcher.group(1));
+                        acceptsRanges = true;
+                    }
+                }
+                else if (status == HttpURLConnection.HTTP_OK) {
+                    String contentLength = connection.getHeaderField("Content-Length");
+                    length = contentLength != null ? Long.parseLong(contentLength) : -1;
+                }
+                else {
+                    throw new IOException("Origin responded " + status);
+                }
+            }
+            catch (NumberFormatException e) {
+                length = -1;
+                acceptsRanges = false;
+            }
+            finally {
+                connection.disconnect();
+            }
+
+            if (acceptsRanges && length > 0 && !_cacheDirectory.isDirectory() && !_cacheDirectory.mkdirs()) {
+                throw new IOException("Can't create " + _cacheDirectory);
+            }
+
+            synchronized (this) {
+                if (_closed) {
+                    throw new IOException("Stream closed");
+                }
+
+                _length = length;
+                _acceptsRanges = acceptsRanges;
+                _contentType = contentType;
+                _opened = true;
+            }
+        }
+    }
+
+    /**
+     * Whether requests are served from the cache, which needs an origin that serves ranges.
+     */
+    synchronized boolean isCached() {
+        return _acceptsRanges && _length > 0;
+    }
+
+    synchronized long getLength() {
+        return _length;
+    }
+
+    synchronized String getContentType() {
+        return _contentType != null && !_contentType.startsWith("text/") ? _contentType : mimeType;
+    }
+
+    /**
+     * Ends all requests for the source. The cache is left for deleteCache.
+     */
+    synchronized void close() {
+        if (_closed) {
+            return;
+        }
+
+        _closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Deletes the cached segments of a closed source. Does disk I/O, so not meant for the
+     * main thread.
+     */
+    synchronized void deleteCache() {
+        for (int i = 0; i < CACHE_SEGMENTS; i++) {
+            deleteSlotFile(i);
+        }
+
+        _cacheDirectory.delete();
+    }
+
+    /**
+     * Opens a connection to the origin for the given bytes, following redirects between
+     * http and https too. An end of -1 asks for everything from start.
+     */
+    HttpURLConnection connect(long start, long end) throws IOException {
+        String location = url;
+
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(location).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setInstanceFollowRedirects(false);
+
+            for (Map.Entry<String, String> header : _headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            if (start > 0 || end >= 0) {
+                connection.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? end : ""));
+            }
+
+            int status = connection.getResponseCode();
+            if (status < 300 || status >= 400 || status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return connection;
+            }
+
+            String redirect = connection.getHeaderField("Location");
+            connection.disconnect();
+
+            if (redirect == null) {
+                throw new IOException("Redirect without location from " + location);
+            }
+
+            location = new URL(new URL(location), redirect).toString();
+        }
+
+        throw new IOException("Too many redirects from " + url);
+    }
+
+    /**
+     * Copies bytes start to end (inclusive) from the cache to the renderer, while a fetcher
+     * fills the cache ahead of it.
+     */
+    void serve(long start, long end, WritableByteChannel out) throws IOException {
+        Reader reader = new Reader(start / SEGMENT_SIZE, end / SEGMENT_SIZE);
+
+        synchronized (this) {
+            _readers.add(reader);
+        }
+
+        Thread fetcher = new Thread(new Fetcher(reader), "StreamProxy fetcher");
+        fetcher.setDaemon(true);
+        fetcher.start();
+
+        try {
+            long position = start;
+
+            while (position <= end) {
+                long segment = position / SEGMENT_SIZE;
+                int offset = (int) (position - segment * SEGMENT_SIZE);
+                int slot;
+                int available;
+                boolean cached;
+
+                synchronized (this) {
+                    reader.segment = segment;
+                    notifyAll();
+
+                    long waitStart = SystemClock.elapsedRealtime();
+                    cached = true;
+
+                    while ((slot = findSlot(segment)) < 0 || _slotFilled[slot] <= offset) {
+                        if (_closed) {
+                            throw new IOException("Stream closed");
+                        }
+
+                        if (reader.failure != null) {
+                            throw reader.failure;
+                        }
+
+                        long waited = SystemClock.elapsedRealtime() - waitStart;
+                        if (waited >= READ_TIMEOUT) {
+                            throw new SocketTimeoutException("No data from origin in " + waited + "ms");
+                        }
+
+                        cached = false;
+                        waitInterruptibly(READ_TIMEOUT - waited);
+                    }
+
+                    stats.addWait(SystemClock.elapsedRealtime() - waitStart);
+
+                    _slotPins[slot]++;
+                    _slotUsed[slot] = SystemClock.elapsedRealtime();
+                    available = _slotFilled[slot] - offset;
+                }
+
+                try {
+                    long count = Math.min(available, end - position + 1);
+                    transfer(slot, offset, count, out);
+
+                    position += count;
+                    stats.addServedBytes(count, cached);
+                }
+                finally {
+                    unpin(slot);
+                }
+            }
+        }
+        finally {
+            synchronized (this) {
+                reader.stopped = true;
+                _readers.remove(reader);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Relays the origin response body as it is, through a pooled buffer.
+     */
+    void relay(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        ByteBuffer buffer = _bufferPool.acquire();
+
+        try {
+            while (true) {
+                long waitStart = SystemClock.elapsedRealtime();
+                int count = in.read(buffer);
+                stats.addWait(SystemClock.elapsedRealtime() - waitStart);
+
+                if (count < 0) {
+                    break;
+                }
+
+                stats.addOriginBytes(count);
+
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+
+                stats.addServedBytes(count, false);
+            }
+        }
+        finally {
+            _bufferPool.release(buffer);
+        }
+    }
+
+    private void transfer(int slot, long position, long count, WritableByteChannel out) throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            if (_closed) {
+                throw new IOException("Stream closed");
+            }
+
+            channel = _slotAccess[slot].getChannel();
+        }
+
+        // Straight from the file to the socket, without copying through the heap
+        while (count > 0) {
+            long sent = channel.transferTo(position, count, out);
+            if (sent <= 0) {
+                throw new EOFException("Cache file ended at " + position);
+            }
+
+            position += sent;
+            count -= sent;
+        }
+    }
+
+    /**
+     * Gives the slot a new, empty file. Its name is never used again, as a dropped segment may
+     * still be read from while the same segment is fetched again.
+     */
+    private void createSlotFile(int slot) throws IOException {
+        deleteSlotFile(slot);
+
+        _slotFiles[slot] = new File(_cacheDirectory, String.valueOf(++_nextFileId));
+        _slotAccess[slot] = new RandomAccessFile(_slotFiles[slot], "rw");
+    }
+
+    private void deleteSlotFile(int slot) {
+        if (_slotAccess[slot] != null) {
+            try {
+                _slotAccess[slot].close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            _slotAccess[slot] = null;
+        }
+
+        if (_slotFiles[slot] != null) {
+            _slotFiles[slot].delete();
+            _slotFiles[slot] = null;
+        }
+    }
+
+    private synchronized void unpin(int slot) {
+        _slotPins[slot]--;
+        notifyAll();
+    }
+
+    private int findSlot(long segment) {
+        for (int i = 0; i < CACHE_SEGMENTS; i++) {
+            if (_slotSegments[i] == segment) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private int getSegmentSize(long segment) {
+        return (int) Math.min(SEGMENT_SIZE, _length - segment * SEGMENT_SIZE);
+    }
+
+    /**
+     * How far the segment is ahead of the closest reader that will need it, -1 when no
+     * reader will.
+     */
+    private long getReadAheadDistance(long segment) {
+        long distance = -1;
+
+        for (Reader reader : _readers) {
+            long d = segment - reader.segment;
+            if (d >= 0 && d < READ_AHEAD_SEGMENTS && segment <= reader.lastSegment && (distance < 0 || d < distance)) {
+                distance = d;
+            }
+        }
+
+        return distance;
+    }
+
+    /**
+     * Picks a slot for a segment the given distance ahead of its reader: a free one, else the
+     * least recently used segment no reader needs, else a segment further ahead of its reader.
+     */
+    private int allocateSlot(long distance) {
+        int victim = -1;
+
+        // A dropped segment may still be read from up to where it was filled
+        for (int i = 0; i < CACHE_SEGMENTS; i++) {
+            if (_slotSegments[i] < 0 && _slotPins[i] == 0) {
+                return i;
+            }
+        }
+
+        for (int i = 0; i < CACHE_SEGMENTS; i++) {
+            if (_slotPins[i] == 0 && getReadAheadDistance(_slotSegments[i]) < 0 &&
+                    (victim < 0 || _slotUsed[i] < _slotUsed[victim])) {
+                victim = i;
+            }
+        }
+
+        if (victim >= 0) {
+            return victim;
+        }
+
+        long victimDistance = distance;
+        for (int i = 0; i < CACHE_SEGMENTS; i++) {
+            long d = getReadAheadDistance(_slotSegments[i]);
+            if (_slotPins[i] == 0 && d > victimDistance) {
+                victim = i;
+                victimDistance = d;
+            }
+        }
+
+        return victim;
+    }
+
+    private void waitInterruptibly(long timeout) throws IOException {
+        try {
+            wait(Math.max(1, timeout));
+        }
+        catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private static class Reader {
+        final long lastSegment;
+        long segment;
+        boolean stopped;
+        IOException failure;
+
+        Reader(long segment, long lastSegment) {
+            this.segment = segment;
+            this.lastSegment = lastSegment;
+        }
+    }
+
+    /**
+     * Keeps the segments from the segment its reader is at up to the read ahead on disk,
+     * reading them from one origin connection as long as they follow each other. The
+     * connection is closed while the read ahead is full.
+     */
+    private class Fetcher implements Runnable {
+        private final Reader _reader;
+        private HttpURLConnection _connection;
+        private ReadableByteChannel _in;
+        private long _connectionPosition = -1;
+
+        Fetcher(Reader reader) {
+            _reader = reader;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = _bufferPool.acquire();
+
+            try {
+                while (true) {
+                    long segment;
+                    int slot;
+                    FileChannel file;
+
+                    synchronized (StreamSource.this) {
+                        while (true) {
+                            if (_reader.stopped || _closed) {
+                                return;
+                            }
+
+                            segment = getMissingSegment();
+                            slot = segment >= 0 ? allocateSlot(segment - _reader.segment) : -1;
+
+                            if (slot >= 0 || _connection != null) {
+                                break;
+                            }
+
+                            waitInterruptibly(READ_TIMEOUT);
+                        }
+
+                        if (slot >= 0) {
+                            _slotSegments[slot] = -1;
+                            createSlotFile(slot);
+
+                            _slotSegments[slot] = segment;
+                            _slotFilled[slot] = 0;
+                            _slotPins[slot]++;
+                            _slotUsed[slot] = SystemClock.elapsedRealtime();
+                            file = _slotAccess[slot].getChannel();
+                        }
+                        else {
+                            file = null;
+                        }
+                    }
+
+                    if (slot < 0) {
+                        // The read ahead is full, an idle connection would only be timed out by the origin
+                        disconnect();
+                        continue;
+                    }
+
+                    try {
+                        fill(segment, slot, file, buffer);
+                    }
+                    finally {
+                        synchronized (StreamSource.this) {
+                            // A segment left incomplete is fetched again by whoever needs it
+                            if (_slotFilled[slot] < getSegmentSize(segment) && _slotSegments[slot] == segment) {
+                                _slotSegments[slot] = -1;
+                            }
+
+                            _slotPins[slot]--;
+                            StreamSource.this.notifyAll();
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                synchronized (StreamSource.this) {
+                    if (!_reader.stopped && !_closed) {
+                        _reader.failure = e;
+                        StreamSource.this.notifyAll();
+                    }
+                }
+            }
+            finally {
+                disconnect();
+                _bufferPool.release(buffer);
+            }
+        }
+
+        /**
+         * Reads the segment from the origin into the file of its slot. A connection that breaks
+         * off, like one the origin closed while the read ahead was full, is reopened where it
+         * ended a few times before the reader is failed.
+         */
+        private void fill(long segment, int slot, FileChannel file, ByteBuffer buffer) throws IOException {
+            long start = segment * SEGMENT_SIZE;
+            int size = getSegmentSize(segment);
+            int filled = 0;
+            int retries = 0;
+
+            while (filled < size) {
+                try {
+                    if (_connectionPosition != start + filled) {
+                        connect(start + filled);
+                    }
+
+                    buffer.clear();
+                    buffer.limit(Math.min(buffer.capacity(), size - filled));
+
+                    int count = _in.read(buffer);
+                    if (count < 0) {
+                        throw new EOFException("Origin ended at " + _connectionPosition);
+                    }
+
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        file.write(buffer, filled + buffer.position());
+                    }
+
+                    filled += count;
+                    _connectionPosition += count;
+                    retries = 0;
+                    stats.addOriginBytes(count);
+
+                    synchronized (StreamSource.this) {
+                        _slotFilled[slot] = filled;
+                        StreamSource.this.notifyAll();
+                    }
+                }
+                catch (IOException e) {
+                    disconnect();
+
+                    synchronized (StreamSource.this) {
+                        if (++retries > MAX_RETRIES || _reader.stopped || _closed) {
+                            throw e;
+                        }
+                    }
+
+                    try {
+                        // A connection the origin closed is reopened right away, other failures back off
+                        Thread.sleep(RETRY_DELAY * (retries - 1));
+                    }
+                    catch (InterruptedException e1) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        private void connect(long position) throws IOException {
+            disconnect();
+
+            // From the start the whole body is asked for, which the origin may send as is
+            _connection = StreamSource.this.connect(position, -1);
+            int status = _connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_PARTIAL && (status != HttpURLConnection.HTTP_OK || position > 0)) {
+                throw new IOException("Origin responded " + status + " to a range request");
+            }
+
+            _in = Channels.newChannel(_connection.getInputStream());
+            _connectionPosition = position;
+        }
+
+        private void disconnect() {
+            if (_connection != null) {
+                _connection.disconnect();
+                _connection = null;
+                _in = null;
+            }
+
+            _connectionPosition = -1;
+        }
+
+        /**
+         * First segment of the read ahead that is neither on disk nor being fetched, -1 when
+         * there is none.
+         */
+        private long getMissingSegment() {
+            long last = Math.min(_reader.lastSegment, _reader.segment + READ_AHEAD_SEGMENTS - 1);
+
+            for (long segment = _reader.segment; segment <= last; segment++) {
+                if (findSlot(segment) < 0) {
+                    return segment;
+                }
+            }
+
+            return -1;
+        }
+    }
+}
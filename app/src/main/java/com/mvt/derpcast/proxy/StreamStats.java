@@ -0,0 +1,106 @@
+package com.mvt.derpcast.proxy;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * Throughput and stall counters of one proxied media stream, over all requests for it.
+ */
+public class StreamStats {
+
+    // Waits for the origin shorter than this are not noticeable to a renderer with its own buffer
+    static final long STALL_THRESHOLD = 200;
+
+    private final long _startTime = SystemClock.elapsedRealtime();
+    private long _originBytes;
+    private long _servedBytes;
+    private long _cachedBytes;
+    private int _requests;
+    private int _stalls;
+    private long _stallTime;
+    private long _longestStall;
+
+    synchronized void addRequest() {
+        _requests++;
+    }
+
+    synchronized void addOriginBytes(long count) {
+        _originBytes += count;
+    }
+
+    /**
+     * @param cached Whether the bytes were on disk before the renderer asked for them
+     */
+    synchronized void addServedBytes(long count, boolean cached) {
+        _servedBytes += count;
+        if (cached) {
+            _cachedBytes += count;
+        }
+    }
+
+    synchronized void addWait(long time) {
+        if (time >= STALL_THRESHOLD) {
+            _stalls++;
+            _stallTime += time;
+            _longestStall = Math.max(_longestStall, time);
+        }
+    }
+
+    public synchronized int getRequests() {
+        return _requests;
+    }
+
+    public synchronized long getOriginBytes() {
+        return _originBytes;
+    }
+
+    public synchronized long getServedBytes() {
+        return _servedBytes;
+    }
+
+    public synchronized long getCachedBytes() {
+        return _cachedBytes;
+    }
+
+    public synchronized int getStalls() {
+        return _stalls;
+    }
+
+    public synchronized long getStallTime() {
+        return _stallTime;
+    }
+
+    public synchronized long getLongestStall() {
+        return _longestStall;
+    }
+
+    /**
+     * Bytes per second served to renderers since the stream was registered.
+     */
+    public synchronized long getServedThroughput() {
+        return perSecond(_servedBytes);
+    }
+
+    /**
+     * Bytes per second read from the origin since the stream was registered.
+     */
+    public synchronized long getOriginThroughput() {
+        return perSecond(_originBytes);
+    }
+
+    private long perSecond(long bytes) {
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - _startTime);
+        return bytes * 1000 / elapsed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int cachedPercent = _servedBytes > 0 ? (int) (_cachedBytes * 100 / _servedBytes) : 0;
+
+        return String.format(Locale.US,
+                "%d requests, served %dkB (%d%% from cache) at %dkB/s, origin %dkB at %dkB/s, %d stalls %dms (longest %dms)",
+                _requests, _servedBytes / 1024, cachedPercent, perSecond(_servedBytes) / 1024,
+                _originBytes / 1024, perSecond(_originBytes) / 1024, _stalls, _stallTime, _longestStall);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * TaskScheduler
+ * Connect SDK
+ *
+ * Copyright (c) 2014 LG Electronics.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.connectsdk.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs background work on separate bounded lanes, so a burst of discovery fetches or
+ * store writes cannot delay a user's play/pause command. No task is ever dropped: when a
+ * lane's queue is full the caller runs the task itself.
+ */
+public final class TaskScheduler {
+	public enum Lane {
+		/** Commands sent on behalf of the user. Never dropped; when the queue is full the caller runs the command itself. */
+		CONTROL("Connect SDK Control", 4, 256, Thread.NORM_PRIORITY),
+		/**
+		 * Device description fetches and other discovery I/O. Some of these tasks undo state on completion
+		 * (a service marked as being fetched, a device marked as probable) or release resources, so they
+		 * are never dropped either; the queue is large enough that the caller rarely runs one.
+		 */
+		DISCOVERY("Connect SDK Discovery", 4, 256, Thread.NORM_PRIORITY - 2),
+		/** Writing state to disk. Journal writes must not be lost, so like CONTROL the caller runs the write when the queue is full. */
+		PERSISTENCE("Connect SDK Persistence", 1, 8, Thread.MIN_PRIORITY);
+
+		final String threadName;
+		final int threads;
+		final int capacity;
+		final int priority;
+
+		Lane(String threadName, int threads, int capacity, int priority) {
+			this.threadName = threadName;
+			this.threads = threads;
+			this.capacity = capacity;
+			this.priority = priority;
+		}
+	}
+
+	/**
+	 * Snapshot of the counters of one lane.
+	 */
+	public static class Stats {
+		public final Lane lane;
+		public final int queueDepth;
+		public final int maxQueueDepth;
+		public final int activeCount;
+		public final long submitted;
+		public final long completed;
+		public final long overflowed;
+		public final long averageWaitMillis;
+		public final long maxWaitMillis;
+		public final long averageRunMillis;
+
+		Stats(LaneExecutor executor) {
+			lane = executor.lane;
+			queueDepth = executor.getQueue().size();
+			maxQueueDepth = executor.maxQueueDepth.get();
+			activeCount = executor.getActiveCount();
+			submitted = executor.submitted.get();
+			completed = executor.completed.get();
+			overflowed = executor.overflowed.get();
+			maxWaitMillis = executor.maxWaitMillis.get();
+
+			long started = executor.started.get();
+			averageWaitMillis = started > 0 ? executor.totalWaitMillis.get() / started : 0;
+			averageRunMillis = completed > 0 ? executor.totalRunMillis.get() / completed : 0;
+		}
+
+		@Override
+		public String toString() {
+			return lane + ": queue=" + queueDepth + " (max " + maxQueueDepth + "), active=" + activeCount
+					+ ", submitted=" + submitted + ", completed=" + completed + ", overflowed=" + overflowed
+					+ ", wait=" + averageWaitMillis + "ms (max " + maxWaitMillis + "ms), run=" + averageRunMillis + "ms";
+		}
+	}
+
+	private static final LaneExecutor[] executors = new LaneExecutor[Lane.values().length];
+
+	static {
+		for (Lane lane : Lane.values()) {
+			executors[lane.ordinal()] = new LaneExecutor(lane);
+		}
+	}
+
+	private TaskScheduler() { }
+
+	public static void execute(Lane lane, Runnable runnable) {
+		getExecutor(lane).execute(runnable);
+	}
+
+	public static Executor getExecutor(Lane lane) {
+		return executors[lane.ordinal()];
+	}
+
+	public static Stats getStats(Lane lane) {
+		return new Stats(executors[lane.ordinal()]);
+	}
+
+	static class LaneExecutor extends ThreadPoolExecutor {
+		final Lane lane;
+		final AtomicLong submitted = new AtomicLong();
+		final AtomicLong started = new AtomicLong();
+		final AtomicLong completed = new AtomicLong();
+		final AtomicLong overflowed = new AtomicLong();
+		final AtomicLong totalWaitMillis = new AtomicLong();
+		final AtomicLong maxWaitMillis = new AtomicLong();
+		final AtomicLong totalRunMillis = new AtomicLong();
+		final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+		LaneExecutor(final Lane lane) {
+			super(lane.threads, lane.threads, 30, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(lane.capacity), new ThreadFactory() {
+				AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread th = new Thread(r);
+					th.setName(lane.threadName + " " + count.incrementAndGet());
+					th.setPriority(lane.priority);
+					return th;
+				}
+			}, new CallerRunsHandler());
+
+			this.lane = lane;
+			allowCoreThreadTimeOut(true);
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			submitted.incrementAndGet();
+			super.execute(new TimedTask(command));
+
+			int depth = getQueue().size();
+			int max = maxQueueDepth.get();
+			while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+				max = maxQueueDepth.get();
+			}
+		}
+
+		@Override
+		protected void beforeExecute(Thread t, Runnable r) {
+			super.beforeExecute(t, r);
+
+			TimedTask task = (TimedTask) r;
+			task.started = System.currentTimeMillis();
+
+			long wait = task.started - task.queued;
+			started.incrementAndGet();
+			totalWaitMillis.addAndGet(wait);
+
+			long max = maxWaitMillis.get();
+			while (wait > max && !maxWaitMillis.compareAndSet(max, wait)) {
+				max = maxWaitMillis.get();
+			}
+		}
+
+		@Override
+		protected void afterExecute(Runnable r, Throwable t) {
+			super.afterExecute(r, t);
+
+			TimedTask task = (TimedTask) r;
+			completed.incrementAndGet();
+			totalRunMillis.addAndGet(System.currentTimeMillis() - task.started);
+		}
+	}
+
+	static class TimedTask implements Runnable {
+		final Runnable runnable;
+		final long queued = System.currentTimeMillis();
+		long started;
+
+		TimedTask(Runnable runnable) {
+			this.runnable = runnable;
+		}
+
+		@Override
+		public void run() {
+			runnable.run();
+		}
+	}
+
+	static class CallerRunsHandler implements RejectedExecutionHandler {
+
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			LaneExecutor laneExecutor = (LaneExecutor) executor;
+
+			if (executor.isShutdown())
+				return;
+
+			laneExecutor.overflowed.incrementAndGet();
+			// The main thread must not block on a command, it gets a thread of its own instead
+			if (Util.isMain()) {
+				Thread th = new Thread(r, laneExecutor.lane.threadName + " overflow");
+				th.setPriority(laneExecutor.lane.priority);
+				th.start();
+			} else {
+				r.run();
+			}
+		}
+	}
+}
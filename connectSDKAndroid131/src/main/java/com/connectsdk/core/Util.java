@@ -36,24 +36,12 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Date;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 public final class Util {
 	static public String T = "Connect SDK";
 	static private Handler handler;
-	static private final int NUM_OF_THREADS = 20;
 
-	static private Executor executor = Executors.newFixedThreadPool(NUM_OF_THREADS, new ThreadFactory() {
-		@Override
-		public Thread newThread(Runnable r) {
-			Thread th = new Thread(r);
-			th.setName("2nd Screen BG");
-			return th;
-		}
-	});
-	
 	public static void runOnUI(Runnable runnable) {
 		if (handler == null) {
 			handler = new Handler(Looper.getMainLooper());
@@ -63,20 +51,31 @@ public final class Util {
 	}
 	
 	public static void runInBackground(Runnable runnable, boolean forceNewThread) {
-		if (forceNewThread || isMain()) {
-			executor.execute(runnable);
-		} else {
-			runnable.run();
-		}
-		
+		runInBackground(runnable, TaskScheduler.Lane.CONTROL, forceNewThread);
 	}
 	
 	public static void runInBackground(Runnable runnable) {
 		runInBackground(runnable, false);
 	}
 	
+	public static void runInBackground(Runnable runnable, TaskScheduler.Lane lane) {
+		runInBackground(runnable, lane, false);
+	}
+	
+	/**
+	 * Runs the runnable on the given lane of the TaskScheduler, or directly when already
+	 * off the main thread and forceNewThread is false.
+	 */
+	public static void runInBackground(Runnable runnable, TaskScheduler.Lane lane, boolean forceNewThread) {
+		if (forceNewThread || isMain()) {
+			TaskScheduler.execute(lane, runnable);
+		} else {
+			runnable.run();
+		}
+	}
+	
 	public static Executor getExecutor() {
-		return executor;
+		return TaskScheduler.getExecutor(TaskScheduler.Lane.CONTROL);
 	}
 	
 	public static boolean isMain() {
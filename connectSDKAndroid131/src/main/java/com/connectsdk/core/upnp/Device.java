@@ -20,33 +20,28 @@
 
 package com.connectsdk.core.upnp;
 
+import android.util.Xml;
+
 import com.connectsdk.core.upnp.service.Service;
 import com.connectsdk.core.upnp.ssdp.SSDP;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.util.Map.Entry;
 
 public class Device {
     public static final String TAG = "device";
@@ -90,7 +85,9 @@ public class Device {
     public String UPC;
     /* Required. */
     List<Icon> iconList = new ArrayList<Icon>();
-    public String locationXML;
+    /* Raw description as received, decoded by getLocationXML() when needed. */
+    public byte[] locationXMLData;
+    private String locationXML;
     /* Optional. */
     public List<Service> serviceList = new ArrayList<Service>();
     public String searchTarget;
@@ -115,135 +112,34 @@ public class Device {
     	port = urlObject.getPort();
     	this.searchTarget = searchTarget;
     	UUID = null;
-
-    	if ( searchTarget.equalsIgnoreCase("urn:dial-multiscreen-org:service:dial:1") )
-    		applicationURL = getApplicationURL(url);
     }
 	    
+    /**
+     * Downloads the description at the given location and parses it while it arrives. The
+     * body and the response headers, including the DIAL Application-URL, come from this
+     * one request.
+     */
     public static Device createInstanceFromXML(String url, String searchTarget) {
-    	Device newDevice = null;
-    	try {
-    		newDevice = new Device(url, searchTarget);
-    	} catch(IOException e) {
-    		return null;
-    	}
-    	
-    	final Device device = newDevice;
-        
-        DefaultHandler dh = new DefaultHandler() {
-            String currentValue = null;
-            Icon currentIcon;
-            Service currentService;
-            
-            @Override
-            public void characters(char[] ch, int start, int length) throws SAXException {
-                if (currentValue == null) {
-                    currentValue = new String(ch, start, length);
-                } else {
-                    // append to existing string (needed for parsing character entities)
-                    currentValue += new String(ch, start, length);
-                }
-            }
-            
-            @Override
-            public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-                if (Icon.TAG.equals(qName)) {
-                    currentIcon = new Icon();
-                } else if (Service.TAG.equals(qName)) {
-                    currentService = new Service();
-                    currentService.baseURL = device.baseURL;
-                }
-                currentValue = null;
-            }
-            
-            @Override
-            public void endElement(String uri, String localName, String qName) throws SAXException {
-//            	System.out.println("[DEBUG] qName: " + qName + ", currentValue: " + currentValue);
-            	/* Parse device-specific information */
-                if (TAG_DEVICE_TYPE.equals(qName)) {
-                    device.deviceType = currentValue;
-                } else if (TAG_FRIENDLY_NAME.equals(qName)) {
-                    device.friendlyName = currentValue;
-                } else if (TAG_MANUFACTURER.equals(qName)) {
-                    device.manufacturer = currentValue;
-                } else if (TAG_MANUFACTURER_URL.equals(qName)) {
-                    device.manufacturerURL = currentValue;
-                } else if (TAG_MODEL_DESCRIPTION.equals(qName)) {
-                    device.modelDescription = currentValue;
-                } else if (TAG_MODEL_NAME.equals(qName)) {
-                    device.modelName = currentValue;
-                } else if (TAG_MODEL_NUMBER.equals(qName)) {
-                    device.modelNumber = currentValue;
-                } else if (TAG_MODEL_URL.equals(qName)) {
-                    device.modelURL = currentValue;
-                } else if (TAG_SERIAL_NUMBER.equals(qName)) {
-                    device.serialNumber = currentValue;
-                } else if (TAG_UDN.equals(qName)) {
-                    device.UDN = currentValue;
-                    
-//                	device.UUID = Device.parseUUID(currentValue);
-                } else if (TAG_UPC.equals(qName)) {
-                    device.UPC = currentValue;
-                }
-                /* Parse icon-list information */
-                else if (Icon.TAG_MIME_TYPE.equals(qName)) {
-                    currentIcon.mimetype = currentValue;
-                } else if (Icon.TAG_WIDTH.equals(qName)) {
-                    currentIcon.width = currentValue;
-                } else if (Icon.TAG_HEIGHT.equals(qName)) {
-                    currentIcon.height = currentValue;
-                } else if (Icon.TAG_DEPTH.equals(qName)) {
-                    currentIcon.depth = currentValue;
-                } else if (Icon.TAG_URL.equals(qName)) {
-                    currentIcon.url = currentValue;
-                } else if (Icon.TAG.equals(qName)) {
-                    device.iconList.add(currentIcon);
-                }
-                /* Parse service-list information */
-                else if (Service.TAG_SERVICE_TYPE.equals(qName)) {
-                    currentService.serviceType = currentValue;
-                } else if (Service.TAG_SERVICE_ID.equals(qName)) {
-                    currentService.serviceId = currentValue;
-                } else if (Service.TAG_SCPD_URL.equals(qName)) {
-                    currentService.SCPDURL = currentValue;
-                } else if (Service.TAG_CONTROL_URL.equals(qName)) {
-                    currentService.controlURL = currentValue;
-                } else if (Service.TAG_EVENTSUB_URL.equals(qName)) {
-                    currentService.eventSubURL = currentValue;
-                } else if (Service.TAG.equals(qName)) {
-                    device.serviceList.add(currentService);
-                }
-
-                currentValue = null;
-            }
-        };
-        
-        SAXParserFactory factory = SAXParserFactory.newInstance();
-        
-        SAXParser parser;
         try {
         	URL mURL = new URL(url);
         	URLConnection urlConnection = mURL.openConnection();
-        	InputStream in = new BufferedInputStream(urlConnection.getInputStream());
+        	RecordingInputStream in = new RecordingInputStream(new BufferedInputStream(urlConnection.getInputStream()), urlConnection.getContentLength());
+        	Device device;
         	try {
-            	Scanner s = new Scanner(in).useDelimiter("\\A");
-            	device.locationXML = s.hasNext() ? s.next() : "";
-
-            	parser = factory.newSAXParser();
-            	parser.parse(new ByteArrayInputStream(device.locationXML.getBytes()), dh);
+        		device = createInstanceFromXML(url, searchTarget, in, urlConnection.getHeaderFields());
+        		
+        		// Anything after the root element still belongs to the description
+        		in.drain();
         	} finally {
         		in.close();
         	}
         	
-        	device.headers = urlConnection.getHeaderFields();
+        	if (device != null)
+        		device.locationXMLData = in.toByteArray();
         	
-            return device;
+        	return device;
         } catch (MalformedURLException e) {
         	e.printStackTrace();
-        } catch (ParserConfigurationException e) {
-            e.printStackTrace();
-        } catch (SAXException e) {
-            e.printStackTrace();
         } catch (IOException e) {
         	e.printStackTrace();
         }
@@ -251,33 +147,262 @@ public class Device {
         return null;
     }
     
-    private String getApplicationURL(String url) {
-    	HttpClient client = new DefaultHttpClient();
-
-    	HttpGet get = new HttpGet(url);
+    /**
+     * Creates a device from a description that was downloaded before.
+     */
+    public static Device createInstanceFromXML(String url, String searchTarget, byte[] locationXMLData, Map<String, List<String>> headers) {
+    	try {
+    		Device device = createInstanceFromXML(url, searchTarget, new ByteArrayInputStream(locationXMLData), headers);
+    		
+    		if (device != null)
+    			device.locationXMLData = locationXMLData;
+    		
+    		return device;
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    		return null;
+    	}
+    }
+    
+    private static Device createInstanceFromXML(String url, String searchTarget, InputStream in, Map<String, List<String>> headers) throws IOException {
+    	Device device;
+    	try {
+    		device = new Device(url, searchTarget);
+    	} catch(IOException e) {
+    		return null;
+    	}
     	
-    	String applicationURL = null;
-
-		try {
-			HttpResponse response = client.execute(get);
-			
-			int code = response.getStatusLine().getStatusCode();
-			
-			if ( code == 200 ) {
-				if ( response.getFirstHeader(SSDP.APPLICATION_URL) != null ) {
-					applicationURL =  response.getFirstHeader(SSDP.APPLICATION_URL).getValue();
-
-					if (!applicationURL.substring(applicationURL.length() - 1).equals("/")) {
-						applicationURL = applicationURL.concat("/");
-					}
-				}
-			}
-		} catch (ClientProtocolException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}    	
-    	return applicationURL;
+    	device.headers = headers;
+    	
+    	if ( searchTarget.equalsIgnoreCase("urn:dial-multiscreen-org:service:dial:1") )
+    		device.applicationURL = getApplicationURL(headers);
+    	
+    	try {
+    		device.parse(in);
+    		return device;
+    	} catch (XmlPullParserException e) {
+    		e.printStackTrace();
+    		return null;
+    	}
+    }
+    
+    private void parse(InputStream in) throws XmlPullParserException, IOException {
+    	XmlPullParser parser = Xml.newPullParser();
+    	parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+    	parser.setInput(in, null);
+    	
+    	// Text of the current element, reused for every element
+    	StringBuilder value = new StringBuilder();
+    	int[] holder = new int[2];
+    	Icon currentIcon = null;
+    	Service currentService = null;
+    	
+    	int eventType = parser.getEventType();
+    	while (eventType != XmlPullParser.END_DOCUMENT) {
+    		if (eventType == XmlPullParser.START_TAG) {
+    			String name = parser.getName();
+    			
+    			if (Icon.TAG.equals(name)) {
+    				currentIcon = new Icon();
+    			} else if (Service.TAG.equals(name)) {
+    				currentService = new Service();
+    				currentService.baseURL = baseURL;
+    			}
+    			value.setLength(0);
+    		} else if (eventType == XmlPullParser.TEXT) {
+    			char[] ch = parser.getTextCharacters(holder);
+    			value.append(ch, holder[0], holder[1]);
+    		} else if (eventType == XmlPullParser.END_TAG) {
+    			endElement(parser.getName(), value, currentIcon, currentService);
+    			value.setLength(0);
+    		}
+    		
+    		eventType = parser.next();
+    	}
+    }
+    
+    private void endElement(String name, StringBuilder value, Icon currentIcon, Service currentService) {
+    	/* Parse device-specific information */
+    	if (TAG_DEVICE_TYPE.equals(name)) {
+    		deviceType = valueOf(value);
+    	} else if (TAG_FRIENDLY_NAME.equals(name)) {
+    		friendlyName = valueOf(value);
+    	} else if (TAG_MANUFACTURER.equals(name)) {
+    		manufacturer = valueOf(value);
+    	} else if (TAG_MANUFACTURER_URL.equals(name)) {
+    		manufacturerURL = valueOf(value);
+    	} else if (TAG_MODEL_DESCRIPTION.equals(name)) {
+    		modelDescription = valueOf(value);
+    	} else if (TAG_MODEL_NAME.equals(name)) {
+    		modelName = valueOf(value);
+    	} else if (TAG_MODEL_NUMBER.equals(name)) {
+    		modelNumber = valueOf(value);
+    	} else if (TAG_MODEL_URL.equals(name)) {
+    		modelURL = valueOf(value);
+    	} else if (TAG_SERIAL_NUMBER.equals(name)) {
+    		serialNumber = valueOf(value);
+    	} else if (TAG_UDN.equals(name)) {
+    		UDN = valueOf(value);
+    	} else if (TAG_UPC.equals(name)) {
+    		UPC = valueOf(value);
+    	}
+    	/* Parse icon-list information */
+    	else if (currentIcon != null && Icon.TAG_MIME_TYPE.equals(name)) {
+    		currentIcon.mimetype = valueOf(value);
+    	} else if (currentIcon != null && Icon.TAG_WIDTH.equals(name)) {
+    		currentIcon.width = valueOf(value);
+    	} else if (currentIcon != null && Icon.TAG_HEIGHT.equals(name)) {
+    		currentIcon.height = valueOf(value);
+    	} else if (currentIcon != null && Icon.TAG_DEPTH.equals(name)) {
+    		currentIcon.depth = valueOf(value);
+    	} else if (currentIcon != null && Icon.TAG_URL.equals(name)) {
+    		currentIcon.url = valueOf(value);
+    	} else if (currentIcon != null && Icon.TAG.equals(name)) {
+    		iconList.add(currentIcon);
+    	}
+    	/* Parse service-list information */
+    	else if (currentService != null && Service.TAG_SERVICE_TYPE.equals(name)) {
+    		currentService.serviceType = valueOf(value);
+    	} else if (currentService != null && Service.TAG_SERVICE_ID.equals(name)) {
+    		currentService.serviceId = valueOf(value);
+    	} else if (currentService != null && Service.TAG_SCPD_URL.equals(name)) {
+    		currentService.SCPDURL = valueOf(value);
+    	} else if (currentService != null && Service.TAG_CONTROL_URL.equals(name)) {
+    		currentService.controlURL = valueOf(value);
+    	} else if (currentService != null && Service.TAG_EVENTSUB_URL.equals(name)) {
+    		currentService.eventSubURL = valueOf(value);
+    	} else if (currentService != null && Service.TAG.equals(name)) {
+    		serviceList.add(currentService);
+    	}
+    }
+    
+    private static String valueOf(StringBuilder value) {
+    	return value.length() > 0 ? value.toString() : null;
+    }
+    
+    /**
+     * The description as text, decoded on first use.
+     */
+    public synchronized String getLocationXML() {
+    	if (locationXML == null && locationXMLData != null)
+    		locationXML = decodeLocationXML(locationXMLData, headers);
+    	
+    	return locationXML;
+    }
+    
+    /**
+     * Decodes a description in the charset named by its byte order mark or XML declaration,
+     * like the parser does, then in the charset of the Content-Type header and otherwise as
+     * UTF-8.
+     */
+    public static String decodeLocationXML(byte[] data, Map<String, List<String>> headers) {
+    	String charsetName = getDeclaredCharset(data);
+    	
+    	if (charsetName == null)
+    		charsetName = getContentTypeCharset(headers);
+    	
+    	Charset charset = Charset.forName("UTF-8");
+    	
+    	if (charsetName != null) {
+    		try {
+    			charset = Charset.forName(charsetName);
+    		} catch (IllegalArgumentException e) {
+    			// Unknown or unsupported charset, keep UTF-8
+    		}
+    	}
+    	
+    	return new String(data, charset);
+    }
+    
+    private static String getDeclaredCharset(byte[] data) {
+    	if (data.length >= 3 && (data[0] & 0xff) == 0xef && (data[1] & 0xff) == 0xbb && (data[2] & 0xff) == 0xbf)
+    		return "UTF-8";
+    	
+    	if (data.length >= 2 && (((data[0] & 0xff) == 0xfe && (data[1] & 0xff) == 0xff) || ((data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xfe)))
+    		return "UTF-16";
+    	
+    	// The declaration is ASCII and ends at the first "?>"
+    	StringBuilder declaration = new StringBuilder();
+    	
+    	for (int i = 0; i < data.length && i < 256; i++) {
+    		declaration.append((char) (data[i] & 0xff));
+    		
+    		if (declaration.length() >= 2 && declaration.charAt(declaration.length() - 2) == '?' && data[i] == '>')
+    			break;
+    	}
+    	
+    	String text = declaration.toString();
+    	
+    	if (!text.startsWith("<?xml") || !text.endsWith("?>"))
+    		return null;
+    	
+    	return getAttribute(text, "encoding");
+    }
+    
+    private static String getContentTypeCharset(Map<String, List<String>> headers) {
+    	if (headers == null)
+    		return null;
+    	
+    	for (Entry<String, List<String>> header : headers.entrySet()) {
+    		if (!"Content-Type".equalsIgnoreCase(header.getKey()) || header.getValue() == null || header.getValue().isEmpty())
+    			continue;
+    		
+    		for (String parameter : header.getValue().get(0).split(";")) {
+    			String[] pair = parameter.trim().split("=", 2);
+    			
+    			if (pair.length == 2 && "charset".equalsIgnoreCase(pair[0].trim()))
+    				return unquote(pair[1].trim());
+    		}
+    	}
+    	
+    	return null;
+    }
+    
+    private static String getAttribute(String declaration, String name) {
+    	int index = declaration.indexOf(name);
+    	
+    	if (index < 0)
+    		return null;
+    	
+    	int equals = declaration.indexOf('=', index + name.length());
+    	
+    	if (equals < 0)
+    		return null;
+    	
+    	String value = declaration.substring(equals + 1).trim();
+    	
+    	if (value.isEmpty() || (value.charAt(0) != '"' && value.charAt(0) != '\''))
+    		return null;
+    	
+    	int end = value.indexOf(value.charAt(0), 1);
+    	
+    	return end > 0 ? value.substring(1, end) : null;
+    }
+    
+    private static String unquote(String value) {
+    	if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"')
+    		return value.substring(1, value.length() - 1);
+    	
+    	return value;
+    }
+    
+    private static String getApplicationURL(Map<String, List<String>> headers) {
+    	if (headers == null)
+    		return null;
+    	
+    	for (Entry<String, List<String>> header : headers.entrySet()) {
+    		if (!SSDP.APPLICATION_URL.equalsIgnoreCase(header.getKey()) || header.getValue() == null || header.getValue().isEmpty())
+    			continue;
+    		
+    		String applicationURL = header.getValue().get(0);
+    		
+    		if (!applicationURL.endsWith("/"))
+    			applicationURL = applicationURL.concat("/");
+    		
+    		return applicationURL;
+    	}
+    	
+    	return null;
     }
     
     protected static String parseUUID(String str) {
@@ -306,6 +431,55 @@ public class Device {
         return friendlyName;
     }
     
+    /**
+     * Keeps a copy of every byte read, so the description can be cached after it was parsed.
+     */
+    static class RecordingInputStream extends FilterInputStream {
+    	private ByteArrayOutputStream recorded;
+    	
+    	RecordingInputStream(InputStream in, int expectedLength) {
+    		super(in);
+    		recorded = new ByteArrayOutputStream(expectedLength > 0 ? expectedLength : 8192);
+    	}
+    	
+    	@Override
+    	public int read() throws IOException {
+    		int b = super.read();
+    		if (b != -1)
+    			recorded.write(b);
+    		return b;
+    	}
+    	
+    	@Override
+    	public int read(byte[] buffer, int offset, int count) throws IOException {
+    		int read = super.read(buffer, offset, count);
+    		if (read > 0)
+    			recorded.write(buffer, offset, read);
+    		return read;
+    	}
+    	
+    	@Override
+    	public long skip(long n) throws IOException {
+    		byte[] buffer = new byte[(int) Math.min(n, 4096)];
+    		int read = read(buffer, 0, buffer.length);
+    		return read > 0 ? read : 0;
+    	}
+    	
+    	@Override
+    	public boolean markSupported() {
+    		return false;
+    	}
+    	
+    	void drain() throws IOException {
+    		byte[] buffer = new byte[4096];
+    		while (read(buffer, 0, buffer.length) != -1) { }
+    	}
+    	
+    	byte[] toByteArray() {
+    		return recorded.toByteArray();
+    	}
+    }
+    
 	static class Icon {
 	    static final String TAG = "icon";
 	    static final String TAG_MIME_TYPE = "mimetype";
@@ -0,0 +1,418 @@
+/*
+ * DeviceDescriptionCache
+ * Connect SDK
+ *
+ * Copyright (c) 2014 LG Electronics.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.connectsdk.core.upnp;
+
+import android.content.Context;
+import android.util.Base64;
+
+import com.connectsdk.core.TaskScheduler;
+import com.connectsdk.core.Util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps downloaded UPnP device descriptions on disk, keyed by their LOCATION URL, so a
+ * device that is discovered again does not have to be asked for its description.
+ *
+ * An entry is used as long as the BOOTID.UPNP.ORG and CONFIGID.UPNP.ORG values the device
+ * announces are the ones it was fetched with. Devices that announce neither are asked
+ * again once their entry is a day old.
+ */
+public class DeviceDescriptionCache {
+	// @cond INTERNAL
+	static final String FILENAME = "DeviceDescriptions";
+	static final int CURRENT_VERSION = 1;
+	static final int MAX_ENTRIES = 32;
+
+	static final long UNVERSIONED_LIFETIME = TimeUnit.DAYS.toMillis(1);
+	static final long VERSIONED_LIFETIME = TimeUnit.DAYS.toMillis(7);
+
+	static final String KEY_VERSION = "version";
+	static final String KEY_ENTRIES = "entries";
+	static final String KEY_LOCATION = "location";
+	static final String KEY_BOOT_ID = "bootId";
+	static final String KEY_CONFIG_ID = "configId";
+	static final String KEY_FETCHED = "fetched";
+	static final String KEY_DATA = "data";
+	static final String KEY_HEADERS = "headers";
+
+	private static DeviceDescriptionCache instance;
+
+	private String fileFullPath;
+
+	private LinkedHashMap<String, Entry> entries;
+	private boolean waitToWrite = false;
+	private boolean dirty = false;
+
+	private long hitCount;
+	private long missCount;
+	// @endcond
+
+	public DeviceDescriptionCache(Context context) {
+		fileFullPath = context.getCacheDir().getAbsolutePath() + "/" + FILENAME;
+	}
+
+	/**
+	 * The cache shared by discovery and warm start.
+	 */
+	public static synchronized DeviceDescriptionCache getInstance(Context context) {
+		if (instance == null)
+			instance = new DeviceDescriptionCache(context.getApplicationContext());
+
+		return instance;
+	}
+
+	/**
+	 * Returns the device described at the location, from the cache when the entry is still
+	 * valid and from the network otherwise. Pass -1 for a BOOTID or CONFIGID that the device
+	 * did not announce. Must not be called on the main thread.
+	 */
+	public Device getDevice(String location, String searchTarget, long bootId, long configId) {
+		Entry entry = getEntry(location, bootId, configId);
+
+		if (entry != null) {
+			Device device = Device.createInstanceFromXML(location, searchTarget, entry.data, entry.headers);
+
+			if (device != null)
+				return device;
+
+			remove(location);
+		}
+
+		Device device = Device.createInstanceFromXML(location, searchTarget);
+
+		if (device != null && device.locationXMLData != null)
+			put(new Entry(location, bootId, configId, new Date().getTime(), device.locationXMLData, device.headers));
+
+		return device;
+	}
+
+	/**
+	 * Returns the device described at the location only if its description is cached.
+	 * Must not be called on the main thread.
+	 */
+	public Device getCachedDevice(String location, String searchTarget) {
+		Entry entry = getEntry(location, -1, -1);
+
+		if (entry == null)
+			return null;
+
+		return Device.createInstanceFromXML(location, searchTarget, entry.data, entry.headers);
+	}
+
+	public synchronized void remove(String location) {
+		load();
+
+		if (entries.remove(location) != null)
+			store();
+	}
+
+	public synchronized void clear() {
+		load();
+
+		entries.clear();
+		store();
+	}
+
+	/** Number of descriptions that were served from the cache */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/** Number of descriptions that had to be downloaded */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	// @cond INTERNAL
+	private synchronized Entry getEntry(String location, long bootId, long configId) {
+		load();
+
+		Entry entry = entries.get(location);
+
+		if (entry != null && !entry.isValid(bootId, configId, new Date().getTime())) {
+			entries.remove(location);
+			store();
+			entry = null;
+		}
+
+		if (entry != null)
+			hitCount++;
+		else
+			missCount++;
+
+		return entry;
+	}
+
+	private synchronized void put(Entry entry) {
+		load();
+
+		entries.put(entry.location, entry);
+		store();
+	}
+
+	private void load() {
+		if (entries != null)
+			return;
+
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+
+		File file = new File(fileFullPath);
+
+		if (!file.exists())
+			return;
+
+		BufferedReader in = null;
+
+		try {
+			in = new BufferedReader(new FileReader(file));
+
+			StringBuilder sb = new StringBuilder();
+			String line;
+
+			while ((line = in.readLine()) != null) {
+				sb.append(line).append('\n');
+			}
+
+			JSONObject data = new JSONObject(sb.toString());
+
+			if (data.optInt(KEY_VERSION, -1) != CURRENT_VERSION)
+				return;
+
+			JSONArray storedEntries = data.optJSONArray(KEY_ENTRIES);
+
+			for (int i = 0; storedEntries != null && i < storedEntries.length(); i++) {
+				Entry entry = Entry.fromJSONObject(storedEntries.getJSONObject(i));
+
+				if (entry != null)
+					entries.put(entry.location, entry);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (JSONException e) {
+			e.printStackTrace();
+
+			// the cache has been corrupted, start over
+			entries.clear();
+			file.delete();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void store() {
+		dirty = true;
+
+		if (!waitToWrite)
+			writeToDisk();
+	}
+
+	private void writeToDisk() {
+		waitToWrite = true;
+
+		Util.runInBackground(new Runnable() {
+
+			@Override
+			public void run() {
+				String data;
+
+				synchronized (DeviceDescriptionCache.this) {
+					dirty = false;
+					data = toJSONObject().toString();
+				}
+
+				try {
+					File output = new File(fileFullPath);
+					File temp = new File(fileFullPath + ".tmp");
+
+					if (!output.exists())
+						output.getParentFile().mkdirs();
+
+					FileWriter out = new FileWriter(temp);
+					try {
+						out.write(data);
+					} finally {
+						out.close();
+					}
+
+					if (!temp.renameTo(output))
+						throw new IOException("Could not replace " + output);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+
+				synchronized (DeviceDescriptionCache.this) {
+					waitToWrite = false;
+
+					if (dirty)
+						writeToDisk();
+				}
+			}
+		}, TaskScheduler.Lane.PERSISTENCE, true);
+	}
+
+	private JSONObject toJSONObject() {
+		JSONObject data = new JSONObject();
+		JSONArray storedEntries = new JSONArray();
+
+		for (Entry entry : entries.values()) {
+			JSONObject storedEntry = entry.toJSONObject();
+
+			if (storedEntry != null)
+				storedEntries.put(storedEntry);
+		}
+
+		try {
+			data.put(KEY_VERSION, CURRENT_VERSION);
+			data.put(KEY_ENTRIES, storedEntries);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+
+		return data;
+	}
+
+	static class Entry {
+		final String location;
+		final long bootId;
+		final long configId;
+		final long fetched;
+		final byte[] data;
+		final Map<String, List<String>> headers;
+
+		Entry(String location, long bootId, long configId, long fetched, byte[] data, Map<String, List<String>> headers) {
+			this.location = location;
+			this.bootId = bootId;
+			this.configId = configId;
+			this.fetched = fetched;
+			this.data = data;
+			this.headers = headers;
+		}
+
+		boolean isValid(long bootId, long configId, long now) {
+			// Some devices only send the headers in NOTIFY messages, a search response without them still matches
+			if ((bootId >= 0 && this.bootId != bootId) || (configId >= 0 && this.configId != configId))
+				return false;
+
+			long lifetime = this.bootId < 0 && this.configId < 0 ? UNVERSIONED_LIFETIME : VERSIONED_LIFETIME;
+
+			return now >= fetched && now - fetched < lifetime;
+		}
+
+		JSONObject toJSONObject() {
+			JSONObject jsonObj = new JSONObject();
+
+			try {
+				jsonObj.put(KEY_LOCATION, location);
+				jsonObj.put(KEY_BOOT_ID, bootId);
+				jsonObj.put(KEY_CONFIG_ID, configId);
+				jsonObj.put(KEY_FETCHED, fetched);
+				// The description is kept byte for byte, whatever its encoding
+				jsonObj.put(KEY_DATA, Base64.encodeToString(data, Base64.NO_WRAP));
+
+				JSONObject headersObj = new JSONObject();
+
+				if (headers != null) {
+					for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+						// The status line is stored under the null key
+						if (header.getKey() == null || header.getValue() == null)
+							continue;
+
+						headersObj.put(header.getKey(), new JSONArray(header.getValue()));
+					}
+				}
+
+				jsonObj.put(KEY_HEADERS, headersObj);
+			} catch (JSONException e) {
+				e.printStackTrace();
+				return null;
+			}
+
+			return jsonObj;
+		}
+
+		static Entry fromJSONObject(JSONObject jsonObj) throws JSONException {
+			String location = jsonObj.optString(KEY_LOCATION, null);
+			String encodedData = jsonObj.optString(KEY_DATA, null);
+
+			if (location == null || encodedData == null)
+				return null;
+
+			byte[] data;
+			try {
+				data = Base64.decode(encodedData, Base64.NO_WRAP);
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+
+			Map<String, List<String>> headers = new HashMap<String, List<String>>();
+			JSONObject headersObj = jsonObj.optJSONObject(KEY_HEADERS);
+
+			if (headersObj != null) {
+				@SuppressWarnings("unchecked")
+				Iterator<String> iter = headersObj.keys();
+				while (iter.hasNext()) {
+					String name = iter.next();
+					JSONArray values = headersObj.getJSONArray(name);
+					List<String> list = new ArrayList<String>();
+
+					for (int i = 0; i < values.length(); i++) {
+						list.add(values.getString(i));
+					}
+
+					headers.put(name, list);
+				}
+			}
+
+			return new Entry(location, jsonObj.optLong(KEY_BOOT_ID, -1), jsonObj.optLong(KEY_CONFIG_ID, -1),
+					jsonObj.optLong(KEY_FETCHED, 0), data, headers);
+		}
+	}
+	// @endcond
+}
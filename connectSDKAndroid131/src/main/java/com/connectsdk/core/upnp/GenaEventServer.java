@@ -0,0 +1,297 @@
+/*
+ * GenaEventServer
+ * Connect SDK
+ *
+ * Copyright (c) 2014 LG Electronics.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.connectsdk.core.upnp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Small HTTP server that receives the GENA NOTIFY messages of every UPnP event
+ * subscription and hands them to the GenaSubscription with the matching SID.
+ *
+ * It listens on an ephemeral port from the first subscription on. Like HttpTransport it
+ * keeps its one thread for the lifetime of the process, so a subscription being replaced
+ * never finds the callback URL it was just given closed.
+ */
+public class GenaEventServer {
+	// @cond INTERNAL
+	public static final String PATH = "/connectsdk/event";
+
+	static final int SOCKET_TIMEOUT = 5000;
+	static final int MAX_HEADER_LENGTH = 8 * 1024;
+	static final int MAX_BODY_LENGTH = 256 * 1024;
+	static final int MAX_EARLY_EVENTS = 8;
+
+	private static GenaEventServer instance;
+
+	private final Map<String, GenaSubscription> subscriptions = new ConcurrentHashMap<String, GenaSubscription>();
+
+	// The initial event may arrive before the SUBSCRIBE response told us the SID
+	private final LinkedHashMap<String, Event> earlyEvents = new LinkedHashMap<String, Event>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Event> eldest) {
+			return size() > MAX_EARLY_EVENTS;
+		}
+	};
+
+	private ServerSocket serverSocket;
+	private Thread thread;
+	// @endcond
+
+	public static synchronized GenaEventServer getInstance() {
+		if (instance == null)
+			instance = new GenaEventServer();
+
+		return instance;
+	}
+
+	/**
+	 * Starts listening if needed and returns the port NOTIFY messages are expected on.
+	 */
+	public synchronized int start() throws IOException {
+		if (serverSocket == null) {
+			serverSocket = new ServerSocket(0);
+
+			final ServerSocket socket = serverSocket;
+			thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					acceptLoop(socket);
+				}
+			}, "Connect SDK GENA");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		return serverSocket.getLocalPort();
+	}
+
+	// @cond INTERNAL
+	void register(String sid, GenaSubscription subscription) {
+		Event early;
+
+		synchronized (this) {
+			subscriptions.put(sid, subscription);
+			early = earlyEvents.remove(sid);
+		}
+
+		if (early != null)
+			subscription.onNotify(early.seq, early.body);
+	}
+
+	synchronized void unregister(String sid) {
+		subscriptions.remove(sid);
+		earlyEvents.remove(sid);
+	}
+
+	private void acceptLoop(ServerSocket socket) {
+		while (true) {
+			Socket connection;
+
+			try {
+				connection = socket.accept();
+			} catch (IOException e) {
+				e.printStackTrace();
+
+				synchronized (this) {
+					serverSocket = null;
+				}
+
+				try {
+					socket.close();
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+
+				return;
+			}
+
+			try {
+				connection.setSoTimeout(SOCKET_TIMEOUT);
+				handle(connection);
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				try {
+					connection.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void handle(Socket connection) throws IOException {
+		InputStream in = new BufferedInputStream(connection.getInputStream());
+		OutputStream out = connection.getOutputStream();
+
+		String requestLine = readLine(in);
+		Map<String, String> headers = new HashMap<String, String>();
+		String line;
+
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+
+			if (colon > 0)
+				headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+		}
+
+		if (requestLine == null || !requestLine.toUpperCase(Locale.US).startsWith("NOTIFY ")) {
+			respond(out, "405 Method Not Allowed");
+			return;
+		}
+
+		String sid = headers.get("sid");
+		if (sid == null || !"upnp:event".equals(headers.get("nt")) || !"upnp:propchange".equals(headers.get("nts"))) {
+			respond(out, "400 Bad Request");
+			return;
+		}
+
+		byte[] body = "chunked".equalsIgnoreCase(headers.get("transfer-encoding")) ? readChunked(in) : readBody(in, headers.get("content-length"));
+
+		long seq;
+		try {
+			seq = Long.parseLong(headers.get("seq"));
+		} catch (NumberFormatException e) {
+			seq = -1;
+		}
+
+		GenaSubscription subscription;
+
+		synchronized (this) {
+			subscription = subscriptions.get(sid);
+
+			if (subscription == null)
+				earlyEvents.put(sid, new Event(seq, body));
+		}
+
+		// Answer before handling the event, the device waits for the response
+		respond(out, "200 OK");
+
+		if (subscription != null)
+			subscription.onNotify(seq, body);
+	}
+
+	private static void respond(OutputStream out, String status) throws IOException {
+		out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+		out.flush();
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+
+		while ((c = in.read()) != -1) {
+			if (c == '\n')
+				break;
+			if (c != '\r')
+				sb.append((char) c);
+			if (sb.length() > MAX_HEADER_LENGTH)
+				throw new IOException("Header line too long");
+		}
+
+		return c == -1 && sb.length() == 0 ? null : sb.toString();
+	}
+
+	private static byte[] readBody(InputStream in, String contentLength) throws IOException {
+		int length;
+
+		try {
+			length = contentLength != null ? Integer.parseInt(contentLength) : 0;
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid Content-Length " + contentLength);
+		}
+
+		if (length < 0 || length > MAX_BODY_LENGTH)
+			throw new IOException("Invalid Content-Length " + length);
+
+		byte[] body = new byte[length];
+		int read = 0;
+
+		while (read < length) {
+			int count = in.read(body, read, length - read);
+
+			if (count == -1)
+				throw new IOException("Connection closed after " + read + " of " + length + " bytes");
+
+			read += count;
+		}
+
+		return body;
+	}
+
+	private static byte[] readChunked(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		while (true) {
+			String sizeLine = readLine(in);
+
+			if (sizeLine == null)
+				throw new IOException("Connection closed in chunked body");
+
+			int semicolon = sizeLine.indexOf(';');
+			int size;
+
+			try {
+				size = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size " + sizeLine);
+			}
+
+			if (size == 0) {
+				// trailers
+				String line;
+				while ((line = readLine(in)) != null && line.length() > 0) { }
+
+				return body.toByteArray();
+			}
+
+			if (size < 0 || body.size() + size > MAX_BODY_LENGTH)
+				throw new IOException("Event body too long");
+
+			body.write(readBody(in, String.valueOf(size)));
+			readLine(in);
+		}
+	}
+
+	static class Event {
+		final long seq;
+		final byte[] body;
+
+		Event(long seq, byte[] body) {
+			this.seq = seq;
+			this.body = body;
+		}
+	}
+	// @endcond
+}
@@ -0,0 +1,455 @@
+/*
+ * GenaSubscription
+ * Connect SDK
+ *
+ * Copyright (c) 2014 LG Electronics.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.connectsdk.core.upnp;
+
+import android.util.Xml;
+
+import com.connectsdk.etc.helper.HttpTransport;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Subscription to the events of one UPnP service (GENA). SUBSCRIBEs to the eventSubURL of
+ * the service, renews the subscription before it times out and hands every evented
+ * property set to the listener.
+ *
+ * When an event went missing, which shows as a gap in the SEQ numbers, the subscription
+ * is replaced by a new one so the initial event brings the complete state again.
+ */
+public class GenaSubscription {
+	public interface Listener {
+		/** Called on the event server thread with the evented variables and their new values */
+		public void onEvent(Map<String, String> properties);
+
+		/** Called when the subscription could not be made or renewed, after retrying */
+		public void onSubscriptionLost();
+	}
+
+	// @cond INTERNAL
+	static final int REQUESTED_TIMEOUT = 1800;
+	static final int MIN_RENEW_DELAY = 15 * 1000;
+	static final int MAX_RENEW_MARGIN = 60 * 1000;
+	static final int RETRY_DELAY = 5 * 1000;
+	static final int MAX_RETRIES = 3;
+
+	private static Timer timer;
+
+	private final String eventURL;
+	private final Listener listener;
+
+	private boolean active;
+	private String sid;
+	private long expectedSeq;
+	private int failures;
+	private TimerTask renewTask;
+	// @endcond
+
+	public GenaSubscription(String eventURL, Listener listener) {
+		this.eventURL = eventURL;
+		this.listener = listener;
+	}
+
+	public synchronized boolean isActive() {
+		return active;
+	}
+
+	public synchronized void subscribe() {
+		if (active)
+			return;
+
+		active = true;
+		failures = 0;
+		sendSubscribe(null);
+	}
+
+	public void unsubscribe() {
+		String oldSid;
+
+		synchronized (this) {
+			if (!active)
+				return;
+
+			active = false;
+			oldSid = sid;
+			sid = null;
+			cancelRenew();
+		}
+
+		if (oldSid != null)
+			end(oldSid);
+	}
+
+	// @cond INTERNAL
+	private void sendSubscribe(final String renewSid) {
+		GenaRequest request;
+
+		try {
+			request = new GenaRequest("SUBSCRIBE", eventURL);
+
+			if (renewSid == null) {
+				request.setHeader("CALLBACK", "<" + getCallbackURL(request.getURI()) + ">");
+				request.setHeader("NT", "upnp:event");
+			} else {
+				request.setHeader("SID", renewSid);
+			}
+
+			request.setHeader("TIMEOUT", "Second-" + REQUESTED_TIMEOUT);
+		} catch (IOException e) {
+			fail();
+			return;
+		} catch (IllegalArgumentException e) {
+			fail();
+			return;
+		}
+
+		HttpTransport.getInstance().execute(request, new HttpTransport.ResponseListener() {
+
+			@Override
+			public void onResponse(HttpTransport.Response response) {
+				String newSid = response.getHeader("SID");
+
+				if (response.getStatusCode() == 200 && newSid != null) {
+					subscribed(renewSid, newSid, parseTimeout(response.getHeader("TIMEOUT")));
+				} else if (renewSid != null && response.getStatusCode() == 412) {
+					// The device forgot the subscription, start a new one
+					resubscribe(renewSid);
+				} else {
+					fail();
+				}
+			}
+
+			@Override
+			public void onFailure(IOException e) {
+				fail();
+			}
+		});
+	}
+
+	private void subscribed(String renewSid, String newSid, int timeout) {
+		synchronized (this) {
+			if (!active || (renewSid != null ? !renewSid.equals(sid) : sid != null)) {
+				// Unsubscribed or replaced while the request was underway
+				if (renewSid == null || !newSid.equals(renewSid))
+					end(newSid);
+				return;
+			}
+
+			failures = 0;
+			scheduleRenew(timeout);
+
+			if (newSid.equals(sid))
+				return;
+
+			sid = newSid;
+			expectedSeq = 0;
+		}
+
+		GenaEventServer.getInstance().register(newSid, this);
+	}
+
+	private void resubscribe(String oldSid) {
+		synchronized (this) {
+			if (!active || !oldSid.equals(sid))
+				return;
+
+			sid = null;
+			cancelRenew();
+		}
+
+		end(oldSid);
+		sendSubscribe(null);
+	}
+
+	private void fail() {
+		String lostSid;
+
+		synchronized (this) {
+			if (!active)
+				return;
+
+			if (++failures <= MAX_RETRIES) {
+				cancelRenew();
+				renewTask = new TimerTask() {
+
+					@Override
+					public void run() {
+						renew();
+					}
+				};
+				getTimer().schedule(renewTask, RETRY_DELAY * failures);
+				return;
+			}
+
+			active = false;
+			lostSid = sid;
+			sid = null;
+			cancelRenew();
+		}
+
+		if (lostSid != null)
+			GenaEventServer.getInstance().unregister(lostSid);
+
+		listener.onSubscriptionLost();
+	}
+
+	private void renew() {
+		String renewSid;
+
+		synchronized (this) {
+			if (!active)
+				return;
+
+			renewSid = sid;
+		}
+
+		sendSubscribe(renewSid);
+	}
+
+	private void scheduleRenew(int timeout) {
+		cancelRenew();
+
+		if (timeout <= 0)
+			return;
+
+		long lifetime = timeout * 1000L;
+		long delay = Math.max(MIN_RENEW_DELAY, lifetime - Math.min(MAX_RENEW_MARGIN, lifetime / 4));
+
+		renewTask = new TimerTask() {
+
+			@Override
+			public void run() {
+				renew();
+			}
+		};
+		getTimer().schedule(renewTask, delay);
+	}
+
+	private void cancelRenew() {
+		if (renewTask != null) {
+			renewTask.cancel();
+			renewTask = null;
+		}
+	}
+
+	/** Stops receiving events for sid and tells the device, without waiting for the answer */
+	private void end(String oldSid) {
+		GenaEventServer.getInstance().unregister(oldSid);
+
+		GenaRequest request = new GenaRequest("UNSUBSCRIBE", eventURL);
+		request.setHeader("SID", oldSid);
+
+		HttpTransport.getInstance().execute(request, new HttpTransport.ResponseListener() {
+
+			@Override
+			public void onResponse(HttpTransport.Response response) { }
+
+			@Override
+			public void onFailure(IOException e) { }
+		});
+	}
+
+	/** Called by the GenaEventServer for every NOTIFY with the SID of this subscription */
+	void onNotify(long seq, byte[] body) {
+		String gapSid = null;
+
+		synchronized (this) {
+			if (!active || sid == null)
+				return;
+
+			if (seq >= 0) {
+				if (seq != expectedSeq && seq != 0)
+					gapSid = sid;
+
+				// SEQ wraps to 1, 0 is only used for the initial event
+				expectedSeq = seq >= 0xFFFFFFFFL ? 1 : seq + 1;
+			}
+		}
+
+		Map<String, String> properties;
+
+		try {
+			properties = parsePropertySet(body);
+		} catch (XmlPullParserException e) {
+			e.printStackTrace();
+			properties = null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			properties = null;
+		}
+
+		if (properties != null && !properties.isEmpty())
+			listener.onEvent(properties);
+
+		if (gapSid != null)
+			resubscribe(gapSid);
+	}
+
+	static Map<String, String> parsePropertySet(byte[] body) throws XmlPullParserException, IOException {
+		Map<String, String> properties = new HashMap<String, String>();
+
+		XmlPullParser parser = Xml.newPullParser();
+		parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		parser.setInput(new ByteArrayInputStream(body), null);
+
+		int depth = 0;
+		int propertyDepth = -1;
+		String name = null;
+		StringBuilder value = new StringBuilder();
+
+		for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+			if (event == XmlPullParser.START_TAG) {
+				depth++;
+
+				if ("property".equals(parser.getName())) {
+					propertyDepth = depth;
+				} else if (propertyDepth >= 0 && depth == propertyDepth + 1) {
+					name = parser.getName();
+					value.setLength(0);
+				}
+			} else if (event == XmlPullParser.TEXT) {
+				if (name != null)
+					value.append(parser.getText());
+			} else if (event == XmlPullParser.END_TAG) {
+				if (name != null && depth == propertyDepth + 1) {
+					properties.put(name, value.toString());
+					name = null;
+				} else if (depth == propertyDepth) {
+					propertyDepth = -1;
+				}
+
+				depth--;
+			}
+		}
+
+		return properties;
+	}
+
+	/**
+	 * Parses the LastChange variable UPnP AV services event their state through, and returns
+	 * the variables of one instance that changed, each with its new value.
+	 */
+	public static Map<String, String> parseLastChange(String lastChange, String instanceId) {
+		Map<String, String> changes = new HashMap<String, String>();
+
+		try {
+			XmlPullParser parser = Xml.newPullParser();
+			parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+			parser.setInput(new StringReader(lastChange));
+
+			boolean inInstance = false;
+
+			for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+				if (event == XmlPullParser.START_TAG) {
+					if ("InstanceID".equals(parser.getName())) {
+						inInstance = instanceId.equals(parser.getAttributeValue(null, "val"));
+					} else if (inInstance) {
+						String value = parser.getAttributeValue(null, "val");
+
+						if (value != null)
+							changes.put(parser.getName(), value);
+					}
+				} else if (event == XmlPullParser.END_TAG && "InstanceID".equals(parser.getName())) {
+					inInstance = false;
+				}
+			}
+		} catch (XmlPullParserException e) {
+			// Keep what was parsed before the error
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return changes;
+	}
+
+	static int parseTimeout(String timeout) {
+		if (timeout == null)
+			return REQUESTED_TIMEOUT;
+
+		String value = timeout.trim();
+
+		if (value.equalsIgnoreCase("infinite"))
+			return 0;
+
+		if (value.regionMatches(true, 0, "Second-", 0, 7)) {
+			try {
+				return Integer.parseInt(value.substring(7).trim());
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+		}
+
+		return REQUESTED_TIMEOUT;
+	}
+
+	/** URL of the event server on the interface the device is reached through */
+	private static String getCallbackURL(URI deviceURI) throws IOException {
+		int port = GenaEventServer.getInstance().start();
+		DatagramSocket socket = new DatagramSocket();
+
+		try {
+			// Connecting a datagram socket sends nothing, it only picks the route
+			socket.connect(InetAddress.getByName(deviceURI.getHost()), deviceURI.getPort() > 0 ? deviceURI.getPort() : 80);
+			InetAddress local = socket.getLocalAddress();
+
+			if (local == null || local.isAnyLocalAddress())
+				throw new IOException("No route to " + deviceURI.getHost());
+
+			return "http://" + local.getHostAddress() + ":" + port + GenaEventServer.PATH;
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static synchronized Timer getTimer() {
+		if (timer == null)
+			timer = new Timer("Connect SDK GENA renewal", true);
+
+		return timer;
+	}
+
+	static class GenaRequest extends HttpRequestBase {
+		private final String method;
+
+		GenaRequest(String method, String uri) {
+			this.method = method;
+			setURI(URI.create(uri));
+		}
+
+		@Override
+		public String getMethod() {
+			return method;
+		}
+	}
+	// @endcond
+}
@@ -21,9 +21,8 @@
 package com.connectsdk.core.upnp.ssdp;
 
 import java.net.DatagramPacket;
+import java.net.InetAddress;
 import java.nio.charset.Charset;
-import java.util.HashMap;
-import java.util.Map;
 
 public class SSDP {
     /* New line definition */
@@ -40,6 +39,9 @@ public class SSDP {
     public static final String URN = "URN";
     public static final String USN = "USN";
     public static final String APPLICATION_URL = "Application-URL";
+    public static final String CACHE_CONTROL = "CACHE-CONTROL";
+    public static final String BOOTID = "BOOTID.UPNP.ORG";
+    public static final String CONFIGID = "CONFIGID.UPNP.ORG";
 
     /* Definitions of start line */
     public static final String SL_NOTIFY = "NOTIFY * HTTP/1.1";
@@ -64,60 +66,265 @@ public class SSDP {
     public static final String NTS_UPDATE = "ssdp:update";
     
     public static ParsedDatagram convertDatagram(DatagramPacket dp) {
-    	return new ParsedDatagram(dp);
+    	ParsedDatagram datagram = new ParsedDatagram();
+    	datagram.parse(dp.getData(), dp.getOffset(), dp.getLength(), dp.getAddress());
+    	return datagram;
     }
     
+    /**
+     * Reusable SSDP message parser. Parsing only records where the start line and the known
+     * headers are in the packet; nothing is allocated until a value is asked for as a String.
+     */
     public static class ParsedDatagram {
-    	public DatagramPacket dp;
-    	public Map<String, String> data = new HashMap<String, String>();
-    	public String type;
+    	public static final int HEADER_ST = 0;
+    	public static final int HEADER_NT = 1;
+    	public static final int HEADER_NTS = 2;
+    	public static final int HEADER_USN = 3;
+    	public static final int HEADER_LOCATION = 4;
+    	public static final int HEADER_CACHE_CONTROL = 5;
+    	public static final int HEADER_BOOTID = 6;
+    	public static final int HEADER_CONFIGID = 7;
     	
-    	static Charset ASCII_CHARSET = Charset.forName("US-ASCII");
+    	static final Charset ASCII_CHARSET = Charset.forName("US-ASCII");
+    	static final byte[][] HEADER_NAMES = {
+    		ascii(ST), ascii(NT), ascii(NTS), ascii(USN), ascii(LOCATION), ascii(CACHE_CONTROL), ascii(BOOTID), ascii(CONFIGID)
+    	};
+    	static final byte[] NOTIFY_LINE = ascii(SL_NOTIFY);
+    	static final byte[] MSEARCH_LINE = ascii(SL_MSEARCH);
+    	static final byte[] UUID_PREFIX = ascii("uuid:");
+    	static final byte[] MAX_AGE = ascii("max-age");
     	
-    	public ParsedDatagram(DatagramPacket packet) {
-    		this.dp = packet;
+    	byte[] bytes;
+    	int lineStart;
+    	int lineEnd;
+    	int[] valueStart = new int[HEADER_NAMES.length];
+    	int[] valueEnd = new int[HEADER_NAMES.length];
+    	InetAddress address;
+    	
+    	public void parse(byte[] bytes, int offset, int length, InetAddress address) {
+    		this.bytes = bytes;
+    		this.address = address;
     		
-    		String text = new String(dp.getData(), ASCII_CHARSET);
+    		for (int i = 0; i < valueStart.length; i++) {
+    			valueStart[i] = -1;
+    		}
     		
-    		int pos = 0;
-    		int eolPos = text.indexOf("\r\n");
+    		int end = offset + length;
+    		int pos = offset;
     		
-    		// Get first line
-    		type = text.substring(0, eolPos);
-    		pos = eolPos + 2;
+    		lineStart = pos;
+    		lineEnd = -1;
     		
-    		while (pos < text.length()) {
-    			eolPos = text.indexOf("\r\n", pos);
+    		while (pos < end) {
+    			int eol = indexOf(bytes, (byte) '\n', pos, end);
+    			int next = eol < 0 ? end : eol + 1;
+    			int contentEnd = eol < 0 ? end : eol;
+    			
+    			if (contentEnd > pos && bytes[contentEnd - 1] == '\r')
+    				contentEnd--;
     			
-    			if (eolPos < 0) {
+    			if (lineEnd < 0) {
+    				lineEnd = contentEnd;
+    			} else if (contentEnd == pos) {
+    				// Empty line ends the headers
     				break;
+    			} else {
+    				parseHeader(pos, contentEnd);
     			}
     			
-    			String line = text.substring(pos, eolPos);
-    			pos = eolPos + 2;
-    			
-    			int index = line.indexOf(':');
-    			if (index == -1) {
-    				continue;
+    			pos = next;
+    		}
+    		
+    		if (lineEnd < 0)
+    			lineEnd = lineStart;
+    	}
+    	
+    	private void parseHeader(int start, int end) {
+    		int colon = indexOf(bytes, (byte) ':', start, end);
+    		if (colon < 0)
+    			return;
+    		
+    		for (int header = 0; header < HEADER_NAMES.length; header++) {
+    			if (equalsIgnoreCase(bytes, start, colon, HEADER_NAMES[header])) {
+    				int valueFrom = colon + 1;
+    				int valueTo = end;
+    				
+    				while (valueFrom < valueTo && bytes[valueFrom] <= ' ')
+    					valueFrom++;
+    				while (valueTo > valueFrom && bytes[valueTo - 1] <= ' ')
+    					valueTo--;
+    				
+    				valueStart[header] = valueFrom;
+    				valueEnd[header] = valueTo;
+    				return;
     			}
-    			
-    			String key = asciiUpper(line.substring(0, index));
-    			String value = line.substring(index + 1).trim();
-    			
-    			data.put(key, value);
     		}
     	}
     	
-        // Fast toUpperCase for ASCII strings
-        private static String asciiUpper(String text) {
-        	char [] chars = text.toCharArray();
-        	
-        	for (int i = 0; i < chars.length; i++) {
-        		char c = chars[i];
-        		chars[i] = (c >= 97 && c <= 122) ? (char) (c - 32) : c;
-        	}
-        	
-        	return new String(chars);
-        }
+    	public InetAddress getAddress() {
+    		return address;
+    	}
+    	
+    	public boolean isNotify() {
+    		return equals(bytes, lineStart, lineEnd, NOTIFY_LINE);
+    	}
+    	
+    	public boolean isSearch() {
+    		return equals(bytes, lineStart, lineEnd, MSEARCH_LINE);
+    	}
+    	
+    	/** Whether the header is present with a non-empty value */
+    	public boolean hasHeader(int header) {
+    		return valueStart[header] >= 0 && valueEnd[header] > valueStart[header];
+    	}
+    	
+    	/** Exact comparison of a header value with a string of ASCII characters */
+    	public boolean headerEquals(int header, String value) {
+    		int start = valueStart[header];
+    		if (start < 0 || valueEnd[header] - start != value.length())
+    			return false;
+    		
+    		for (int i = 0; i < value.length(); i++) {
+    			if (bytes[start + i] != value.charAt(i))
+    				return false;
+    		}
+    		
+    		return true;
+    	}
+    	
+    	public String getHeader(int header) {
+    		int start = valueStart[header];
+    		if (start < 0)
+    			return null;
+    		
+    		return new String(bytes, start, valueEnd[header] - start, ASCII_CHARSET);
+    	}
+    	
+    	public String getStartLine() {
+    		return new String(bytes, lineStart, lineEnd - lineStart, ASCII_CHARSET);
+    	}
+    	
+    	/**
+    	 * The device UUID from the USN header: the text after "uuid:" up to "::" or the end.
+    	 */
+    	public String getUUID() {
+    		int start = valueStart[HEADER_USN];
+    		if (start < 0)
+    			return null;
+    		
+    		int end = valueEnd[HEADER_USN];
+    		int prefix = indexOf(bytes, UUID_PREFIX, start, end);
+    		if (prefix < 0 || prefix + UUID_PREFIX.length >= end)
+    			return null;
+    		
+    		int uuidStart = prefix + UUID_PREFIX.length;
+    		int uuidEnd = end;
+    		
+    		// At least one character, then up to the first "::"
+    		for (int i = uuidStart + 1; i < end - 1; i++) {
+    			if (bytes[i] == ':' && bytes[i + 1] == ':') {
+    				uuidEnd = i;
+    				break;
+    			}
+    		}
+    		
+    		return new String(bytes, uuidStart, uuidEnd - uuidStart, ASCII_CHARSET);
+    	}
+    	
+    	/**
+    	 * The max-age from the CACHE-CONTROL header in seconds, or -1 when missing.
+    	 */
+    	public int getMaxAge() {
+    		int start = valueStart[HEADER_CACHE_CONTROL];
+    		if (start < 0)
+    			return -1;
+    		
+    		int end = valueEnd[HEADER_CACHE_CONTROL];
+    		for (int i = start; i + MAX_AGE.length <= end; i++) {
+    			if (equalsIgnoreCase(bytes, i, i + MAX_AGE.length, MAX_AGE)) {
+    				int pos = i + MAX_AGE.length;
+    				
+    				while (pos < end && (bytes[pos] == ' ' || bytes[pos] == '='))
+    					pos++;
+    				
+    				return (int) parseNumber(pos, end);
+    			}
+    		}
+    		
+    		return -1;
+    	}
+    	
+    	/** Numeric value of a header such as BOOTID.UPNP.ORG, or -1 when missing or not a number */
+    	public long getNumericHeader(int header) {
+    		int start = valueStart[header];
+    		if (start < 0)
+    			return -1;
+    		
+    		return parseNumber(start, valueEnd[header]);
+    	}
+    	
+    	private long parseNumber(int start, int end) {
+    		long value = 0;
+    		int pos = start;
+    		
+    		while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9' && value < Integer.MAX_VALUE) {
+    			value = value * 10 + (bytes[pos] - '0');
+    			pos++;
+    		}
+    		
+    		return pos == start ? -1 : value;
+    	}
+    	
+    	static byte[] ascii(String text) {
+    		return text.getBytes(ASCII_CHARSET);
+    	}
+    	
+    	static int indexOf(byte[] bytes, byte b, int start, int end) {
+    		for (int i = start; i < end; i++) {
+    			if (bytes[i] == b)
+    				return i;
+    		}
+    		
+    		return -1;
+    	}
+    	
+    	static int indexOf(byte[] bytes, byte[] pattern, int start, int end) {
+    		for (int i = start; i + pattern.length <= end; i++) {
+    			if (equals(bytes, i, i + pattern.length, pattern))
+    				return i;
+    		}
+    		
+    		return -1;
+    	}
+    	
+    	static boolean equals(byte[] bytes, int start, int end, byte[] other) {
+    		if (end - start != other.length)
+    			return false;
+    		
+    		for (int i = 0; i < other.length; i++) {
+    			if (bytes[start + i] != other[i])
+    				return false;
+    		}
+    		
+    		return true;
+    	}
+    	
+    	// ASCII-only; the other side is expected in upper or lower case as stored
+    	static boolean equalsIgnoreCase(byte[] bytes, int start, int end, byte[] other) {
+    		if (end - start != other.length)
+    			return false;
+    		
+    		for (int i = 0; i < other.length; i++) {
+    			int a = bytes[start + i];
+    			int b = other[i];
+    			
+    			if (a != b && (a | 0x20) != (b | 0x20))
+    				return false;
+    			if (a != b && ((a | 0x20) < 'a' || (a | 0x20) > 'z'))
+    				return false;
+    		}
+    		
+    		return true;
+    	}
     }
-}
\ No newline at end of file
+}
@@ -1,10 +1,10 @@
 /*
  * SSDPSocket
  * Connect SDK
- * 
+ *
  * Copyright (c) 2014 LG Electronics.
  * Copyright (c) 2011 stonker.lee@gmail.com https://code.google.com/p/android-dlna/
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
@@ -20,99 +20,365 @@
 
 package com.connectsdk.core.upnp.ssdp;
 
+import com.connectsdk.core.upnp.ssdp.SSDP.ParsedDatagram;
+
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.NetworkInterface;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
 
+/**
+ * Sends M-SEARCH requests and receives search responses and NOTIFY messages on every
+ * eligible network interface (Wi-Fi, Ethernet, USB tethering).
+ *
+ * One selector thread reads all channels into pooled direct buffers. Joining a multicast
+ * group from a DatagramChannel needs API 24; on older platforms NOTIFY messages are read
+ * from a MulticastSocket on a second thread.
+ */
 public class SSDPSocket {
-    SocketAddress mSSDPMulticastGroup;
+    public interface SSDPListener {
+        /** Called on the receiving thread; the datagram is reused for the next packet and must not be kept. */
+        public void onDatagramReceived(ParsedDatagram datagram);
+    }
+
+    static final int DEFAULT_MTU = 1500;
 
-    DatagramSocket wildSocket;
+    // DatagramChannel.join(InetAddress, NetworkInterface), public from API 24 on
+    static final Method joinMethod = findJoinMethod();
+
+    InetSocketAddress mSSDPMulticastGroup;
+    List<NetworkInterface> mNetIfs;
+    List<DatagramChannel> mSearchChannels = new ArrayList<DatagramChannel>();
+    DatagramChannel mMulticastChannel;
     MulticastSocket mLocalSocket;
-    
-    NetworkInterface mNetIf;
-    InetAddress localInAddress;
 
-    int timeout = 0;
-    
-    public SSDPSocket(InetAddress source) throws IOException {
-        localInAddress = source;
-        System.out.println("Local address: " + localInAddress.getHostAddress());
+    Selector mSelector;
+    Thread mSelectorThread;
+    Thread mNotifyThread;
+    SSDPListener mListener;
+
+    int mBufferSize;
+    // Only the selector thread receives on the channels, so one buffer serves all of them
+    byte[] mSelectorBytes;
+    ByteBuffer mSelectorBuffer;
+    ParsedDatagram mSelectorDatagram = new ParsedDatagram();
+
+    volatile boolean mOpen;
+    volatile long mSentCount;
+    volatile long mReceivedCount;
+    volatile long mTruncatedCount;
+
+    public SSDPSocket(SSDPListener listener) throws IOException {
+        this(getEligibleInterfaces(), listener);
+    }
+
+    public SSDPSocket(List<NetworkInterface> netIfs, SSDPListener listener) throws IOException {
+        if (netIfs.isEmpty())
+            throw new IOException("No network interface for SSDP");
 
+        mNetIfs = netIfs;
+        mListener = listener;
         mSSDPMulticastGroup = new InetSocketAddress(SSDP.ADDRESS, SSDP.PORT);
+        mBufferSize = DEFAULT_MTU;
+
+        for (NetworkInterface netIf : netIfs) {
+            mBufferSize = Math.max(mBufferSize, netIf.getMTU());
+        }
+
+        mSelectorBytes = new byte[mBufferSize];
+        mSelectorBuffer = ByteBuffer.wrap(mSelectorBytes);
+        mSelector = Selector.open();
+        mOpen = true;
+
+        try {
+            for (NetworkInterface netIf : netIfs) {
+                mSearchChannels.add(openSearchChannel(getIPv4Address(netIf)));
+            }
+
+            if (joinMethod != null) {
+                mMulticastChannel = openMulticastChannel(netIfs);
+            } else {
+                mLocalSocket = new MulticastSocket(SSDP.PORT);
+                for (NetworkInterface netIf : netIfs) {
+                    mLocalSocket.joinGroup(mSSDPMulticastGroup, netIf);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        mSelectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, "Connect SDK SSDP");
+        mSelectorThread.start();
+
+        if (mLocalSocket != null) {
+            mNotifyThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    notifyLoop();
+                }
+            }, "Connect SDK SSDP Notify");
+            mNotifyThread.start();
+        }
+    }
+
+    /**
+     * Interfaces that are up, multicast capable, have an IPv4 address and are not loopback
+     * or mobile data.
+     */
+    public static List<NetworkInterface> getEligibleInterfaces() throws SocketException {
+        List<NetworkInterface> netIfs = new ArrayList<NetworkInterface>();
+        Enumeration<NetworkInterface> all = NetworkInterface.getNetworkInterfaces();
+
+        if (all == null)
+            return netIfs;
 
-        mLocalSocket = new MulticastSocket(SSDP.PORT);
+        for (NetworkInterface netIf : Collections.list(all)) {
+            String name = netIf.getName();
+
+            if (!netIf.isUp() || netIf.isLoopback() || netIf.isVirtual() || !netIf.supportsMulticast())
+                continue;
+            if (name.startsWith("rmnet") || name.startsWith("ccmni") || name.startsWith("pdp") || name.startsWith("ppp"))
+                continue;
+            if (getIPv4Address(netIf) == null)
+                continue;
+
+            netIfs.add(netIf);
+        }
 
-        mNetIf = NetworkInterface.getByInetAddress(localInAddress);
-        mLocalSocket.joinGroup(mSSDPMulticastGroup, mNetIf);
-        
-    	wildSocket = new DatagramSocket(null);
-    	wildSocket.setReuseAddress(true);
-    	wildSocket.bind(new InetSocketAddress(localInAddress, SSDP.SOURCE_PORT));
+        return netIfs;
     }
 
-    /** Used to send SSDP packet */
-    public void send(String data) throws IOException {
-        DatagramPacket dp = new DatagramPacket(data.getBytes(), data.length(), mSSDPMulticastGroup);
+    static InetAddress getIPv4Address(NetworkInterface netIf) {
+        for (InetAddress address : Collections.list(netIf.getInetAddresses())) {
+            if (address instanceof Inet4Address)
+                return address;
+        }
 
-        wildSocket.send(dp);
+        return null;
     }
 
+    static Method findJoinMethod() {
+        try {
+            return DatagramChannel.class.getMethod("join", InetAddress.class, NetworkInterface.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
 
-    /** Used to receive SSDP Response packet */
-    public DatagramPacket responseReceive() throws IOException {
-        byte[] buf = new byte[1024];
-        DatagramPacket dp = new DatagramPacket(buf, buf.length);
+    private DatagramChannel openSearchChannel(InetAddress address) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
 
-        wildSocket.receive(dp);
+        try {
+            channel.socket().setReuseAddress(true);
+            try {
+                channel.socket().bind(new InetSocketAddress(address, SSDP.SOURCE_PORT));
+            } catch (SocketException e) {
+                // Someone else holds the source port on this address, any port will do for responses
+                channel.socket().bind(new InetSocketAddress(address, 0));
+            }
 
-        return dp;
+            channel.configureBlocking(false);
+            channel.register(mSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+    }
+
+    private DatagramChannel openMulticastChannel(List<NetworkInterface> netIfs) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(new InetSocketAddress(SSDP.PORT));
+
+            for (NetworkInterface netIf : netIfs) {
+                try {
+                    joinMethod.invoke(channel, mSSDPMulticastGroup.getAddress(), netIf);
+                } catch (Exception e) {
+                    throw new IOException("Could not join " + SSDP.ADDRESS + " on " + netIf.getName() + ": " + e);
+                }
+            }
+
+            channel.configureBlocking(false);
+            channel.register(mSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel;
     }
-    
-    /** Used to receive SSDP Notify packet */
-    public DatagramPacket notifyReceive() throws IOException {
-        byte[] buf = new byte[1024];
+
+    /** Used to send SSDP packet, once on every interface. Returns the number of datagrams sent. */
+    public int send(String data) throws IOException {
+        byte[] bytes = data.getBytes("US-ASCII");
+        IOException lastError = null;
+        int sent = 0;
+
+        for (DatagramChannel channel : mSearchChannels) {
+            try {
+                channel.send(ByteBuffer.wrap(bytes), mSSDPMulticastGroup);
+                sent++;
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+
+        if (sent == 0 && lastError != null)
+            throw lastError;
+
+        mSentCount += sent;
+        return sent;
+    }
+
+    private void selectLoop() {
+        while (mOpen) {
+            try {
+                mSelector.select();
+
+                Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    if (key.isValid() && key.isReadable())
+                        drain((DatagramChannel) key.channel());
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (mOpen)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    /** Reads every queued datagram from the channel, straight into the array the parser reads */
+    private void drain(DatagramChannel channel) throws IOException {
+        while (mOpen) {
+            mSelectorBuffer.clear();
+            SocketAddress source = channel.receive(mSelectorBuffer);
+
+            if (source == null)
+                break;
+
+            dispatch(mSelectorDatagram, mSelectorBytes, mSelectorBuffer.position(), ((InetSocketAddress) source).getAddress());
+        }
+    }
+
+    private void notifyLoop() {
+        byte[] buf = new byte[mBufferSize];
         DatagramPacket dp = new DatagramPacket(buf, buf.length);
+        ParsedDatagram datagram = new ParsedDatagram();
 
-        mLocalSocket.receive(dp);
+        while (mOpen) {
+            try {
+                dp.setLength(buf.length);
+                mLocalSocket.receive(dp);
+                dispatch(datagram, buf, dp.getLength(), dp.getAddress());
+            } catch (IOException e) {
+                if (mOpen)
+                    e.printStackTrace();
+                break;
+            }
+        }
+    }
+
+    private void dispatch(ParsedDatagram datagram, byte[] data, int length, InetAddress source) {
+        mReceivedCount++;
+
+        // A datagram that fills the whole buffer may have been cut off
+        if (length == mBufferSize)
+            mTruncatedCount++;
+
+        if (length == 0)
+            return;
+
+        try {
+            datagram.parse(data, 0, length, source);
+            mListener.onDatagramReceived(datagram);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getSentCount() {
+        return mSentCount;
+    }
 
-        return dp;
+    public long getReceivedCount() {
+        return mReceivedCount;
     }
-    
-//    /** Starts the socket */
-//    public void start() {
-//    	
-//    }
-    
-    public boolean isConnected() {
-    	return wildSocket != null && mLocalSocket != null && wildSocket.isConnected() && mLocalSocket.isConnected();
+
+    public long getTruncatedCount() {
+        return mTruncatedCount;
+    }
+
+    public boolean isOpen() {
+        return mOpen;
     }
 
     /** Close the socket */
     public void close() {
+        mOpen = false;
+
         if (mLocalSocket != null) {
+            for (NetworkInterface netIf : mNetIfs) {
+                try {
+                    mLocalSocket.leaveGroup(mSSDPMulticastGroup, netIf);
+                } catch (IOException e) {
+                    // Already left when the interface went down
+                }
+            }
+            mLocalSocket.close();
+        }
+
+        if (mMulticastChannel != null)
+            closeQuietly(mMulticastChannel);
+
+        for (DatagramChannel channel : mSearchChannels) {
+            closeQuietly(channel);
+        }
+
+        if (mSelector != null) {
             try {
-                mLocalSocket.leaveGroup(mSSDPMulticastGroup, mNetIf);
+                mSelector.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            mLocalSocket.close();
-        }
-        
-        if (wildSocket != null) {
-            wildSocket.disconnect();
-            wildSocket.close();
         }
     }
-    
-    public void setTimeout(int timeout) throws SocketException {
-    	this.timeout = timeout;
-    	wildSocket.setSoTimeout(this.timeout);
+
+    private static void closeQuietly(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
-}
\ No newline at end of file
+}
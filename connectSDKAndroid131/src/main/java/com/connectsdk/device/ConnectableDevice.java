@@ -25,6 +25,7 @@ import com.connectsdk.discovery.DiscoveryManager;
 import com.connectsdk.service.DeviceService;
 import com.connectsdk.service.DeviceService.DeviceServiceListener;
 import com.connectsdk.service.DeviceService.PairingType;
+import com.connectsdk.service.capability.CapabilityIndex;
 import com.connectsdk.service.capability.ExternalInputControl;
 import com.connectsdk.service.capability.KeyControl;
 import com.connectsdk.service.capability.Launcher;
@@ -94,6 +95,8 @@ public class ConnectableDevice implements DeviceServiceListener {
 	
 	public boolean featuresReady = false;
 	
+	private boolean probable = false;
+	
 	public ConnectableDevice() {
 		services = new ConcurrentHashMap<String, DeviceService>();
 	}
@@ -152,7 +155,7 @@ public class ConnectableDevice implements DeviceServiceListener {
 	 * @param service DeviceService to be added
 	 */
 	public void addService(DeviceService service) {
-		final List<String> added = getMismatchCapabilities(service.getCapabilities(), getCapabilities());
+		final List<String> added = CapabilityIndex.toList(service.getCapabilityBits(), getCapabilityBits());
 		
 		service.setListener(this);
 		
@@ -192,7 +195,7 @@ public class ConnectableDevice implements DeviceServiceListener {
 		
 		services.remove(serviceId);
 
-		final List<String> removed = getMismatchCapabilities(service.getCapabilities(), getCapabilities());
+		final List<String> removed = CapabilityIndex.toList(service.getCapabilityBits(), getCapabilityBits());
 
 		Util.runOnUI(new Runnable() {
 			
@@ -204,18 +207,6 @@ public class ConnectableDevice implements DeviceServiceListener {
 		});
 	}
 	
-	private synchronized List<String> getMismatchCapabilities(List<String> capabilities, List<String> allCapabilities) { 
-		List<String> list = new ArrayList<String>();
-		
-		for (String cap: capabilities) {
-			if ( !allCapabilities.contains(cap) ) {
-				list.add(cap);
-			}
-		}
-		
-		return list;
-	}
-	
 	/** Array of all currently discovered DeviceServices this ConnectableDevice has associated with it. */
 	public Collection<DeviceService> getServices() {
 		return services.values();
@@ -382,19 +373,22 @@ public class ConnectableDevice implements DeviceServiceListener {
 	}
 	
 	/** A combined list of all capabilities that are supported among the detected DeviceServices. */
-	public synchronized List<String> getCapabilities() {
-		List<String> caps = new ArrayList<String>();
+	public List<String> getCapabilities() {
+		return CapabilityIndex.toList(getCapabilityBits());
+	}
+	
+	// @cond INTERNAL
+	/** Union of the capability bitsets of all services */
+	public long[] getCapabilityBits() {
+		long[] bits = CapabilityIndex.EMPTY;
 		
 		for (DeviceService service: services.values()) {
-			for (String capability: service.getCapabilities()) {
-				if ( !caps.contains(capability) ) {
-					caps.add(capability);
-				}
-			}
+			bits = CapabilityIndex.or(bits, service.getCapabilityBits());
 		}
 		
-		return caps;
+		return bits;
 	}
+	// @endcond
 	
 	/**
 	 * Test to see if the capabilities array contains a given capability. See the individual Capability classes for acceptable capability values.
@@ -406,16 +400,7 @@ public class ConnectableDevice implements DeviceServiceListener {
 	 * @param capability Capability to test against
 	 */
 	public boolean hasCapability(String capability) {
-		boolean hasCap = false;
-
-		for (DeviceService service: services.values()) {
-			if ( service.hasCapability(capability) ) {
-				hasCap = true;
-				break;
-			}
-		}
-		
-		return hasCap;
+		return CapabilityIndex.getQuery(capability).matches(getCapabilityBits());
 	}
 	
 	/**
@@ -426,8 +411,10 @@ public class ConnectableDevice implements DeviceServiceListener {
 	 * @param capabilities Array of capabilities to test against
 	 */
 	public boolean hasAnyCapability(String... capabilities) {
-		for (DeviceService service : services.values()) {
-			if (service.hasAnyCapability(capabilities))
+		long[] bits = getCapabilityBits();
+		
+		for (String capability : capabilities) {
+			if (CapabilityIndex.getQuery(capability).matches(bits))
 				return true;
 		}
 		
@@ -441,7 +428,7 @@ public class ConnectableDevice implements DeviceServiceListener {
 	 *
 	 * @param capabilities Array of capabilities to test against
 	 */
-	public synchronized boolean hasCapabilities(List<String> capabilities) {
+	public boolean hasCapabilities(List<String> capabilities) {
 		String[] arr = new String[capabilities.size()];
 		capabilities.toArray(arr);
 		return hasCapabilities(arr);
@@ -454,17 +441,15 @@ public class ConnectableDevice implements DeviceServiceListener {
 	 *
 	 * @param capabilities Array of capabilities to test against
 	 */
-	public synchronized boolean hasCapabilities(String... capabilites) {
-		boolean hasCaps = true;
+	public boolean hasCapabilities(String... capabilites) {
+		long[] bits = getCapabilityBits();
 		
 		for (String capability : capabilites) {
-			if (!hasCapability(capability)) {
-				hasCaps = false;
-				break;
-			}
+			if (!CapabilityIndex.getQuery(capability).matches(bits))
+				return false;
 		}
 		
-		return hasCaps;
+		return true;
 	}
 
 	/** Accessor for highest priority Launcher object */
@@ -826,6 +811,19 @@ public class ConnectableDevice implements DeviceServiceListener {
 	public long getLastDetection() {
 		return lastDetection;
 	}
+	
+	/**
+	 * Whether this ConnectableDevice was restored from the ConnectableDeviceStore at startup and has not been seen on the network yet.
+	 */
+	public boolean isProbable() {
+		return probable;
+	}
+	
+	// @cond INTERNAL
+	public void setProbable(boolean probable) {
+		this.probable = probable;
+	}
+	// @endcond
 
 	/**
 	 * Sets an estimate of the ConnectableDevice's current model name.
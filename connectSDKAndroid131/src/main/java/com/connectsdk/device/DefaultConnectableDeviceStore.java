@@ -24,6 +24,7 @@ import android.content.Context;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Environment;
 
+import com.connectsdk.core.TaskScheduler;
 import com.connectsdk.core.Util;
 import com.connectsdk.service.DeviceService;
 import com.connectsdk.service.config.ServiceConfig;
@@ -32,12 +33,18 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -49,10 +56,22 @@ public class DefaultConnectableDeviceStore implements ConnectableDeviceStore {
 	public static final String KEY_UPDATED = "updated";
 	public static final String KEY_DEVICES = "devices";
 	
-	static final int CURRENT_VERSION = 0;
+	static final int CURRENT_VERSION = 1;
 	
 	static final String DIRPATH = "/android/data/connect_sdk/";
 	static final String FILENAME = "StoredDevices";
+	static final String JOURNAL_SUFFIX = ".journal";
+	
+	static final String KEY_GENERATION = "generation";
+	static final String KEY_OP = "op";
+	static final String KEY_ID = "id";
+	static final String KEY_DEVICE = "device";
+	static final String OP_PUT = "put";
+	static final String OP_REMOVE = "remove";
+	static final String OP_CLEAR = "clear";
+	
+	/** Journal records allowed on top of twice the number of devices before a new snapshot is written */
+	static final int MAX_JOURNAL_RECORDS = 64;
 	
 	static final String IP_ADDRESS = "ipAddress";
 	static final String FRIENDLY_NAME = "friendlyName";
@@ -91,11 +110,16 @@ public class DefaultConnectableDeviceStore implements ConnectableDeviceStore {
 	// @cond INTERNAL
 	private String fileFullPath;
 	
-	private JSONObject deviceStore;
 	private JSONObject storedDevices;
 	private Map<String, ConnectableDevice> activeDevices = new HashMap<String, ConnectableDevice>();
 	
-	private boolean waitToWrite = false;
+	// Serialized records waiting for the writer, and the number already in the journal file
+	private List<String> pendingRecords = new ArrayList<String>();
+	private int journalRecords;
+	// Incremented with every snapshot; journal records carry the generation they were written on top of
+	private long generation;
+	private boolean compactionNeeded = false;
+	private boolean writeScheduled = false;
 	
 	public DefaultConnectableDeviceStore(Context context) { 
 		String dirPath;
@@ -118,7 +142,7 @@ public class DefaultConnectableDeviceStore implements ConnectableDeviceStore {
 	// @endcond
 	
 	@Override
-	public void addDevice(ConnectableDevice device) {
+	public synchronized void addDevice(ConnectableDevice device) {
 		if (device == null || device.getServices().size() == 0)
 			return;
 
@@ -130,29 +154,32 @@ public class DefaultConnectableDeviceStore implements ConnectableDeviceStore {
 		if (storedDevice != null) {
 			updateDevice(device);
 		} else {
+			JSONObject deviceInfo = device.toJSONObject();
+			
 			try {
-				storedDevices.put(device.getId(), device.toJSONObject());
+				storedDevices.put(device.getId(), deviceInfo);
 			} catch (JSONException e) {
 				e.printStackTrace();
+				return;
 			}
 			
-			store();
+			journalPut(device.getId(), deviceInfo);
 		}
 	}
 
 	@Override
-	public void removeDevice(ConnectableDevice device) {
+	public synchronized void removeDevice(ConnectableDevice device) {
 		if (device == null)
 			return;
 
 		activeDevices.remove(device.getId());
-		storedDevices.remove(device.getId());
-
-		store();
+		
+		if (storedDevices.remove(device.getId()) != null)
+			journalRemove(device.getId());
 	}
 
 	@Override
-	public void updateDevice(ConnectableDevice device) {
+	public synchronized void updateDevice(ConnectableDevice device) {
 		if (device == null || device.getServices().size() == 0)
 			return;
 
@@ -184,27 +211,40 @@ public class DefaultConnectableDeviceStore implements ConnectableDeviceStore {
 			storedDevices.put(device.getId(), storedDevice);
 			activeDevices.put(device.getId(), device);
 
-			store();
+			journalPut(device.getId(), storedDevice);
 		} catch (JSONException e) {
 			e.printStackTrace();
 		}
 	}
 	
 	@Override
-	public void removeAll() {
+	public synchronized void removeAll() {
 		activeDevices.clear();
 		storedDevices = new JSONObject();
 
-		store();
+		journal(newRecord(OP_CLEAR));
 	}
 
 	@Override
-	public JSONObject getStoredDevices() {
+	public synchronized JSONObject getStoredDevices() {
 		return storedDevices;
 	}
 	
+	/**
+	 * A copy of getStoredDevices() made under the store's lock, safe to read while devices
+	 * are being added, updated or written to disk.
+	 */
+	public synchronized JSONObject copyStoredDevices() {
+		try {
+			return new JSONObject(storedDevices.toString());
+		} catch (JSONException e) {
+			// storedDevices is always valid JSON
+			throw new IllegalStateException(e);
+		}
+	}
+	
 	@Override
-	public ConnectableDevice getDevice(String uuid) {
+	public synchronized ConnectableDevice getDevice(String uuid) {
 		if (uuid == null || uuid.length() == 0)
 			return null;
 		
@@ -255,7 +295,7 @@ public class DefaultConnectableDeviceStore implements ConnectableDeviceStore {
 	}
 	
 	@Override
-	public ServiceConfig getServiceConfig(String uuid) {
+	public synchronized ServiceConfig getServiceConfig(String uuid) {
 		if (uuid == null || uuid.length() == 0)
 			return null;
 		
@@ -277,113 +317,331 @@ public class DefaultConnectableDeviceStore implements ConnectableDeviceStore {
 	}
 	
 	// @cond INTERNAL
+	/**
+	 * Reads the snapshot and replays the journal on top of it, one line at a time.
+	 */
 	private void load() {
-		String line;
-
-		BufferedReader in = null;
+		version = CURRENT_VERSION;
+		created = Util.getTime();
+		updated = Util.getTime();
+		generation = 0;
+		storedDevices = new JSONObject();
 
 		File file = new File(fileFullPath);
 
-		if (!file.exists()) {
-			version = CURRENT_VERSION;
-
-			created = Util.getTime();
-			updated = Util.getTime();
-			
-			storedDevices = new JSONObject();
-		} else {
-			boolean encounteredException = false;
-			
+		if (file.exists()) {
 			try {
-				in = new BufferedReader(new FileReader(file));
-
-				StringBuilder sb = new StringBuilder();
-
-				while ((line = in.readLine()) != null) {
-					sb.append(line);
-				}
-				
-				in.close();
-				
-				JSONObject data = new JSONObject(sb.toString());
-				storedDevices = data.optJSONObject(KEY_DEVICES);
-				if (storedDevices == null)
-					storedDevices = new JSONObject();
-				
-				version = data.optInt(KEY_VERSION, CURRENT_VERSION);
-				created = data.optLong(KEY_CREATED, 0);
-				updated = data.optLong(KEY_UPDATED, 0);
+				readSnapshot(file);
 			} catch (IOException e) {
 				e.printStackTrace();
-				
-				// it is likely that the device store has been corrupted
-				encounteredException = true;
+				resetAfterCorruption(file);
 			} catch (JSONException e) {
 				e.printStackTrace();
-				
-				// it is likely that the device store has been corrupted
-				encounteredException = true;
+				// the snapshot is replaced atomically, so it is damaged rather than half written
+				resetAfterCorruption(file);
 			}
-			
-			if (encounteredException && storedDevices == null) {
-				file.delete();
-				
-				version = CURRENT_VERSION;
+		}
 
-				created = Util.getTime();
-				updated = Util.getTime();
-				
-				storedDevices = new JSONObject();
+		File journal = new File(fileFullPath + JOURNAL_SUFFIX);
+
+		if (journal.exists())
+			replayJournal(journal);
+
+		if (compactionNeeded)
+			scheduleWrite();
+	}
+
+	private void resetAfterCorruption(File file) {
+		file.delete();
+
+		created = Util.getTime();
+		updated = Util.getTime();
+		generation = 0;
+		storedDevices = new JSONObject();
+	}
+
+	private void readSnapshot(File file) throws IOException, JSONException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+		try {
+			String line = in.readLine();
+
+			if (line == null)
+				return;
+
+			JSONObject header = new JSONObject(line);
+			created = header.optLong(KEY_CREATED, created);
+			updated = header.optLong(KEY_UPDATED, updated);
+			generation = header.optLong(KEY_GENERATION, 0);
+
+			// Stores written before the journal keep every device in one object
+			if (header.has(KEY_DEVICES)) {
+				JSONObject devices = header.optJSONObject(KEY_DEVICES);
+
+				if (devices != null)
+					storedDevices = devices;
+
+				compactionNeeded = true;
+				return;
 			}
+
+			while ((line = in.readLine()) != null) {
+				if (line.length() == 0)
+					continue;
+
+				JSONObject entry = new JSONObject(line);
+				storedDevices.put(entry.getString(KEY_ID), entry.getJSONObject(KEY_DEVICE));
+			}
+		} finally {
+			in.close();
 		}
 	}
-	
-	private void store() {
 
+	/**
+	 * Applies the records written on top of the snapshot. Records from an older generation are
+	 * already in the snapshot, they are left over when the process died or the journal could
+	 * not be deleted after the snapshot was replaced, and applying them would undo newer changes.
+	 */
+	private void replayJournal(File journal) {
+		BufferedReader in = null;
+
+		try {
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+			String line;
+
+			while ((line = in.readLine()) != null) {
+				if (line.length() == 0)
+					continue;
+
+				JSONObject record = new JSONObject(line);
+				journalRecords++;
+
+				if (record.optLong(KEY_GENERATION, 0) < generation) {
+					compactionNeeded = true;
+					continue;
+				}
+
+				apply(record);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			compactionNeeded = true;
+		} catch (JSONException e) {
+			// A record cut off by a crash; everything before it is applied, and the journal
+			// is folded into a new snapshot before anything is appended after the torn line
+			compactionNeeded = true;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void apply(JSONObject record) throws JSONException {
+		String op = record.getString(KEY_OP);
+
+		if (OP_PUT.equals(op))
+			storedDevices.put(record.getString(KEY_ID), record.getJSONObject(KEY_DEVICE));
+		else if (OP_REMOVE.equals(op))
+			storedDevices.remove(record.getString(KEY_ID));
+		else if (OP_CLEAR.equals(op))
+			storedDevices = new JSONObject();
+
+		updated = record.optLong(KEY_UPDATED, updated);
+	}
+
+	private void journalPut(String id, JSONObject device) {
+		JSONObject record = newRecord(OP_PUT);
+
+		try {
+			record.put(KEY_ID, id);
+			record.put(KEY_DEVICE, device);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+
+		journal(record);
+	}
+
+	private void journalRemove(String id) {
+		JSONObject record = newRecord(OP_REMOVE);
+
+		try {
+			record.put(KEY_ID, id);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+
+		journal(record);
+	}
+
+	private JSONObject newRecord(String op) {
 		updated = Util.getTime();
 
-		deviceStore = new JSONObject();
+		JSONObject record = new JSONObject();
+
 		try {
-			deviceStore.put(KEY_VERSION, version);
-			deviceStore.put(KEY_CREATED, created);
-			deviceStore.put(KEY_UPDATED, updated);
-			deviceStore.put(KEY_DEVICES, storedDevices);
+			record.put(KEY_OP, op);
+			record.put(KEY_UPDATED, updated);
+			record.put(KEY_GENERATION, generation);
 		} catch (JSONException e) {
 			e.printStackTrace();
 		}
-	
-		if (!waitToWrite)
-			writeStoreToDisk();
+
+		return record;
 	}
 
-	private void writeStoreToDisk() {
-		final double lastUpdate = updated;
-		waitToWrite = true;
-		
-		Util.runInBackground(new Runnable() {
-			
-			@Override
-			public void run() {
-		        FileWriter out;
+	/** Queues a record for the journal; called with the lock held */
+	private void journal(JSONObject record) {
+		// Serialized now, the device may change again before the record is written
+		pendingRecords.add(record.toString());
+		scheduleWrite();
+	}
+
+	private void scheduleWrite() {
+		if (writeScheduled)
+			return;
+
+		writeScheduled = true;
+		Util.runInBackground(writer, TaskScheduler.Lane.PERSISTENCE, true);
+	}
+
+	/**
+	 * Appends the queued records to the journal with one fsync per batch, or folds everything
+	 * into a new snapshot once the journal has grown past its limit.
+	 *
+	 * Each snapshot starts a new generation. Records queued before it are dropped since the
+	 * snapshot contains them, and records queued after it are stamped with the new generation,
+	 * so replaying skips whatever an old journal still holds.
+	 */
+	private final Runnable writer = new Runnable() {
+
+		@Override
+		public void run() {
+			while (true) {
+				List<String> records = null;
+				List<String> snapshot = null;
+
+				synchronized (DefaultConnectableDeviceStore.this) {
+					int limit = MAX_JOURNAL_RECORDS + 2 * storedDevices.length();
+
+					if (compactionNeeded || journalRecords + pendingRecords.size() > limit) {
+						generation++;
+						snapshot = getSnapshotLines();
+						pendingRecords.clear();
+						compactionNeeded = false;
+					} else if (!pendingRecords.isEmpty()) {
+						records = pendingRecords;
+						pendingRecords = new ArrayList<String>();
+					} else {
+						writeScheduled = false;
+						return;
+					}
+				}
+
 				try {
-					File output = new File(fileFullPath);
-					
-					if (!output.exists())
-						output.getParentFile().mkdirs();
-					
-					out = new FileWriter(output);
-					out.write(deviceStore.toString());
-			        out.close();
+					if (snapshot != null) {
+						writeSnapshot(snapshot);
+						journalRecords = 0;
+					} else {
+						writeLines(new File(fileFullPath + JOURNAL_SUFFIX), records, true);
+						journalRecords += records.size();
+					}
 				} catch (IOException e) {
 					e.printStackTrace();
-				} finally {
-					waitToWrite = false;
+
+					// What is on disk may be incomplete, the next write starts with a snapshot
+					synchronized (DefaultConnectableDeviceStore.this) {
+						compactionNeeded = true;
+						writeScheduled = false;
+					}
+					return;
 				}
-				
-				if (lastUpdate != updated)
-					writeStoreToDisk();
 			}
-		});
+		}
+	};
+
+	private List<String> getSnapshotLines() {
+		List<String> lines = new ArrayList<String>(storedDevices.length() + 1);
+		JSONObject header = new JSONObject();
+
+		try {
+			header.put(KEY_VERSION, version);
+			header.put(KEY_CREATED, created);
+			header.put(KEY_UPDATED, updated);
+			header.put(KEY_GENERATION, generation);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+
+		lines.add(header.toString());
+
+		@SuppressWarnings("unchecked")
+		Iterator<String> iter = storedDevices.keys();
+		while (iter.hasNext()) {
+			String id = iter.next();
+			JSONObject entry = new JSONObject();
+
+			try {
+				entry.put(KEY_ID, id);
+				entry.put(KEY_DEVICE, storedDevices.getJSONObject(id));
+			} catch (JSONException e) {
+				e.printStackTrace();
+				continue;
+			}
+
+			lines.add(entry.toString());
+		}
+
+		return lines;
+	}
+
+	private void writeSnapshot(List<String> lines) throws IOException {
+		File output = new File(fileFullPath);
+		File temp = new File(fileFullPath + ".tmp");
+
+		writeLines(temp, lines, false);
+
+		if (!temp.renameTo(output))
+			throw new IOException("Could not replace " + output);
+
+		// Everything in the journal is in the snapshot now. Its records are from an older
+		// generation, so if it can't be removed they are skipped on load; emptying it keeps
+		// them from counting towards the next compaction.
+		File journal = new File(fileFullPath + JOURNAL_SUFFIX);
+
+		if (journal.exists() && !journal.delete()) {
+			try {
+				writeLines(journal, new ArrayList<String>(), false);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void writeLines(File file, List<String> lines, boolean append) throws IOException {
+		if (!file.getParentFile().exists())
+			file.getParentFile().mkdirs();
+
+		FileOutputStream out = new FileOutputStream(file, append);
+
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+
+			for (String line : lines) {
+				writer.write(line);
+				writer.write('\n');
+			}
+
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
 	}
 	// @endcond
 }
@@ -23,12 +23,13 @@ package com.connectsdk.device;
 import android.content.Context;
 import android.widget.ListView;
 
-import com.connectsdk.core.Util;
 import com.connectsdk.discovery.DiscoveryManager;
-import com.connectsdk.discovery.DiscoveryManagerListener;
+import com.connectsdk.discovery.DiscoveryManagerBatchListener;
 import com.connectsdk.service.command.ServiceCommandError;
 
-public class DevicePickerListView extends ListView implements DiscoveryManagerListener {
+import java.util.List;
+
+public class DevicePickerListView extends ListView implements DiscoveryManagerBatchListener {
 	DevicePickerAdapter pickerAdapter;
 	
 	public DevicePickerListView(Context context) {
@@ -37,75 +38,60 @@ public class DevicePickerListView extends ListView implements DiscoveryManagerLi
         pickerAdapter = new DevicePickerAdapter(context);
         setAdapter(pickerAdapter);
 
-		DiscoveryManager.getInstance().addListener(this);
+		DiscoveryManager.getInstance().addBatchListener(this);
 	}
 	
 	@Override
 	public void onDiscoveryFailed(DiscoveryManager manager, ServiceCommandError error) {
-		Util.runOnUI(new Runnable () {
-			@Override
-			public void run() {
-				pickerAdapter.clear();
-			}
-		});
+		pickerAdapter.clear();
 	}
 
 	@Override
-	public void onDeviceAdded(DiscoveryManager manager, final ConnectableDevice device) {
-		Util.runOnUI(new Runnable () {
-			@Override
-			public void run() {
-				int index = -1;
-				for ( int i = 1; i < pickerAdapter.getCount(); i++ ) {
-					ConnectableDevice d = pickerAdapter.getItem(i);
-					
-					String newDeviceName = device.getFriendlyName();
-					String dName = d.getFriendlyName();
-					
-					if ( newDeviceName == null ) {
-						newDeviceName = device.getModelName();
-					}
-					
-					if ( dName == null ) {
-						dName = d.getModelName();
-					}
-
-					if ( d.getIpAddress().equals(device.getIpAddress()) ) {
-						pickerAdapter.remove(d);
-						pickerAdapter.insert(device, i);
-						return;
-					}
-					
-					if ( newDeviceName.compareToIgnoreCase(dName) < 0 ) {
-						index = i;
-						pickerAdapter.insert(device, index);
-						break;
-					}
-				}
-				
-				if ( index == -1 )
-					pickerAdapter.add(device);
-			}
-		});		
+	public void onDevicesChanged(DiscoveryManager manager, List<ConnectableDevice> added, List<ConnectableDevice> updated, List<ConnectableDevice> removed) {
+		// Apply the whole batch before the list is redrawn
+		pickerAdapter.setNotifyOnChange(false);
+		
+		for (ConnectableDevice device : removed) {
+			pickerAdapter.remove(device);
+		}
+		
+		for (ConnectableDevice device : added) {
+			addDevice(device);
+		}
+		
+		pickerAdapter.notifyDataSetChanged();
 	}
 
-	@Override
-	public void onDeviceUpdated(DiscoveryManager manager, final ConnectableDevice device) {
-		Util.runOnUI(new Runnable () {
-			@Override
-			public void run() {
-				pickerAdapter.notifyDataSetChanged();
+	private void addDevice(ConnectableDevice device) {
+		int index = -1;
+		for ( int i = 1; i < pickerAdapter.getCount(); i++ ) {
+			ConnectableDevice d = pickerAdapter.getItem(i);
+			
+			String newDeviceName = device.getFriendlyName();
+			String dName = d.getFriendlyName();
+			
+			if ( newDeviceName == null ) {
+				newDeviceName = device.getModelName();
+			}
+			
+			if ( dName == null ) {
+				dName = d.getModelName();
 			}
-		});
-	}
 
-	@Override
-	public void onDeviceRemoved(DiscoveryManager manager, final ConnectableDevice device) {
-		Util.runOnUI(new Runnable () {
-			@Override
-			public void run() {
-				pickerAdapter.remove(device);
+			if ( d.getIpAddress().equals(device.getIpAddress()) ) {
+				pickerAdapter.remove(d);
+				pickerAdapter.insert(device, i);
+				return;
+			}
+			
+			if ( newDeviceName.compareToIgnoreCase(dName) < 0 ) {
+				index = i;
+				pickerAdapter.insert(device, index);
+				break;
 			}
-		});		
+		}
+		
+		if ( index == -1 )
+			pickerAdapter.add(device);
 	}
 }
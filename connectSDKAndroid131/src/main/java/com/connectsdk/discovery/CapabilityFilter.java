@@ -20,6 +20,8 @@
 
 package com.connectsdk.discovery;
 
+import com.connectsdk.service.capability.CapabilityIndex;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -79,6 +81,10 @@ public class CapabilityFilter {
 	 */
 	public List<String> capabilities = new ArrayList<String>();
 	
+	// @cond INTERNAL
+	private volatile CapabilityIndex.Query query;
+	// @endcond
+	
 	/**
 	 * Create an empty CapabilityFilter.
 	 */
@@ -112,6 +118,7 @@ public class CapabilityFilter {
 	 */
 	public void addCapability(String capability) {
 		capabilities.add(capability);
+		query = null;
 	}
 	
 	/**
@@ -121,6 +128,7 @@ public class CapabilityFilter {
 	 */
 	public void addCapabilities(List<String> capabilities) {
 		this.capabilities.addAll(capabilities);
+		query = null;
 	}
 	
 	/**
@@ -131,5 +139,28 @@ public class CapabilityFilter {
 	public void addCapabilities(String... capabilities) {
 		for (String capability : capabilities)
 			this.capabilities.add(capability);
+		query = null;
+	}
+	
+	// @cond INTERNAL
+	/**
+	 * The filter compiled to capability masks, built again when capabilities were added to
+	 * the filter or registered since.
+	 */
+	public CapabilityIndex.Query getQuery() {
+		CapabilityIndex.Query query = this.query;
+		
+		if (query == null || !query.isCurrent() || query.size() != capabilities.size()) {
+			query = CapabilityIndex.compile(capabilities);
+			this.query = query;
+		}
+		
+		return query;
+	}
+	
+	/** Whether the capability bitset satisfies every capability of the filter */
+	public boolean matches(long[] capabilityBits) {
+		return getQuery().matches(capabilityBits);
 	}
+	// @endcond
 }
@@ -0,0 +1,143 @@
+/*
+ * DeviceEventBatcher
+ * Connect SDK
+ *
+ * Copyright (c) 2014 LG Electronics.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.connectsdk.discovery;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.connectsdk.device.ConnectableDevice;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// @cond INTERNAL
+/**
+ * Collects device add/update/remove events and hands them to the batch listeners of the
+ * DiscoveryManager as one change set per interval, on the main thread.
+ *
+ * Events for the same device are merged: add + update is an add, add + remove cancels
+ * out, remove + add is an update.
+ */
+class DeviceEventBatcher {
+	static final int DEFAULT_INTERVAL = 100;
+
+	enum Change {
+		ADDED,
+		UPDATED,
+		REMOVED
+	}
+
+	private final DiscoveryManager manager;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	// Insertion ordered, so each list keeps the order the events came in
+	private LinkedHashMap<ConnectableDevice, Change> pending = new LinkedHashMap<ConnectableDevice, Change>();
+	private boolean flushScheduled = false;
+	private int interval = DEFAULT_INTERVAL;
+
+	DeviceEventBatcher(DiscoveryManager manager) {
+		this.manager = manager;
+	}
+
+	synchronized void setInterval(int interval) {
+		this.interval = Math.max(0, interval);
+	}
+
+	synchronized int getInterval() {
+		return interval;
+	}
+
+	void deviceAdded(ConnectableDevice device) {
+		record(device, Change.ADDED);
+	}
+
+	void deviceUpdated(ConnectableDevice device) {
+		record(device, Change.UPDATED);
+	}
+
+	void deviceRemoved(ConnectableDevice device) {
+		record(device, Change.REMOVED);
+	}
+
+	private synchronized void record(ConnectableDevice device, Change change) {
+		Change previous = pending.get(device);
+
+		if (previous == null) {
+			pending.put(device, change);
+		} else if (previous == Change.ADDED) {
+			// The listeners never heard of the device, an update is part of the add
+			if (change == Change.REMOVED)
+				pending.remove(device);
+		} else if (previous == Change.UPDATED) {
+			if (change == Change.REMOVED)
+				pending.put(device, Change.REMOVED);
+		} else {
+			// The listeners still know the device, so losing and finding it again is an update
+			if (change != Change.REMOVED)
+				pending.put(device, Change.UPDATED);
+		}
+
+		if (!flushScheduled) {
+			flushScheduled = true;
+			handler.postDelayed(flush, interval);
+		}
+	}
+
+	private final Runnable flush = new Runnable() {
+
+		@Override
+		public void run() {
+			Map<ConnectableDevice, Change> changes;
+
+			synchronized (DeviceEventBatcher.this) {
+				flushScheduled = false;
+
+				if (pending.isEmpty())
+					return;
+
+				changes = pending;
+				pending = new LinkedHashMap<ConnectableDevice, Change>();
+			}
+
+			List<ConnectableDevice> added = new ArrayList<ConnectableDevice>();
+			List<ConnectableDevice> updated = new ArrayList<ConnectableDevice>();
+			List<ConnectableDevice> removed = new ArrayList<ConnectableDevice>();
+
+			for (Map.Entry<ConnectableDevice, Change> entry : changes.entrySet()) {
+				switch (entry.getValue()) {
+				case ADDED:
+					added.add(entry.getKey());
+					break;
+				case UPDATED:
+					updated.add(entry.getKey());
+					break;
+				case REMOVED:
+					removed.add(entry.getKey());
+					break;
+				}
+			}
+
+			manager.deliverBatch(added, updated, removed);
+		}
+	};
+}
+// @endcond
@@ -30,7 +30,10 @@ import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.MulticastLock;
 import android.util.Log;
 
+import com.connectsdk.core.TaskScheduler;
 import com.connectsdk.core.Util;
+import com.connectsdk.core.upnp.Device;
+import com.connectsdk.core.upnp.DeviceDescriptionCache;
 import com.connectsdk.device.ConnectableDevice;
 import com.connectsdk.device.ConnectableDeviceListener;
 import com.connectsdk.device.ConnectableDeviceStore;
@@ -57,9 +60,16 @@ import org.json.JSONObject;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -107,6 +117,8 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 	
 	private static DiscoveryManager instance;
 	
+	static final int WARM_START_PROBE_TIMEOUT = 500;
+	
 	Context context;
 	ConnectableDeviceStore connectableDeviceStore;
 	
@@ -119,6 +131,8 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 	private CopyOnWriteArrayList<DiscoveryProvider> discoveryProviders;
 
 	private CopyOnWriteArrayList<DiscoveryManagerListener> discoveryListeners;
+	private CopyOnWriteArrayList<DiscoveryManagerBatchListener> batchListeners;
+	DeviceEventBatcher deviceEventBatcher;
 	List<CapabilityFilter> capabilityFilters;
 	
     MulticastLock multicastLock;
@@ -131,6 +145,13 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
     
     private boolean mSearching = false;
     
+    // Services restored from the device store by IP address, until they are found or their probe fails
+    private ConcurrentHashMap<String, List<ServiceDescription>> probableServices = new ConcurrentHashMap<String, List<ServiceDescription>>();
+    
+    private long startTime;
+    private long timeToFirstDevice = -1;
+    private long timeToFirstVerifiedDevice = -1;
+    
     // @endcond
     
 	/**
@@ -198,6 +219,8 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 		discoveryProviders = new CopyOnWriteArrayList<DiscoveryProvider>();
 
 		discoveryListeners = new CopyOnWriteArrayList<DiscoveryManagerListener>();
+		batchListeners = new CopyOnWriteArrayList<DiscoveryManagerBatchListener>();
+		deviceEventBatcher = new DeviceEventBatcher(this);
 		
 		WifiManager wifiMgr = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
 		multicastLock = wifiMgr.createMulticastLock("Connect SDK");
@@ -233,6 +256,7 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 						}
 						
 						allDevices.clear();
+						probableServices.clear();
 						
 						for (ConnectableDevice device: compatibleDevices.values()) {
 							handleDeviceLoss(device);
@@ -300,6 +324,38 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 		discoveryListeners.remove(listener);
 	}
 	
+	/**
+	 * Listener which should receive discovery updates in batches. Events that arrive within the batch interval are merged and delivered together on the main thread, so a device list can be refreshed once per batch during a discovery burst.
+	 *
+	 * The listener is called right away with all devices found so far. The same capabilityFilters apply as for addListener.
+	 */
+	public void addBatchListener(DiscoveryManagerBatchListener listener) {
+		List<ConnectableDevice> devices = new ArrayList<ConnectableDevice>(compatibleDevices.values());
+		
+		if (!devices.isEmpty())
+			listener.onDevicesChanged(this, devices, new ArrayList<ConnectableDevice>(), new ArrayList<ConnectableDevice>());
+		
+		batchListeners.add(listener);
+	}
+	
+	/**
+	 * Removes a previously added batch listener
+	 */
+	public void removeBatchListener(DiscoveryManagerBatchListener listener) {
+		batchListeners.remove(listener);
+	}
+	
+	/**
+	 * Sets how long, in milliseconds, device events are collected before they are delivered to the batch listeners. Defaults to 100ms.
+	 */
+	public void setBatchInterval(int batchInterval) {
+		deviceEventBatcher.setInterval(batchInterval);
+	}
+	
+	public int getBatchInterval() {
+		return deviceEventBatcher.getInterval();
+	}
+	
 	public void setCapabilityFilters(CapabilityFilter ... capabilityFilters) {
 		setCapabilityFilters(Arrays.asList(capabilityFilters));
 	}
@@ -334,16 +390,14 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 			return true;
 		}
 
-		boolean isCompatible = false;
+		long[] capabilityBits = device.getCapabilityBits();
 		
 		for (CapabilityFilter filter: this.capabilityFilters) {
-			if (device.hasCapabilities(filter.capabilities)) {
-				isCompatible = true;
-				break;
-			}
+			if (filter.matches(capabilityBits))
+				return true;
 		}
 
-	    return isCompatible;
+	    return false;
 	}
 	// @cond INTERNAL
 	
@@ -497,6 +551,10 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 		
    		mSearching = true;
    		multicastLock.acquire();
+   		
+   		startTime = new Date().getTime();
+   		timeToFirstDevice = -1;
+   		timeToFirstVerifiedDevice = -1;
 		
 		Util.runOnUI(new Runnable() {
 			
@@ -510,6 +568,8 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 		       	NetworkInfo mWifi = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
 
 		       	if (mWifi.isConnected()) {
+		       		warmStart();
+		       		
 		           	for (DiscoveryProvider provider : discoveryProviders) {
 		           		provider.start();
 		           	}
@@ -520,8 +580,13 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 						
 						@Override
 						public void run() {
+							ServiceCommandError error = new ServiceCommandError(0, "No wifi connection", null);
+							
 							for (DiscoveryManagerListener listener : discoveryListeners)
-								listener.onDiscoveryFailed(DiscoveryManager.this, new ServiceCommandError(0, "No wifi connection", null));
+								listener.onDiscoveryFailed(DiscoveryManager.this, error);
+							
+							for (DiscoveryManagerBatchListener listener : batchListeners)
+								listener.onDiscoveryFailed(DiscoveryManager.this, error);
 						}
 					});
 		        }
@@ -575,16 +640,258 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 		return connectableDeviceStore;
 	}
 	
+	/**
+	 * Milliseconds from start() until the first compatible device was published, including devices restored from the ConnectableDeviceStore, or -1 if none was published yet.
+	 */
+	public long getTimeToFirstDevice() {
+		return timeToFirstDevice;
+	}
+	
+	/**
+	 * Milliseconds from start() until the first compatible device was found on the network or answered its warm start probe, or -1 if none was yet.
+	 */
+	public long getTimeToFirstVerifiedDevice() {
+		return timeToFirstVerifiedDevice;
+	}
+	
 	// @cond INTERNAL
+	/**
+	 * Publishes the services of stored devices right away as probable devices, and checks
+	 * that each device is still there by connecting to it. Devices that answer are promoted,
+	 * the others are dropped. Services found by SSDP are only restored when their
+	 * description is in the DeviceDescriptionCache.
+	 */
+	private void warmStart() {
+		if (connectableDeviceStore == null)
+			return;
+		
+		final ConnectableDeviceStore store = connectableDeviceStore;
+		
+		Util.runInBackground(new Runnable() {
+			
+			@Override
+			public void run() {
+				List<ServiceDescription> descriptions = getStoredServiceDescriptions(store);
+				
+				if (descriptions.isEmpty())
+					return;
+				
+				DeviceDescriptionCache descriptionCache = DeviceDescriptionCache.getInstance(context);
+				final List<ServiceDescription> restored = new ArrayList<ServiceDescription>();
+				
+				for (ServiceDescription desc : descriptions) {
+					if (desc.getLocationURL() != null) {
+						Device device = descriptionCache.getCachedDevice(desc.getLocationURL(), desc.getServiceFilter());
+						
+						if (device == null)
+							continue;
+						
+						desc.setDeviceDescription(device);
+					}
+					
+					restored.add(desc);
+				}
+				
+				Util.runOnUI(new Runnable() {
+					
+					@Override
+					public void run() {
+						publishProbableServices(restored);
+					}
+				});
+			}
+		}, TaskScheduler.Lane.DISCOVERY);
+	}
+	
+	private List<ServiceDescription> getStoredServiceDescriptions(ConnectableDeviceStore store) {
+		List<ServiceDescription> descriptions = new ArrayList<ServiceDescription>();
+		
+		// The default store keeps changing its devices on the persistence lane
+		JSONObject storedDevices = store instanceof DefaultConnectableDeviceStore
+				? ((DefaultConnectableDeviceStore) store).copyStoredDevices()
+				: store.getStoredDevices();
+		
+		if (storedDevices == null)
+			return descriptions;
+		
+		@SuppressWarnings("unchecked")
+		Iterator<String> deviceIter = storedDevices.keys();
+		while (deviceIter.hasNext()) {
+			JSONObject storedDevice = storedDevices.optJSONObject(deviceIter.next());
+			JSONObject services = storedDevice != null ? storedDevice.optJSONObject(ConnectableDevice.KEY_SERVICES) : null;
+			
+			if (services == null)
+				continue;
+			
+			@SuppressWarnings("unchecked")
+			Iterator<String> serviceIter = services.keys();
+			while (serviceIter.hasNext()) {
+				JSONObject service = services.optJSONObject(serviceIter.next());
+				JSONObject descriptionInfo = service != null ? service.optJSONObject(DeviceService.KEY_DESC) : null;
+				
+				if (descriptionInfo == null)
+					continue;
+				
+				ServiceDescription desc = ServiceDescription.getDescription(descriptionInfo);
+				
+				if (desc.getIpAddress() == null || desc.getUUID() == null || desc.getServiceID() == null)
+					continue;
+				
+				if (allDevices.containsKey(desc.getIpAddress()))
+					continue;
+				
+				Class<? extends DeviceService> deviceServiceClass = deviceClasses.get(desc.getServiceID());
+				
+				// Cast services need the CastDevice of a live discovery
+				if (deviceServiceClass == null || CastService.class.isAssignableFrom(deviceServiceClass))
+					continue;
+				
+				descriptions.add(desc);
+			}
+		}
+		
+		return descriptions;
+	}
+	
+	private void publishProbableServices(List<ServiceDescription> descriptions) {
+		List<String> addedAddresses = new ArrayList<String>();
+		
+		for (ServiceDescription desc : descriptions) {
+			String ipAddress = desc.getIpAddress();
+			
+			if (!mSearching)
+				return;
+			
+			// Found on the network in the meantime
+			if (allDevices.containsKey(ipAddress) && !addedAddresses.contains(ipAddress))
+				continue;
+			
+			onServiceAdded(null, desc);
+			
+			if (!allDevices.containsKey(ipAddress))
+				continue;
+			
+			List<ServiceDescription> probable = probableServices.get(ipAddress);
+			if (probable == null) {
+				probable = new ArrayList<ServiceDescription>();
+				probableServices.put(ipAddress, probable);
+				addedAddresses.add(ipAddress);
+			}
+			probable.add(desc);
+		}
+		
+		for (String ipAddress : addedAddresses) {
+			List<ServiceDescription> probable = probableServices.get(ipAddress);
+			
+			if (probable != null)
+				probeDevice(ipAddress, new ArrayList<ServiceDescription>(probable));
+		}
+	}
+	
+	private void probeDevice(final String ipAddress, final List<ServiceDescription> descriptions) {
+		Util.runInBackground(new Runnable() {
+			
+			@Override
+			public void run() {
+				boolean reachable = false;
+				
+				for (ServiceDescription desc : descriptions) {
+					if (isReachable(desc)) {
+						reachable = true;
+						break;
+					}
+				}
+				
+				final boolean result = reachable;
+				
+				Util.runOnUI(new Runnable() {
+					
+					@Override
+					public void run() {
+						finishProbe(ipAddress, result);
+					}
+				});
+			}
+		}, TaskScheduler.Lane.DISCOVERY);
+	}
+	
+	/**
+	 * Connects to the port of the description URL, or to the service port when there is none.
+	 */
+	private boolean isReachable(ServiceDescription desc) {
+		String host = desc.getIpAddress();
+		int port = desc.getPort();
+		
+		if (desc.getLocationURL() != null) {
+			try {
+				URL url = new URL(desc.getLocationURL());
+				host = url.getHost();
+				port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+			} catch (MalformedURLException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		if (host == null || port <= 0)
+			return false;
+		
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), WARM_START_PROBE_TIMEOUT);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void finishProbe(String ipAddress, boolean reachable) {
+		List<ServiceDescription> descriptions = probableServices.remove(ipAddress);
+		ConnectableDevice device = allDevices.get(ipAddress);
+		
+		// A discovery provider found the device first
+		if (descriptions == null || device == null || !device.isProbable())
+			return;
+		
+		if (reachable) {
+			device.setProbable(false);
+			deviceVerified(device);
+			handleDeviceUpdate(device);
+		} else {
+			for (ServiceDescription desc : descriptions) {
+				onServiceRemoved(null, desc);
+			}
+		}
+	}
+	
+	private void deviceVerified(ConnectableDevice device) {
+		if (timeToFirstVerifiedDevice < 0 && compatibleDevices.containsKey(device.getIpAddress()))
+			timeToFirstVerifiedDevice = new Date().getTime() - startTime;
+	}
+	
 	public void handleDeviceAdd(ConnectableDevice device) {
 		if (!deviceIsCompatible(device)) 
 			return;
 		
 		compatibleDevices.put(device.getIpAddress(), device);
 		
+		if (timeToFirstDevice < 0)
+			timeToFirstDevice = new Date().getTime() - startTime;
+		
+		if (!device.isProbable())
+			deviceVerified(device);
+		
 		for (DiscoveryManagerListener listenter: discoveryListeners) {
 			listenter.onDeviceAdded(this, device);
 		}
+		
+		if (!batchListeners.isEmpty())
+			deviceEventBatcher.deviceAdded(device);
 	}
 	
 	public void handleDeviceUpdate(ConnectableDevice device) {
@@ -593,6 +900,9 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 				for (DiscoveryManagerListener listenter: discoveryListeners) {
 					listenter.onDeviceUpdated(this, device);
 				}
+				
+				if (!batchListeners.isEmpty())
+					deviceEventBatcher.deviceUpdated(device);
 			}
 			else {
 				handleDeviceAdd(device);
@@ -609,9 +919,18 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 			listenter.onDeviceRemoved(this, device);
 		}
 		
+		if (!batchListeners.isEmpty())
+			deviceEventBatcher.deviceRemoved(device);
+		
 		device.disconnect();
 	}
 	
+	void deliverBatch(List<ConnectableDevice> added, List<ConnectableDevice> updated, List<ConnectableDevice> removed) {
+		for (DiscoveryManagerBatchListener listener : batchListeners) {
+			listener.onDevicesChanged(this, added, updated, removed);
+		}
+	}
+	
 	public boolean isNetcast(ServiceDescription description) {
 		boolean isNetcastTV = false;
 		
@@ -715,6 +1034,16 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 			deviceIsNew = true;
 		}
 		
+		// Services without a provider were restored from the device store by the warm start
+		if (provider == null) {
+			if (deviceIsNew)
+				device.setProbable(true);
+		} else if (device.isProbable()) {
+			device.setProbable(false);
+			probableServices.remove(serviceDescription.getIpAddress());
+			deviceVerified(device);
+		}
+		
 		device.setFriendlyName(serviceDescription.getFriendlyName());
 		device.setLastDetection(Util.getTime());
 		device.setLastKnownIPAddress(serviceDescription.getIpAddress());
@@ -756,6 +1085,7 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 			
 			if (device.getServices().isEmpty()) {
 				allDevices.remove(serviceDescription.getIpAddress());
+				compatibleDevices.remove(serviceDescription.getIpAddress());
 				
 				handleDeviceLoss(device);
 			}
@@ -814,12 +1144,7 @@ public class DiscoveryManager implements ConnectableDeviceListener, DiscoveryPro
 			String netcast = "netcast";
 			String webos = "webos";
 			
-			String locationXML = desc.getLocationXML().toLowerCase();
-			
-			int locNet = locationXML.indexOf(netcast);
-			int locWeb = locationXML.indexOf(webos);
-			
-			if (locNet == -1 && locWeb == -1)
+			if (!desc.locationXMLContains(netcast) && !desc.locationXMLContains(webos))
 				return;
 		}
 		
@@ -0,0 +1,55 @@
+/*
+ * DiscoveryManagerBatchListener
+ * Connect SDK
+ *
+ * Copyright (c) 2014 LG Electronics.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.connectsdk.discovery;
+
+import com.connectsdk.device.ConnectableDevice;
+import com.connectsdk.service.command.ServiceCommandError;
+
+import java.util.List;
+
+/**
+ * ###Overview
+ * The DiscoveryManagerBatchListener receives the same events as DiscoveryManagerListener, collected over a short interval and delivered as one change set.
+ *
+ * ###In Depth
+ * During a discovery burst a device may be added and updated many times within a second. A batch listener sees each device at most once per batch: a device that was added and then updated is only reported as added, and a device that was added and removed again is not reported at all. Use this listener to refresh a device list once per batch instead of once per event.
+ *
+ * All methods are called on the main thread.
+ */
+public interface DiscoveryManagerBatchListener {
+
+	/**
+	 * This method is called with every ConnectableDevice that was added, updated or removed since the previous batch. At least one of the lists is not empty.
+	 *
+	 * @param manager DiscoveryManager that found, updated or lost the devices
+	 * @param added ConnectableDevices that were found
+	 * @param updated ConnectableDevices that gained or lost a DeviceService or capability
+	 * @param removed ConnectableDevices that were lost
+	 */
+	public void onDevicesChanged(DiscoveryManager manager, List<ConnectableDevice> added, List<ConnectableDevice> updated, List<ConnectableDevice> removed);
+
+	/**
+	 * In the event of an error in the discovery phase, this method will be called.
+	 *
+	 * @param manager DiscoveryManager that experienced the error
+	 * @param error NSError with a description of the failure
+	 */
+	public void onDiscoveryFailed(DiscoveryManager manager, ServiceCommandError error);
+}
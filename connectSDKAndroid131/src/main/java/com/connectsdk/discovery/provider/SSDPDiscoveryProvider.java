@@ -23,8 +23,10 @@ package com.connectsdk.discovery.provider;
 import android.content.Context;
 import android.util.Log;
 
+import com.connectsdk.core.TaskScheduler;
 import com.connectsdk.core.Util;
 import com.connectsdk.core.upnp.Device;
+import com.connectsdk.core.upnp.DeviceDescriptionCache;
 import com.connectsdk.core.upnp.ssdp.SSDP;
 import com.connectsdk.core.upnp.ssdp.SSDP.ParsedDatagram;
 import com.connectsdk.core.upnp.ssdp.SSDPSearchMsg;
@@ -37,8 +39,6 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -46,8 +46,6 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class SSDPDiscoveryProvider implements DiscoveryProvider {
 	Context context;
@@ -55,6 +53,9 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
 	private final static int RESCAN_INTERVAL = 10000;
 	private final static int RESCAN_ATTEMPTS = 6; // DerpCast Specific
 	private final static int SSDP_TIMEOUT = RESCAN_INTERVAL * RESCAN_ATTEMPTS;
+	private final static int MAX_RESCAN_INTERVAL = RESCAN_INTERVAL * 8;
+	private final static int SEARCH_REPEAT = 3;
+	private final static int SEARCH_REPEAT_DELAY = 1000;
 	
     boolean needToStartSearch = false;
 
@@ -66,35 +67,38 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
     List<JSONObject> serviceFilters;
 
     private SSDPSocket mSSDPSocket;
+    private DeviceDescriptionCache descriptionCache;
     
     private Timer dataTimer;
-    
-    private Pattern uuidReg;
-    
-    private Thread responseThread;
-    private Thread notifyThread;
+    private SearchTask pendingSearch;
+    private long pendingSearchTime;
+    private int searchInterval = RESCAN_INTERVAL;
+    private long lastTickTime;
+    private long lastTickGap;
+    private boolean servicesChanged;
+    private long searchCount;
+    private long sentPacketCount;
 
 	public SSDPDiscoveryProvider(Context context) {
 		this.context = context;
 
-		uuidReg = Pattern.compile("(?<=uuid:)(.+?)(?=(::)|$)");
-
 		serviceListeners = new CopyOnWriteArrayList<DiscoveryProviderListener>();
-		serviceFilters = new ArrayList<JSONObject>();
+		serviceFilters = new CopyOnWriteArrayList<JSONObject>();
+		descriptionCache = DeviceDescriptionCache.getInstance(context);
 	}
 	
 	private void openSocket() {
-		if (mSSDPSocket != null && mSSDPSocket.isConnected())
+		if (mSSDPSocket != null && mSSDPSocket.isOpen())
 			return;
 
 		try {
-			InetAddress source = Util.getIpAddress(context);
-			if (source == null) 
-				return;
-			
-			mSSDPSocket = new SSDPSocket(source);
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
+			mSSDPSocket = new SSDPSocket(new SSDPSocket.SSDPListener() {
+				
+				@Override
+				public void onDatagramReceived(ParsedDatagram datagram) {
+					handleDatagramPacket(datagram);
+				}
+			});
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -106,26 +110,104 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
 		
 		openSocket();
 
-		dataTimer = new Timer();
-		dataTimer.schedule(new TimerTask() {
+		synchronized (this) {
+			searchInterval = RESCAN_INTERVAL;
+			servicesChanged = false;
+			lastTickTime = 0;
+			lastTickGap = 0;
+			dataTimer = new Timer("Connect SDK SSDP Search");
+			scheduleSearch(new SearchTask(dataTimer, 0), 100);
+		}
+	}
+	
+	/**
+	 * One timer sends a burst of M-SEARCH requests for all filters per tick, repeated
+	 * SEARCH_REPEAT times one second apart like Windows Media does. The time between
+	 * ticks doubles up to MAX_RESCAN_INTERVAL while no service is found or lost.
+	 */
+	private class SearchTask extends TimerTask {
+		private Timer timer;
+		private int repeat;
+		
+		SearchTask(Timer timer, int repeat) {
+			this.timer = timer;
+			this.repeat = repeat;
+		}
+		
+		@Override
+		public void run() {
+			long staleTimeout = SSDP_TIMEOUT;
 			
-			@Override
-			public void run() {
-				sendSearch();
+			synchronized (SSDPDiscoveryProvider.this) {
+				if (timer != dataTimer)
+					return;
+				
+				if (repeat == 0) {
+					searchInterval = servicesChanged ? RESCAN_INTERVAL : Math.min(searchInterval * 2, MAX_RESCAN_INTERVAL);
+					servicesChanged = false;
+					
+					// Services that only answer searches are seen once per tick, allow one tick to be missed
+					long now = new Date().getTime();
+					if (lastTickTime > 0) {
+						long gap = now - lastTickTime;
+						staleTimeout = Math.max(staleTimeout, lastTickGap + gap);
+						lastTickGap = gap;
+					}
+					lastTickTime = now;
+				}
 			}
-		}, 100, RESCAN_INTERVAL);
-        
-		responseThread = new Thread(mResponseHandler);
-		notifyThread = new Thread(mRespNotifyHandler);
+			
+			if (repeat == 0)
+				removeStaleServices(staleTimeout);
+			
+			sendSearch();
+			
+			synchronized (SSDPDiscoveryProvider.this) {
+				if (timer != dataTimer || pendingSearch != this)
+					return;
+				
+				if (repeat + 1 < SEARCH_REPEAT)
+					scheduleSearch(new SearchTask(timer, repeat + 1), SEARCH_REPEAT_DELAY);
+				else
+					scheduleSearch(new SearchTask(timer, 0), searchInterval - repeat * SEARCH_REPEAT_DELAY);
+			}
+		}
+	}
+	
+	private synchronized void scheduleSearch(SearchTask task, long delay) {
+		try {
+			dataTimer.schedule(task, delay);
+		} catch (IllegalStateException e) {
+			// Timer was cancelled by stop()
+			return;
+		}
 		
-		responseThread.start();
-		notifyThread.start();
+		pendingSearch = task;
+		pendingSearchTime = new Date().getTime() + delay;
 	}
 	
-	public void sendSearch() {
+	/**
+	 * Goes back to the shortest interval and moves the next tick forward, used when a
+	 * service is lost or a filter is added.
+	 */
+	private synchronized void accelerateSearch() {
+		searchInterval = RESCAN_INTERVAL;
+		servicesChanged = true;
+		
+		if (dataTimer == null || pendingSearch == null || pendingSearch.repeat != 0)
+			return;
+		
+		if (pendingSearchTime - new Date().getTime() <= SEARCH_REPEAT_DELAY)
+			return;
+		
+		pendingSearch.cancel();
+		scheduleSearch(new SearchTask(dataTimer, 0), SEARCH_REPEAT_DELAY);
+	}
+	
+	private void removeStaleServices(long timeout) {
 		List<String> killKeys = new ArrayList<String>();
 		
-		long killPoint = new Date().getTime() - SSDP_TIMEOUT;
+		long killPoint = new Date().getTime() - timeout;
 		
 		for (String key : foundServices.keySet()) {
 			ServiceDescription service = foundServices.get(key);
@@ -135,7 +217,7 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
 		}
 		
 		for (String key : killKeys) {
-			final ServiceDescription service = foundServices.get(key);
+			final ServiceDescription service = foundServices.remove(key);
 			
 			if (service != null) {
 				Util.runOnUI(new Runnable() {
@@ -148,57 +230,73 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
 					}
 				});
 			}
-			
-			if (foundServices.containsKey(key))
-				foundServices.remove(key);
 		}
-
+		
+		if (!killKeys.isEmpty())
+			accelerateSearch();
+	}
+	
+	/**
+	 * Sends one M-SEARCH request for every filter on every interface.
+	 */
+	public void sendSearch() {
+		SSDPSocket socket = mSSDPSocket;
+		
+		if (socket == null)
+			return;
+		
+		int sent = 0;
+		
         for (JSONObject searchTarget : serviceFilters) {
-        	SSDPSearchMsg search = null;
+        	String filter = searchTarget.optString("filter", null);
+        	
+        	if (filter == null)
+        		continue;
+        	
         	try {
-        		search = new SSDPSearchMsg(searchTarget.getString("filter"));
-        	} catch (JSONException e) {
+        		sent += socket.send(new SSDPSearchMsg(filter).toString());
+        	} catch (IOException e) {
         		e.printStackTrace();
-        		return;
-        	}
-        	
-        	final String message = search.toString();
-	        
-        	Timer timer = new Timer();
-	        /* Send 3 times like WindowsMedia */
-        	for (int i = 0; i < 3; i++) {
-	        	TimerTask task = new TimerTask() {
-					
-					@Override
-					public void run() {
-						try {
-							if (mSSDPSocket != null)
-								mSSDPSocket.send(message);
-						} catch (IOException e) {
-							e.printStackTrace();
-						}
-					}
-	        	};
-	        	
-	        	timer.schedule(task, i * 1000);
         	}
-        };
+        }
+        
+        synchronized (this) {
+        	searchCount++;
+        	sentPacketCount += sent;
+        }
+	}
+	
+	/** Number of search bursts sent since this provider was created */
+	public synchronized long getSearchCount() {
+		return searchCount;
+	}
+	
+	/** Number of M-SEARCH datagrams sent since this provider was created, counted per interface */
+	public synchronized long getSentPacketCount() {
+		return sentPacketCount;
+	}
+	
+	/** Threads used for searching, one timer while started */
+	public synchronized int getSearchThreadCount() {
+		return dataTimer != null ? 1 : 0;
+	}
+	
+	/** Current time between search ticks in milliseconds */
+	public synchronized int getSearchInterval() {
+		return searchInterval;
 	}
 
 	@Override
 	public void stop() {
-		if (dataTimer != null) { 
-			dataTimer.cancel();
-		}
-		
-		if (responseThread != null) {
-			responseThread.interrupt();
+		synchronized (this) {
+			if (dataTimer != null) { 
+				dataTimer.cancel();
+				dataTimer = null;
+			}
+			
+			pendingSearch = null;
 		}
 		
-		if (notifyThread != null) {
-			notifyThread.interrupt();
-		}
-
 		if (mSSDPSocket != null) {
 			mSSDPSocket.close();
 			mSSDPSocket = null;
@@ -232,6 +330,9 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
 			
 			serviceFilters.add(parameters);
 			
+			// Search for the new target right away instead of waiting for a backed off tick
+			accelerateSearch();
+			
 //			if ( newFilter != null )
 //			controlPoint.addFilter(newFilter);
 		}
@@ -270,34 +371,6 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
 		return serviceFilters.size() == 0;
 	}
 
-    private Runnable mResponseHandler = new Runnable() {
-        @Override
-        public void run() {
-            while (mSSDPSocket != null) {
-                try {
-                    handleDatagramPacket(SSDP.convertDatagram(mSSDPSocket.responseReceive()));
-                } catch (IOException e) {
-                	e.printStackTrace();
-                	break;
-                }
-            }
-        }
-    };
-    
-    private Runnable mRespNotifyHandler = new Runnable() {
-        @Override
-        public void run() {
-            while (mSSDPSocket != null) {
-                try {
-                    handleDatagramPacket(SSDP.convertDatagram(mSSDPSocket.notifyReceive()));
-                } catch (IOException e) {
-                	e.printStackTrace();
-                	break;
-                }
-            }
-        }
-    };
-    
     private void handleDatagramPacket(final ParsedDatagram pd) {
         // Debugging stuff
 //        Util.runOnUI(new Runnable() {
@@ -314,27 +387,25 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
 //		});
         // End Debugging stuff
         
-        String serviceFilter = pd.data.get(pd.type.equals(SSDP.SL_NOTIFY) ? SSDP.NT : SSDP.ST);
-
-    	if (serviceFilter == null || SSDP.SL_MSEARCH.equals(pd.type) || !isSearchingForFilter(serviceFilter))
+        // Packets for other search targets are dropped here without allocating anything
+    	if (pd.isSearch())
     		return;
     	
-    	String usnKey = pd.data.get(SSDP.USN);
-    	
-    	if (usnKey == null || usnKey.length() == 0)
-    		return;
+        String serviceFilter = getSearchedFilter(pd, pd.isNotify() ? ParsedDatagram.HEADER_NT : ParsedDatagram.HEADER_ST);
 
-    	Matcher m = uuidReg.matcher(usnKey);
-
-    	if (!m.find())
+    	if (serviceFilter == null)
     		return;
-
-        String uuid = m.group();
+    	
+        String uuid = pd.getUUID();
         
-        if (SSDP.NTS_BYEBYE.equals(pd.data.get(SSDP.NTS))) {
+        if (uuid == null)
+        	return;
+        
+        if (pd.headerEquals(ParsedDatagram.HEADER_NTS, SSDP.NTS_BYEBYE)) {
         	final ServiceDescription service = foundServices.get(uuid);
         	
         	if (service != null) {
+        		accelerateSearch();
         		Util.runOnUI(new Runnable() {
 					
 					@Override
@@ -346,9 +417,7 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
 				});
         	}
         } else {
-        	String location = pd.data.get(SSDP.LOCATION);
-        	
-        	if (location == null || location.length() == 0)
+        	if (!pd.hasHeader(ParsedDatagram.HEADER_LOCATION))
         		return;
         	
         	ServiceDescription foundService = foundServices.get(uuid);
@@ -360,12 +429,14 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
         		foundService = new ServiceDescription();
         		foundService.setUUID(uuid);
         		foundService.setServiceFilter(serviceFilter);
-        		foundService.setIpAddress(pd.dp.getAddress().getHostAddress());
+        		foundService.setIpAddress(pd.getAddress().getHostAddress());
         		foundService.setPort(3001);
+        		foundService.setLocationURL(pd.getHeader(ParsedDatagram.HEADER_LOCATION));
         		
         		discoveredServices.put(uuid, foundService);
         		
-        		getLocationData(location, uuid, serviceFilter);
+        		getLocationData(foundService.getLocationURL(), uuid, serviceFilter,
+        				pd.getNumericHeader(ParsedDatagram.HEADER_BOOTID), pd.getNumericHeader(ParsedDatagram.HEADER_CONFIGID));
         	}
         	
         	if (foundService != null)
@@ -396,12 +467,20 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
 //        }
     }
     
-    public void getLocationData(final String location, final String uuid, final String serviceFilter) {
+    public void getLocationData(String location, String uuid, String serviceFilter) {
+    	getLocationData(location, uuid, serviceFilter, -1, -1);
+    }
+    
+    /**
+     * Fills in the service from the device description, which comes from the description
+     * cache as long as the BOOTID and CONFIGID the device announced have not changed.
+     */
+    public void getLocationData(final String location, final String uuid, final String serviceFilter, final long bootId, final long configId) {
     	Util.runInBackground(new Runnable() {
 			
 			@Override
 			public void run() {
-				Device device = Device.createInstanceFromXML(location, serviceFilter);
+				Device device = descriptionCache.getDevice(location, serviceFilter, bootId, configId);
 				
 	            if (device != null) {
 	            	if (true) {//device.friendlyName != null) {
@@ -414,18 +493,14 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
 	            			if (service != null) {
 		            			service.setServiceID(serviceIdForFilter(serviceFilter));
 		            			service.setServiceFilter(serviceFilter);
-		            			service.setFriendlyName(device.friendlyName);
-		            			service.setModelName(device.modelName);
-		            			service.setModelNumber(device.modelNumber);
-		            			service.setModelDescription(device.modelDescription);
-		            			service.setManufacturer(device.manufacturer);
-		            			service.setApplicationURL(device.applicationURL);
-		            			service.setServiceList(device.serviceList);
-		            			service.setResponseHeaders(device.headers);
-		            			service.setLocationXML(device.locationXML);
+		            			service.setDeviceDescription(device);
 		            			
 		            			foundServices.put(uuid, service);
 		            			
+		            			synchronized (SSDPDiscoveryProvider.this) {
+		            				servicesChanged = true;
+		            			}
+		            			
 		            			Util.runOnUI(new Runnable() {
 									
 									@Override
@@ -442,7 +517,7 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
 	            
 	            discoveredServices.remove(uuid);
 			}
-		}, true);
+		}, TaskScheduler.Lane.DISCOVERY, true);
 
     }
     
@@ -465,6 +540,20 @@ public class SSDPDiscoveryProvider implements DiscoveryProvider {
     	return serviceId;
     }
     
+    /**
+     * The filter the header of the datagram matches, compared in place.
+     */
+    private String getSearchedFilter(ParsedDatagram pd, int header) {
+    	for (int i = 0; i < serviceFilters.size(); i++) {
+    		String ssdpFilter = serviceFilters.get(i).optString("filter", null);
+    		
+    		if (ssdpFilter != null && pd.headerEquals(header, ssdpFilter))
+    			return ssdpFilter;
+    	}
+    	
+    	return null;
+    }
+    
     public boolean isSearchingForFilter(String filter) {
     	for (JSONObject serviceFilter : serviceFilters) {
     		try {
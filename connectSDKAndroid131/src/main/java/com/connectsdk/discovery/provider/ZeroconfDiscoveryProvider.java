@@ -23,6 +23,7 @@ package com.connectsdk.discovery.provider;
 import android.content.Context;
 import android.util.Log;
 
+import com.connectsdk.core.TaskScheduler;
 import com.connectsdk.core.Util;
 import com.connectsdk.discovery.DiscoveryProvider;
 import com.connectsdk.discovery.DiscoveryProviderListener;
@@ -52,11 +53,15 @@ public class ZeroconfDiscoveryProvider implements DiscoveryProvider {
 	JmDNS jmdns;
 	InetAddress srcAddress;
 	
-	private final static int RESCAN_INTERVAL = 10000;
-	private final static int RESCAN_ATTEMPTS = 6; // DerpCast Specific
-	private final static int TIMEOUT = RESCAN_INTERVAL * RESCAN_ATTEMPTS;
+	// Active queries start one second apart and back off to this interval. Between queries the
+	// JmDNS record cache and the announcements of the devices themselves keep the list current.
+	private final static int MIN_QUERY_INTERVAL = 1000;
+	private final static int MAX_QUERY_INTERVAL = 10 * 60 * 1000;
+	// Services from an earlier run that have not been resolved again this long after a start are gone
+	private final static int STALE_TIMEOUT = 60000;
 
 	private Timer dataTimer;
+	private int queryInterval;
 
     List<JSONObject> serviceFilters;
     
@@ -117,7 +122,7 @@ public class ZeroconfDiscoveryProvider implements DiscoveryProvider {
         public void serviceRemoved(ServiceEvent ev) {
 			@SuppressWarnings("deprecation")
         	String uuid = ev.getInfo().getHostAddress();
-        	final ServiceDescription service = foundServices.get(uuid);
+        	final ServiceDescription service = uuid != null ? foundServices.remove(uuid) : null;
         	
         	if (service != null) {
         		Util.runOnUI(new Runnable() {
@@ -136,9 +141,25 @@ public class ZeroconfDiscoveryProvider implements DiscoveryProvider {
         public void serviceAdded(ServiceEvent event) {
             // Required to force serviceResolved to be called again
             // (after the first search)
-            jmdns.requestServiceInfo(event.getType(), event.getName(), 1);
+            event.getDNS().requestServiceInfo(event.getType(), event.getName(), 1);
         }
     };
+    
+    /**
+     * Adding a listener for a type makes JmDNS send a query for it. This one is re-added for
+     * each active query so the main listener, and the services it found, are left alone.
+     */
+    ServiceListener queryListener = new ServiceListener() {
+    	
+        @Override
+        public void serviceResolved(ServiceEvent ev) { }
+        
+        @Override
+        public void serviceRemoved(ServiceEvent ev) { }
+        
+        @Override
+        public void serviceAdded(ServiceEvent ev) { }
+    };
 
 	public ZeroconfDiscoveryProvider(Context context) {
 		foundServices = new ConcurrentHashMap<String, ServiceDescription>(8, 0.75f, 2);
@@ -157,84 +178,164 @@ public class ZeroconfDiscoveryProvider implements DiscoveryProvider {
 	public void start() {
 		stop();
 		
-		dataTimer = new Timer();
-		MDNSSearchTask sendSearch = new MDNSSearchTask();
-		dataTimer.schedule(sendSearch, 100, RESCAN_INTERVAL);
+		synchronized (this) {
+			queryInterval = MIN_QUERY_INTERVAL;
+			dataTimer = new Timer();
+			dataTimer.schedule(new MDNSSearchTask(dataTimer), 100);
+			dataTimer.schedule(new StaleServiceTask(new Date().getTime()), STALE_TIMEOUT);
+		}
 	}
 	
-	private class MDNSSearchTask extends TimerTask {
-
+	private class StaleServiceTask extends TimerTask {
+		private long startTime;
+		
+		StaleServiceTask(long startTime) {
+			this.startTime = startTime;
+		}
+		
 		@Override
 		public void run() {
-			List<String> killKeys = new ArrayList<String>();
-			
-			long killPoint = new Date().getTime() - TIMEOUT;
-			
 			for (String key : foundServices.keySet()) {
 				ServiceDescription service = foundServices.get(key);
-				if (service == null || service.getLastDetection() < killPoint) {
-					killKeys.add(key);
-				}
-			}
-			
-			for (String key : killKeys) {
-				final ServiceDescription service = foundServices.get(key);
+				if (service == null || service.getLastDetection() >= startTime)
+					continue;
 				
-				if (service != null) {
+				final ServiceDescription removedService = foundServices.remove(key);
+				if (removedService != null) {
 					Util.runOnUI(new Runnable() {
 						
 						@Override
 						public void run() {
 							for (DiscoveryProviderListener listener : serviceListeners) {
-								listener.onServiceRemoved(ZeroconfDiscoveryProvider.this, service);
+								listener.onServiceRemoved(ZeroconfDiscoveryProvider.this, removedService);
 							}
 						}
 					});
 				}
+			}
+		}
+	}
+	
+	private class MDNSSearchTask extends TimerTask {
+		private Timer timer;
+		
+		MDNSSearchTask(Timer timer) {
+			this.timer = timer;
+		}
+
+		@Override
+		public void run() {
+			if (srcAddress == null)
+				return;
+			
+			JmDNS dns;
+			synchronized (ZeroconfDiscoveryProvider.this) {
+				if (timer != dataTimer)
+					return;
 				
-				if (foundServices.containsKey(key))
-					foundServices.remove(key);
+				dns = jmdns;
 			}
 			
-			if (srcAddress != null) {
+			if (dns == null) {
+				// The first run creates the engine, which also queries for every filter once listening
 				try {
-					if (jmdns != null) {
-						jmdns.close();
-					}
-					jmdns = JmDNS.create(srcAddress, HOSTNAME);
-					
-			        for (JSONObject searchTarget : serviceFilters) {
-						try {
-				        	String filter = searchTarget.getString("filter");
-							jmdns.addServiceListener(filter, jmdnsListener);
-						} catch (JSONException e) {
-							e.printStackTrace();
-						}
-			        };
+					dns = JmDNS.create(srcAddress, HOSTNAME);
 				} catch (IOException e) {
 					e.printStackTrace();
+					return;
+				}
+				
+				synchronized (ZeroconfDiscoveryProvider.this) {
+					if (timer != dataTimer) {
+						closeQuietly(dns);
+						return;
+					}
+					
+					jmdns = dns;
+					for (String filter : getFilters()) {
+						dns.addServiceListener(filter, jmdnsListener);
+					}
 				}
 			}
+			else {
+				for (String filter : getFilters()) {
+					dns.removeServiceListener(filter, queryListener);
+					dns.addServiceListener(filter, queryListener);
+				}
+			}
+			
+			synchronized (ZeroconfDiscoveryProvider.this) {
+				if (timer != dataTimer)
+					return;
+				
+				try {
+					timer.schedule(new MDNSSearchTask(timer), queryInterval);
+				} catch (IllegalStateException e) {
+					// Timer was cancelled by stop()
+					return;
+				}
+				
+				queryInterval = Math.min(queryInterval * 2, MAX_QUERY_INTERVAL);
+			}
 		}
 	}
 
+	/**
+	 * Closes the mDNS engine. Found services are kept; the next start removes the ones that
+	 * are not resolved again.
+	 */
 	@Override
 	public void stop() {
-		if (dataTimer != null) {
-			dataTimer.cancel();
+		final JmDNS dns;
+		
+		synchronized (this) {
+			if (dataTimer != null) {
+				dataTimer.cancel();
+				dataTimer = null;
+			}
+			
+			dns = jmdns;
+			jmdns = null;
 		}
 		
-		if (jmdns != null) {
-	        for (JSONObject searchTarget : serviceFilters) {
-				try {
-		        	String filter = searchTarget.getString("filter");
-					jmdns.removeServiceListener(filter, jmdnsListener);
-				} catch (JSONException e) {
-					e.printStackTrace();
+		if (dns != null) {
+	        for (String filter : getFilters()) {
+				dns.removeServiceListener(filter, jmdnsListener);
+				dns.removeServiceListener(filter, queryListener);
+	        }
+	        
+	        // Closing sends goodbye packets and joins the JmDNS threads, keep it off the caller's thread
+	        Util.runInBackground(new Runnable() {
+				
+				@Override
+				public void run() {
+					closeQuietly(dns);
 				}
-	        };
+			}, TaskScheduler.Lane.DISCOVERY, true);
+		}
+	}
+	
+	private void closeQuietly(JmDNS dns) {
+		try {
+			dns.close();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
+	
+	private synchronized List<String> getFilters() {
+		List<String> filters = new ArrayList<String>();
+		
+        for (JSONObject searchTarget : serviceFilters) {
+			try {
+	        	filters.add(searchTarget.getString("filter"));
+			} catch (JSONException e) {
+				e.printStackTrace();
+			}
+        }
+        
+        return filters;
+	}
 
 	@Override
 	public void reset() {
@@ -252,16 +353,19 @@ public class ZeroconfDiscoveryProvider implements DiscoveryProvider {
 	}
 
 	@Override
-	public void addDeviceFilter(JSONObject parameters) {
+	public synchronized void addDeviceFilter(JSONObject parameters) {
 		if (!parameters.has("filter")) {
 			Log.e("Connect SDK", "This device filter does not have zeroconf filter info");
 		} else {
 			serviceFilters.add(parameters);
+			
+			if (jmdns != null)
+				jmdns.addServiceListener(parameters.optString("filter"), jmdnsListener);
 		}		
 	}
 
 	@Override
-	public void removeDeviceFilter(JSONObject parameters) {
+	public synchronized void removeDeviceFilter(JSONObject parameters) {
 		String removalServiceId;
 		boolean shouldRemove = false;
 		int removalIndex = -1;
@@ -284,16 +388,21 @@ public class ZeroconfDiscoveryProvider implements DiscoveryProvider {
 		}
 		
 		if (shouldRemove) {
-			serviceFilters.remove(removalIndex);
+			JSONObject serviceFilter = serviceFilters.remove(removalIndex);
+			
+			if (jmdns != null) {
+				jmdns.removeServiceListener(serviceFilter.optString("filter"), jmdnsListener);
+				jmdns.removeServiceListener(serviceFilter.optString("filter"), queryListener);
+			}
 		}		
 	}
 
 	@Override
-	public boolean isEmpty() {
+	public synchronized boolean isEmpty() {
 		return serviceFilters.size() == 0;
 	}
 	
-	public String serviceIdForFilter(String filter) {
+	public synchronized String serviceIdForFilter(String filter) {
     	String serviceId = "";
     	
     	for (JSONObject serviceFilter : serviceFilters) {
@@ -1,10 +1,10 @@
 /*
  * DeviceServiceReachability
  * Connect SDK
- * 
+ *
  * Copyright (c) 2014 LG Electronics.
  * Created by Jeffrey Glenn on 16 Apr 2014
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
@@ -20,42 +20,99 @@
 
 package com.connectsdk.etc.helper;
 
+import com.connectsdk.core.TaskScheduler;
+import com.connectsdk.core.Util;
+
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
 
+/**
+ * Watches a service by connecting to its control port now and then.
+ *
+ * All instances share one prober thread: connects are non-blocking and the next probe of
+ * every service waits on a timer wheel. A service is probed every ACTIVE_INTERVAL while
+ * a session is active on it and every IDLE_INTERVAL otherwise, and is reported lost after
+ * FAILURES_BEFORE_LOSS failed probes in a row, so loss is noticed within MAX_DETECTION_LATENCY.
+ */
 public class DeviceServiceReachability {
-	private static final int TIMEOUT = 10000;
+	// @cond INTERNAL
+	static final int DEFAULT_PORT = 80;
+
+	static final int ACTIVE_INTERVAL = 5000;
+	static final int IDLE_INTERVAL = 30000;
+	static final int RETRY_INTERVAL = 1000;
+	static final int CONNECT_TIMEOUT = 3000;
+	static final int FAILURES_BEFORE_LOSS = 2;
+	static final float JITTER = 0.2f;
+
 	private InetAddress ipAddress;
-	private Thread testThread;
+	private int port = DEFAULT_PORT;
+	private volatile boolean running;
+	private volatile boolean active;
 
 	private DeviceServiceReachabilityListener listener;
-	
+
+	// Only used on the prober thread
+	boolean registered;
+	long dueTick;
+	int failures;
+	SocketChannel channel;
+	// @endcond
+
+	/** Longest time between a service going away and onLoseReachability while a session is active */
+	public static final int MAX_DETECTION_LATENCY = (int) (ACTIVE_INTERVAL * (1 + JITTER))
+			+ FAILURES_BEFORE_LOSS * CONNECT_TIMEOUT + (FAILURES_BEFORE_LOSS - 1) * RETRY_INTERVAL + Prober.TICK;
+
 	public DeviceServiceReachability() { }
 
 	public DeviceServiceReachability(InetAddress ipAddress) {
 		this.ipAddress = ipAddress;
 	}
-	
+
 	public DeviceServiceReachability(InetAddress ipAddress, DeviceServiceReachabilityListener listener) {
 		this.ipAddress = ipAddress;
 		this.listener = listener;
 	}
 
+	public DeviceServiceReachability(InetAddress ipAddress, int port, DeviceServiceReachabilityListener listener) {
+		this.ipAddress = ipAddress;
+		this.listener = listener;
+		setPort(port);
+	}
+
 	public static DeviceServiceReachability getReachability(InetAddress ipAddress, DeviceServiceReachabilityListener listener) {
 		return new DeviceServiceReachability(ipAddress, listener);
 	}
-	
+
+	public static DeviceServiceReachability getReachability(InetAddress ipAddress, int port, DeviceServiceReachabilityListener listener) {
+		return new DeviceServiceReachability(ipAddress, port, listener);
+	}
+
 	public static DeviceServiceReachability getReachability(final String ipAddress, DeviceServiceReachabilityListener listener) {
+		return getReachability(ipAddress, DEFAULT_PORT, listener);
+	}
+
+	public static DeviceServiceReachability getReachability(final String ipAddress, int port, DeviceServiceReachabilityListener listener) {
 		InetAddress addr;
 		try {
 			addr = InetAddress.getByName(ipAddress);
 		} catch (UnknownHostException e) {
 			return null;
 		}
-		return getReachability(addr, listener);
+		return getReachability(addr, port, listener);
 	}
-	
+
 	public InetAddress getIpAddress() {
 		return ipAddress;
 	}
@@ -64,8 +121,35 @@ public class DeviceServiceReachability {
 		this.ipAddress = ipAddress;
 	}
 
+	/** TCP port that is probed, 80 unless set */
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port > 0 ? port : DEFAULT_PORT;
+	}
+
 	public boolean isRunning() {
-		return testThread != null && testThread.isAlive();
+		return running;
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Probe more often while a session (e.g. media playback) is active, so a lost device
+	 * is noticed sooner.
+	 */
+	public void setActive(boolean active) {
+		if (this.active == active)
+			return;
+
+		this.active = active;
+
+		if (running)
+			Prober.getInstance().reschedule(this);
 	}
 
 	public DeviceServiceReachabilityListener getListener() {
@@ -75,45 +159,332 @@ public class DeviceServiceReachability {
 	public void setListener(DeviceServiceReachabilityListener listener) {
 		this.listener = listener;
 	}
-	
-	public void start() {
-		if (isRunning())
+
+	public synchronized void start() {
+		if (running || ipAddress == null)
 			return;
 
-		testThread = new Thread(testReachability);
-		testThread.start();
+		running = true;
+		Prober.getInstance().add(this);
 	}
-	
-	public void stop() {
-		if (!isRunning())
+
+	public synchronized void stop() {
+		if (!running)
 			return;
-		
-		testThread.interrupt();
-		testThread = null;
-	}
-	
-	private void unreachable() {
-		stop();
-		
-		if (listener != null)
-			listener.onLoseReachability(this);
-	}
-	
-	private Runnable testReachability = new Runnable() {
-		
+
+		running = false;
+		Prober.getInstance().remove(this);
+	}
+
+	// @cond INTERNAL
+	int nextInterval(Random random) {
+		int interval = active ? ACTIVE_INTERVAL : IDLE_INTERVAL;
+
+		return (int) (interval * (1 - JITTER + 2 * JITTER * random.nextFloat()));
+	}
+
+	void unreachable() {
+		synchronized (this) {
+			if (!running)
+				return;
+
+			running = false;
+		}
+
+		// Called on the shared prober thread; a slow listener must not hold up the other probes
+		Util.runInBackground(new Runnable() {
+
+			@Override
+			public void run() {
+				if (listener != null)
+					listener.onLoseReachability(DeviceServiceReachability.this);
+			}
+		}, TaskScheduler.Lane.CONTROL, true);
+	}
+
+	/**
+	 * The one thread that probes every running reachability. Probes are kept on a hashed
+	 * timer wheel of TICK wide slots; in flight connects wait on a selector.
+	 */
+	static class Prober implements Runnable {
+		static final int TICK = 250;
+		static final int WHEEL_SIZE = 256;
+
+		private static Prober instance;
+
+		private final List<List<DeviceServiceReachability>> wheel = new ArrayList<List<DeviceServiceReachability>>(WHEEL_SIZE);
+		private final LinkedList<Runnable> commands = new LinkedList<Runnable>();
+		private final Random random = new Random();
+
+		private Thread thread;
+		private Selector selector;
+		private long startTime;
+		private long currentTick;
+		private int count;
+
+		Prober() {
+			for (int i = 0; i < WHEEL_SIZE; i++) {
+				wheel.add(new ArrayList<DeviceServiceReachability>(2));
+			}
+		}
+
+		static synchronized Prober getInstance() {
+			if (instance == null)
+				instance = new Prober();
+
+			return instance;
+		}
+
+		void add(final DeviceServiceReachability reachability) {
+			post(new Runnable() {
+
+				@Override
+				public void run() {
+					if (reachability.registered || !reachability.running)
+						return;
+
+					reachability.registered = true;
+					reachability.failures = 0;
+					count++;
+					// The service was reachable a moment ago, no need to check right away
+					schedule(reachability, reachability.nextInterval(random));
+				}
+			});
+		}
+
+		void remove(final DeviceServiceReachability reachability) {
+			post(new Runnable() {
+
+				@Override
+				public void run() {
+					if (reachability.running)
+						return;
+
+					unregister(reachability);
+				}
+			});
+		}
+
+		void reschedule(final DeviceServiceReachability reachability) {
+			post(new Runnable() {
+
+				@Override
+				public void run() {
+					// A probe in flight finishes first and is followed by the new interval
+					if (!reachability.registered || reachability.channel != null)
+						return;
+
+					unschedule(reachability);
+					schedule(reachability, reachability.active ? RETRY_INTERVAL : reachability.nextInterval(random));
+				}
+			});
+		}
+
+		private synchronized void post(Runnable command) {
+			commands.add(command);
+
+			if (thread == null) {
+				try {
+					selector = Selector.open();
+				} catch (IOException e) {
+					e.printStackTrace();
+					commands.clear();
+					return;
+				}
+
+				startTime = now();
+				currentTick = 0;
+				thread = new Thread(this, "Connect SDK Reachability");
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.start();
+			} else {
+				selector.wakeup();
+			}
+		}
+
 		@Override
 		public void run() {
+			while (true) {
+				runCommands();
+
+				synchronized (this) {
+					if (count == 0 && commands.isEmpty()) {
+						closeSelector();
+						thread = null;
+						return;
+					}
+				}
+
+				long wait = startTime + (currentTick + 1) * TICK - now();
+
+				try {
+					if (wait > 0)
+						selector.select(wait);
+					else
+						selector.selectNow();
+				} catch (ClosedSelectorException e) {
+					return;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+
+					if (key.isValid() && key.isConnectable())
+						finishProbe((DeviceServiceReachability) key.attachment());
+				}
+
+				long tick = (now() - startTime) / TICK;
+				while (currentTick < tick) {
+					currentTick++;
+					expire(currentTick);
+				}
+			}
+		}
+
+		private void runCommands() {
+			while (true) {
+				Runnable command;
+
+				synchronized (this) {
+					command = commands.poll();
+				}
+
+				if (command == null)
+					return;
+
+				command.run();
+			}
+		}
+
+		private void expire(long tick) {
+			List<DeviceServiceReachability> slot = wheel.get((int) (tick % WHEEL_SIZE));
+
+			for (int i = 0; i < slot.size(); ) {
+				DeviceServiceReachability reachability = slot.get(i);
+
+				if (reachability.dueTick > tick) {
+					i++;
+					continue;
+				}
+
+				slot.remove(i);
+
+				if (reachability.channel != null)
+					probeFailed(reachability);
+				else
+					startProbe(reachability);
+			}
+		}
+
+		private void startProbe(DeviceServiceReachability reachability) {
+			SocketChannel channel = null;
+
 			try {
-				while (true) {
-					if (!ipAddress.isReachable(TIMEOUT))
-						unreachable();
-					Thread.sleep(TIMEOUT);
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+
+				if (channel.connect(new InetSocketAddress(reachability.getIpAddress(), reachability.getPort()))) {
+					closeQuietly(channel);
+					probeSucceeded(reachability);
+					return;
 				}
+
+				channel.register(selector, SelectionKey.OP_CONNECT, reachability);
+				reachability.channel = channel;
+				schedule(reachability, CONNECT_TIMEOUT);
+			} catch (IOException e) {
+				if (channel != null)
+					closeQuietly(channel);
+
+				probeFailed(reachability);
+			}
+		}
+
+		private void finishProbe(DeviceServiceReachability reachability) {
+			unschedule(reachability);
+
+			try {
+				if (reachability.channel.finishConnect())
+					probeSucceeded(reachability);
+				else
+					schedule(reachability, CONNECT_TIMEOUT);
+			} catch (IOException e) {
+				probeFailed(reachability);
+			}
+		}
+
+		private void probeSucceeded(DeviceServiceReachability reachability) {
+			closeChannel(reachability);
+			reachability.failures = 0;
+			schedule(reachability, reachability.nextInterval(random));
+		}
+
+		private void probeFailed(DeviceServiceReachability reachability) {
+			closeChannel(reachability);
+			reachability.failures++;
+
+			if (reachability.failures < FAILURES_BEFORE_LOSS) {
+				schedule(reachability, RETRY_INTERVAL);
+				return;
+			}
+
+			unregister(reachability);
+			reachability.unreachable();
+		}
+
+		private void unregister(DeviceServiceReachability reachability) {
+			if (!reachability.registered)
+				return;
+
+			unschedule(reachability);
+			closeChannel(reachability);
+			reachability.registered = false;
+			count--;
+		}
+
+		private void schedule(DeviceServiceReachability reachability, long delay) {
+			long due = (now() + delay - startTime + TICK - 1) / TICK;
+
+			reachability.dueTick = Math.max(due, currentTick + 1);
+			wheel.get((int) (reachability.dueTick % WHEEL_SIZE)).add(reachability);
+		}
+
+		private void unschedule(DeviceServiceReachability reachability) {
+			wheel.get((int) (reachability.dueTick % WHEEL_SIZE)).remove(reachability);
+		}
+
+		private void closeChannel(DeviceServiceReachability reachability) {
+			if (reachability.channel != null) {
+				closeQuietly(reachability.channel);
+				reachability.channel = null;
+			}
+		}
+
+		private void closeSelector() {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private static void closeQuietly(SocketChannel channel) {
+			try {
+				channel.close();
 			} catch (IOException e) {
-				unreachable();
-			} catch (InterruptedException e) { }
+				e.printStackTrace();
+			}
+		}
+
+		private static long now() {
+			return System.nanoTime() / 1000000;
 		}
-	};
+	}
+	// @endcond
 
 	public interface DeviceServiceReachabilityListener {
 		public void onLoseReachability(DeviceServiceReachability reachability);
@@ -0,0 +1,835 @@
+/*
+ * HttpTransport
+ * Connect SDK
+ *
+ * Copyright (c) 2014 LG Electronics.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.connectsdk.etc.helper;
+
+import com.connectsdk.core.TaskScheduler;
+import com.connectsdk.core.Util;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking HTTP/1.1 client shared by all URL based services.
+ *
+ * All sockets are driven by a single selector thread. Connections are kept alive per host and
+ * reused, and GET/HEAD requests are pipelined on busy connections once the host has shown it
+ * keeps connections open. Host names are resolved on a background thread before a request
+ * reaches the selector. Listeners are called on the transport thread and must not block.
+ */
+public class HttpTransport {
+	public interface ResponseListener {
+		public void onResponse(Response response);
+		public void onFailure(IOException e);
+	}
+
+	public static class Response {
+		int statusCode;
+		Map<String, String> headers;
+		byte[] body;
+
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		public String getHeader(String name) {
+			return headers.get(name.toLowerCase(Locale.US));
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public String getBodyAsString() {
+			String charset = "UTF-8";
+			String contentType = getHeader("Content-Type");
+
+			if (contentType != null) {
+				int index = contentType.toLowerCase(Locale.US).indexOf("charset=");
+				if (index >= 0) {
+					charset = contentType.substring(index + 8).replace("\"", "").trim();
+					int end = charset.indexOf(';');
+					if (end >= 0)
+						charset = charset.substring(0, end).trim();
+				}
+			}
+
+			try {
+				return new String(body, charset);
+			} catch (UnsupportedEncodingException e) {
+				try {
+					return new String(body, "UTF-8");
+				} catch (UnsupportedEncodingException e1) {
+					return null;
+				}
+			}
+		}
+	}
+
+	static final int MAX_CONNECTIONS_PER_HOST = 4;
+	static final int MAX_PIPELINED_REQUESTS = 4;
+	static final int MAX_BODY_LENGTH = 4 * 1024 * 1024;
+	static final long REQUEST_TIMEOUT = 30 * 1000;
+	static final long IDLE_TIMEOUT = 30 * 1000;
+
+	private static HttpTransport instance;
+
+	ConcurrentLinkedQueue<Exchange> incoming = new ConcurrentLinkedQueue<Exchange>();
+	Map<String, HostPool> pools = new HashMap<String, HostPool>();
+	ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+	Selector selector;
+	Thread thread;
+
+	public static synchronized HttpTransport getInstance() {
+		if (instance == null)
+			instance = new HttpTransport();
+
+		return instance;
+	}
+
+	private HttpTransport() { }
+
+	/**
+	 * Queues a request for sending. Never blocks; the listener receives either the response
+	 * or the reason the request failed, exactly once.
+	 */
+	public void execute(HttpRequestBase request, ResponseListener listener) {
+		final Exchange exchange;
+
+		try {
+			exchange = new Exchange(request, listener);
+			start();
+		} catch (IOException e) {
+			listener.onFailure(e);
+			return;
+		}
+
+		if (isAddressLiteral(exchange.host)) {
+			exchange.address = new InetSocketAddress(exchange.host, exchange.port);
+			submit(exchange);
+			return;
+		}
+
+		// A name lookup blocks, so it runs on a pool thread rather than the caller's or the selector's
+		Util.runInBackground(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					exchange.address = new InetSocketAddress(InetAddress.getByName(exchange.host), exchange.port);
+				} catch (UnknownHostException e) {
+					exchange.fail(e);
+					return;
+				}
+
+				submit(exchange);
+			}
+		}, TaskScheduler.Lane.CONTROL, true);
+	}
+
+	private void submit(Exchange exchange) {
+		incoming.add(exchange);
+		selector.wakeup();
+	}
+
+	private static boolean isAddressLiteral(String host) {
+		String address = host.startsWith("[") && host.endsWith("]") ? host.substring(1, host.length() - 1) : host;
+
+		return Util.isIPv4Address(address) || Util.isIPv6Address(address);
+	}
+
+	private synchronized void start() throws IOException {
+		if (thread != null)
+			return;
+
+		selector = Selector.open();
+		thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "Connect SDK HTTP");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void loop() {
+		while (true) {
+			try {
+				long now = System.currentTimeMillis();
+				long timeout = expire(now);
+
+				selector.select(timeout);
+
+				Exchange exchange;
+				while ((exchange = incoming.poll()) != null) {
+					enqueue(exchange);
+				}
+
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+
+					Connection connection = (Connection) key.attachment();
+					handle(connection, key);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void handle(Connection connection, SelectionKey key) {
+		try {
+			if (!key.isValid())
+				return;
+
+			if (key.isConnectable()) {
+				if (!connection.channel.finishConnect())
+					return;
+
+				connection.connected = true;
+				updateInterest(connection);
+			}
+
+			if (key.isValid() && key.isWritable())
+				write(connection);
+
+			if (key.isValid() && key.isReadable())
+				read(connection);
+		} catch (IOException e) {
+			close(connection, e);
+		}
+	}
+
+	/**
+	 * Fails requests and closes idle connections that ran out of time.
+	 * @return milliseconds until the next deadline
+	 */
+	private long expire(long now) {
+		long next = IDLE_TIMEOUT;
+
+		Iterator<HostPool> poolIterator = pools.values().iterator();
+		while (poolIterator.hasNext()) {
+			HostPool pool = poolIterator.next();
+
+			Iterator<Exchange> queueIterator = pool.queue.iterator();
+			while (queueIterator.hasNext()) {
+				Exchange exchange = queueIterator.next();
+				if (exchange.deadline <= now) {
+					queueIterator.remove();
+					exchange.fail(new SocketTimeoutException("Request timed out"));
+				} else {
+					next = Math.min(next, exchange.deadline - now);
+				}
+			}
+
+			for (Connection connection : new ArrayList<Connection>(pool.connections)) {
+				if (connection.exchanges.isEmpty()) {
+					if (connection.idleSince + IDLE_TIMEOUT <= now)
+						close(connection, null);
+					else
+						next = Math.min(next, connection.idleSince + IDLE_TIMEOUT - now);
+				} else {
+					Exchange exchange = connection.exchanges.getFirst();
+					if (exchange.deadline <= now) {
+						exchange.retryable = false;
+						close(connection, new SocketTimeoutException("Request timed out"));
+					} else {
+						next = Math.min(next, exchange.deadline - now);
+					}
+				}
+			}
+
+			if (pool.queue.isEmpty() && pool.connections.isEmpty())
+				poolIterator.remove();
+		}
+
+		return Math.max(next, 1);
+	}
+
+	private void enqueue(Exchange exchange) {
+		HostPool pool = pools.get(exchange.hostKey);
+
+		if (pool == null) {
+			pool = new HostPool(exchange.host, exchange.port);
+			pools.put(exchange.hostKey, pool);
+		}
+
+		// New connections go to the most recently resolved address
+		pool.address = exchange.address;
+		pool.queue.add(exchange);
+		dispatch(pool);
+	}
+
+	/**
+	 * Hands queued requests to idle connections, new connections or, for GET/HEAD requests to
+	 * hosts that keep connections alive, to the shortest pipeline.
+	 */
+	private void dispatch(HostPool pool) {
+		while (!pool.queue.isEmpty()) {
+			Exchange exchange = pool.queue.getFirst();
+			Connection target = null;
+
+			for (Connection connection : pool.connections) {
+				if (connection.exchanges.isEmpty() && !connection.closing) {
+					target = connection;
+					break;
+				}
+			}
+
+			if (target == null && pool.connections.size() < MAX_CONNECTIONS_PER_HOST) {
+				try {
+					target = open(pool);
+				} catch (IOException e) {
+					pool.queue.removeFirst();
+					exchange.fail(e);
+					continue;
+				}
+			}
+
+			if (target == null && pool.pipelining && exchange.idempotent) {
+				for (Connection connection : pool.connections) {
+					if (connection.canPipeline() && (target == null || connection.exchanges.size() < target.exchanges.size()))
+						target = connection;
+				}
+			}
+
+			if (target == null)
+				break;
+
+			pool.queue.removeFirst();
+			exchange.retryable = exchange.attempts == 0;
+			exchange.attempts++;
+			exchange.received = false;
+			exchange.output = ByteBuffer.wrap(exchange.data);
+
+			target.exchanges.add(exchange);
+			target.output.add(exchange.output);
+
+			if (target.parser == null)
+				target.parser = new ResponseParser(exchange.head);
+
+			updateInterest(target);
+		}
+	}
+
+	private Connection open(HostPool pool) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+
+		try {
+			channel.configureBlocking(false);
+
+			Connection connection = new Connection(pool, channel);
+			connection.connected = channel.connect(pool.address);
+			connection.key = channel.register(selector, 0, connection);
+			pool.connections.add(connection);
+
+			return connection;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void updateInterest(Connection connection) {
+		if (!connection.key.isValid())
+			return;
+
+		int ops;
+		if (!connection.connected)
+			ops = SelectionKey.OP_CONNECT;
+		else if (!connection.output.isEmpty())
+			ops = SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		else
+			ops = SelectionKey.OP_READ;
+
+		connection.key.interestOps(ops);
+	}
+
+	private void write(Connection connection) throws IOException {
+		while (!connection.output.isEmpty()) {
+			ByteBuffer buffer = connection.output.getFirst();
+			connection.channel.write(buffer);
+
+			if (buffer.hasRemaining())
+				return;
+
+			connection.output.removeFirst();
+		}
+
+		updateInterest(connection);
+	}
+
+	private void read(Connection connection) throws IOException {
+		readBuffer.clear();
+		int count = connection.channel.read(readBuffer);
+
+		if (count < 0) {
+			if (connection.parser != null && connection.parser.finishOnClose())
+				complete(connection);
+
+			close(connection, new IOException("Connection closed by " + connection.pool.host));
+			return;
+		}
+
+		readBuffer.flip();
+
+		while (readBuffer.hasRemaining()) {
+			if (connection.exchanges.isEmpty())
+				throw new IOException("Unexpected data from " + connection.pool.host);
+
+			connection.exchanges.getFirst().received = true;
+
+			if (connection.parser.parse(readBuffer))
+				complete(connection);
+
+			if (connection.closing)
+				return;
+		}
+	}
+
+	private void complete(Connection connection) {
+		ResponseParser parser = connection.parser;
+		Exchange exchange = connection.exchanges.removeFirst();
+		HostPool pool = connection.pool;
+
+		connection.idleSince = System.currentTimeMillis();
+		connection.parser = connection.exchanges.isEmpty() ? null : new ResponseParser(connection.exchanges.getFirst().head);
+
+		if (parser.keepAlive) {
+			pool.pipelining = pool.pipelining || parser.http11;
+		} else {
+			connection.closing = true;
+			pool.pipelining = false;
+		}
+
+		Response response = new Response();
+		response.statusCode = parser.statusCode;
+		response.headers = parser.headers;
+		response.body = parser.body.toByteArray();
+		exchange.succeed(response);
+
+		if (connection.closing)
+			close(connection, new IOException("Connection closed by " + pool.host));
+		else
+			dispatch(pool);
+	}
+
+	/**
+	 * Closes a connection and retries or fails the requests that were still waiting on it. A
+	 * request is retried once, and only if it is idempotent or none of it was written, since
+	 * the host may already have acted on a POST that was sent on a connection it then closed.
+	 */
+	private void close(Connection connection, IOException e) {
+		HostPool pool = connection.pool;
+
+		connection.closing = true;
+		connection.key.cancel();
+		try {
+			connection.channel.close();
+		} catch (IOException ignored) { }
+
+		pool.connections.remove(connection);
+
+		List<Exchange> retries = new ArrayList<Exchange>();
+		for (Exchange exchange : connection.exchanges) {
+			if (exchange.retryable && !exchange.received && (exchange.idempotent || exchange.output.position() == 0))
+				retries.add(exchange);
+			else
+				exchange.fail(e != null ? e : new IOException("Connection closed"));
+		}
+		connection.exchanges.clear();
+
+		pool.queue.addAll(0, retries);
+		dispatch(pool);
+	}
+
+	static class HostPool {
+		String host;
+		int port;
+		InetSocketAddress address;
+		boolean pipelining;
+		LinkedList<Exchange> queue = new LinkedList<Exchange>();
+		List<Connection> connections = new ArrayList<Connection>();
+
+		HostPool(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+	}
+
+	static class Connection {
+		HostPool pool;
+		SocketChannel channel;
+		SelectionKey key;
+		LinkedList<Exchange> exchanges = new LinkedList<Exchange>();
+		LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+		ResponseParser parser;
+		boolean connected;
+		boolean closing;
+		long idleSince = System.currentTimeMillis();
+
+		Connection(HostPool pool, SocketChannel channel) {
+			this.pool = pool;
+			this.channel = channel;
+		}
+
+		boolean canPipeline() {
+			if (closing || !connected || exchanges.size() >= MAX_PIPELINED_REQUESTS)
+				return false;
+
+			for (Exchange exchange : exchanges) {
+				if (!exchange.idempotent)
+					return false;
+			}
+
+			return true;
+		}
+	}
+
+	static class Exchange {
+		String host;
+		int port;
+		String hostKey;
+		InetSocketAddress address;
+		byte[] data;
+		ByteBuffer output;
+		boolean head;
+		boolean idempotent;
+		boolean retryable;
+		boolean received;
+		int attempts;
+		long deadline;
+		ResponseListener listener;
+
+		Exchange(HttpRequestBase request, ResponseListener listener) throws IOException {
+			URI uri = request.getURI();
+			String method = request.getMethod();
+
+			if (uri == null || uri.getHost() == null)
+				throw new IOException("Invalid request URL " + uri);
+			if (!"http".equalsIgnoreCase(uri.getScheme()))
+				throw new IOException("Unsupported scheme " + uri.getScheme());
+
+			this.host = uri.getHost();
+			this.port = uri.getPort() > 0 ? uri.getPort() : 80;
+			this.hostKey = host + ":" + port;
+			this.head = "HEAD".equalsIgnoreCase(method);
+			this.idempotent = head || "GET".equalsIgnoreCase(method);
+			this.deadline = System.currentTimeMillis() + REQUEST_TIMEOUT;
+			this.listener = listener;
+			this.data = serialize(request, uri, method);
+		}
+
+		private byte[] serialize(HttpRequestBase request, URI uri, String method) throws IOException {
+			String path = uri.getRawPath();
+			if (path == null || path.length() == 0)
+				path = "/";
+			if (uri.getRawQuery() != null)
+				path += "?" + uri.getRawQuery();
+
+			byte[] body = null;
+			String contentType = null;
+			if (request instanceof HttpEntityEnclosingRequest) {
+				HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+				ByteArrayOutputStream bodyStream = new ByteArrayOutputStream();
+
+				if (entity != null) {
+					entity.writeTo(bodyStream);
+					if (entity.getContentType() != null)
+						contentType = entity.getContentType().getValue();
+				}
+				body = bodyStream.toByteArray();
+			}
+
+			StringBuilder sb = new StringBuilder();
+			sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+			sb.append("Host: ").append(host);
+			if (port != 80)
+				sb.append(':').append(port);
+			sb.append("\r\n");
+
+			for (Header header : request.getAllHeaders()) {
+				String name = header.getName();
+				if (name.equalsIgnoreCase("Host") || name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Connection"))
+					continue;
+				if (name.equalsIgnoreCase("Content-Type"))
+					contentType = null;
+
+				sb.append(name).append(": ").append(header.getValue()).append("\r\n");
+			}
+
+			if (contentType != null)
+				sb.append("Content-Type: ").append(contentType).append("\r\n");
+			if (body != null)
+				sb.append("Content-Length: ").append(body.length).append("\r\n");
+			sb.append("\r\n");
+
+			byte[] head = sb.toString().getBytes("ISO-8859-1");
+			if (body == null || body.length == 0)
+				return head;
+
+			byte[] data = new byte[head.length + body.length];
+			System.arraycopy(head, 0, data, 0, head.length);
+			System.arraycopy(body, 0, data, head.length, body.length);
+
+			return data;
+		}
+
+		void succeed(Response response) {
+			try {
+				listener.onResponse(response);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		void fail(IOException e) {
+			try {
+				listener.onFailure(e);
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Incremental parser for one response. Handles Content-Length, chunked and
+	 * read-until-close bodies.
+	 */
+	static class ResponseParser {
+		static final int STATUS_LINE = 0;
+		static final int HEADERS = 1;
+		static final int BODY = 2;
+		static final int CHUNK_SIZE = 3;
+		static final int CHUNK_DATA = 4;
+		static final int CHUNK_END = 5;
+		static final int TRAILERS = 6;
+		static final int UNTIL_CLOSE = 7;
+
+		boolean head;
+		int state = STATUS_LINE;
+		StringBuilder line = new StringBuilder();
+		long remaining;
+
+		int statusCode;
+		boolean http11;
+		boolean keepAlive;
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		ResponseParser(boolean head) {
+			this.head = head;
+		}
+
+		/**
+		 * @return true when the response is complete
+		 */
+		boolean parse(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				switch (state) {
+				case BODY:
+				case CHUNK_DATA:
+					int count = (int) Math.min(remaining, buffer.remaining());
+					appendBody(buffer, count);
+					remaining -= count;
+
+					if (remaining == 0) {
+						if (state == BODY)
+							return true;
+						state = CHUNK_END;
+					}
+					break;
+
+				case UNTIL_CLOSE:
+					appendBody(buffer, buffer.remaining());
+					break;
+
+				default:
+					if (readLine(buffer) && parseLine())
+						return true;
+				}
+			}
+
+			return false;
+		}
+
+		boolean finishOnClose() {
+			return state == UNTIL_CLOSE;
+		}
+
+		private void appendBody(ByteBuffer buffer, int count) throws IOException {
+			if (body.size() + count > MAX_BODY_LENGTH)
+				throw new IOException("Response body too large");
+
+			for (int i = 0; i < count; i++) {
+				body.write(buffer.get());
+			}
+		}
+
+		private boolean readLine(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				char c = (char) (buffer.get() & 0xff);
+
+				if (c == '\n') {
+					int length = line.length();
+					if (length > 0 && line.charAt(length - 1) == '\r')
+						line.setLength(length - 1);
+					return true;
+				}
+
+				if (line.length() >= 8192)
+					throw new IOException("Response line too long");
+
+				line.append(c);
+			}
+
+			return false;
+		}
+
+		private boolean parseLine() throws IOException {
+			String text = line.toString();
+			line.setLength(0);
+
+			switch (state) {
+			case STATUS_LINE:
+				if (text.length() == 0)
+					return false;
+
+				String[] parts = text.split(" ", 3);
+				if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+					throw new IOException("Invalid status line " + text);
+
+				try {
+					statusCode = Integer.parseInt(parts[1]);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid status line " + text);
+				}
+
+				http11 = parts[0].equals("HTTP/1.1");
+				state = HEADERS;
+				return false;
+
+			case HEADERS:
+				if (text.length() > 0) {
+					int colon = text.indexOf(':');
+					if (colon > 0)
+						headers.put(text.substring(0, colon).trim().toLowerCase(Locale.US), text.substring(colon + 1).trim());
+					return false;
+				}
+				return startBody();
+
+			case CHUNK_SIZE:
+				int extension = text.indexOf(';');
+				String size = (extension >= 0 ? text.substring(0, extension) : text).trim();
+
+				try {
+					remaining = Long.parseLong(size, 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid chunk size " + text);
+				}
+
+				state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+				return false;
+
+			case CHUNK_END:
+				state = CHUNK_SIZE;
+				return false;
+
+			case TRAILERS:
+				return text.length() == 0;
+
+			default:
+				return false;
+			}
+		}
+
+		private boolean startBody() {
+			if (statusCode >= 100 && statusCode < 200) {
+				// Interim response, the real one follows
+				headers.clear();
+				state = STATUS_LINE;
+				return false;
+			}
+
+			String connection = headers.get("connection");
+			if (http11)
+				keepAlive = connection == null || !connection.equalsIgnoreCase("close");
+			else
+				keepAlive = connection != null && connection.equalsIgnoreCase("keep-alive");
+
+			if (head || statusCode == 204 || statusCode == 304)
+				return true;
+
+			String transferEncoding = headers.get("transfer-encoding");
+			if (transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+				state = CHUNK_SIZE;
+				return false;
+			}
+
+			String contentLength = headers.get("content-length");
+			if (contentLength != null) {
+				try {
+					remaining = Long.parseLong(contentLength.trim());
+				} catch (NumberFormatException e) {
+					remaining = -1;
+				}
+
+				if (remaining == 0)
+					return true;
+
+				if (remaining > 0) {
+					state = BODY;
+					return false;
+				}
+			}
+
+			keepAlive = false;
+			state = UNTIL_CLOSE;
+			return false;
+		}
+	}
+}
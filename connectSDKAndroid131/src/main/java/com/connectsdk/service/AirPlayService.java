@@ -26,6 +26,7 @@ import android.graphics.BitmapFactory;
 import com.connectsdk.core.Util;
 import com.connectsdk.etc.helper.DeviceServiceReachability;
 import com.connectsdk.etc.helper.HttpMessage;
+import com.connectsdk.etc.helper.HttpTransport;
 import com.connectsdk.service.airplay.PListBuilder;
 import com.connectsdk.service.capability.MediaControl;
 import com.connectsdk.service.capability.MediaPlayer;
@@ -39,18 +40,10 @@ import com.connectsdk.service.sessions.LaunchSession;
 import com.connectsdk.service.sessions.LaunchSession.LaunchSessionType;
 
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.HttpParams;
-import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -76,16 +69,9 @@ public class AirPlayService extends DeviceService implements MediaPlayer, MediaC
 		void onGetPlaybackPositionFailed(ServiceCommandError error);
 	}
 	
-	HttpClient httpClient;
-
 	public AirPlayService(ServiceDescription serviceDescription,
 			ServiceConfig serviceConfig) {
 		super(serviceDescription, serviceConfig);
-		
-		httpClient = new DefaultHttpClient();
-		ClientConnectionManager mgr = httpClient.getConnectionManager();
-		HttpParams params = httpClient.getParams();
-		httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, mgr.getSchemeRegistry()), params);
 	}
 
 	public static JSONObject discoveryParameters() {
@@ -135,6 +121,8 @@ public class AirPlayService extends DeviceService implements MediaPlayer, MediaC
 
 	@Override
 	public void stop(ResponseListener<Object> listener) {
+		setReachabilityActive(false);
+
 		String uri = getRequestURL("stop");
 		
 		ServiceCommand<ResponseListener<Object>> request = new ServiceCommand<ResponseListener<Object>>(this, uri, null, listener);
@@ -357,6 +345,8 @@ public class AirPlayService extends DeviceService implements MediaPlayer, MediaC
 			
 			@Override
 			public void onSuccess(Object response) {
+				setReachabilityActive(true);
+
 				LaunchSession launchSession = new LaunchSession();
 				launchSession.setService(AirPlayService.this);
 				launchSession.setSessionType(LaunchSessionType.Media);
@@ -409,59 +399,50 @@ public class AirPlayService extends DeviceService implements MediaPlayer, MediaC
 	
 	@Override
 	public void sendCommand(final ServiceCommand<?> mCommand) {
-		Util.runInBackground(new Runnable() {
+		@SuppressWarnings("unchecked")
+		final ServiceCommand<ResponseListener<Object>> command = (ServiceCommand<ResponseListener<Object>>) mCommand;
+
+		Object payload = command.getPayload();
+		
+		HttpRequestBase request = command.getRequest();
+		request.addHeader(HttpMessage.CONTENT_TYPE_HEADER, HttpMessage.CONTENT_TYPE_APPLICATION_PLIST);
+		
+		if (payload != null && command.getHttpMethod().equalsIgnoreCase(ServiceCommand.TYPE_POST)) {
+			HttpEntity entity = null;
 			
-			@SuppressWarnings("unchecked")
-			@Override
-			public void run() {
-				final ServiceCommand<ResponseListener<Object>> command = (ServiceCommand<ResponseListener<Object>>) mCommand;
+			try {
+				if (payload instanceof String) {
+					entity = new StringEntity((String) payload);
+				} else if (payload instanceof JSONObject) {
+					entity = new StringEntity(((JSONObject) payload).toString());
+				} else if (payload instanceof HttpEntity) {
+					entity = (HttpEntity)payload;
+				}
+			} catch (UnsupportedEncodingException e) {
+				e.printStackTrace();
+			}
+			
+			((HttpPost) request).setEntity(entity);
+		}
 
-				Object payload = command.getPayload();
-				
-				HttpRequestBase request = command.getRequest();
-				request.addHeader(HttpMessage.CONTENT_TYPE_HEADER, HttpMessage.CONTENT_TYPE_APPLICATION_PLIST);
-				HttpResponse response = null;
+		HttpTransport.getInstance().execute(request, new HttpTransport.ResponseListener() {
+			
+			@Override
+			public void onResponse(HttpTransport.Response response) {
+				int code = response.getStatusCode();
 				
-				if (payload != null && command.getHttpMethod().equalsIgnoreCase(ServiceCommand.TYPE_POST)) {
-					HttpEntity entity = null;
-					
-					try {
-						if (payload instanceof String) {
-							entity = new StringEntity((String) payload);
-						} else if (payload instanceof JSONObject) {
-							entity = new StringEntity(((JSONObject) payload).toString());
-						} else if (payload instanceof HttpEntity) {
-							entity = (HttpEntity)payload;
-						}
-					} catch (UnsupportedEncodingException e) {
-						e.printStackTrace();
-					}
-					
-					((HttpPost) request).setEntity(entity);
+				if (code == 200) { 
+					Util.postSuccess(command.getResponseListener(), response.getBodyAsString());
 				}
-				
-				try {
-					response = httpClient.execute(request);
-					
-					int code = response.getStatusLine().getStatusCode();
-					
-					if (code == 200) { 
-			            HttpEntity entity = response.getEntity();
-			            String message = EntityUtils.toString(entity, "UTF-8");
-			            
-			            Util.postSuccess(command.getResponseListener(), message);
-					}
-					else {
-			        	Util.postError(command.getResponseListener(), ServiceCommandError.getError(code));
-					}
-		
-					response.getEntity().consumeContent();
-				} catch (ClientProtocolException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
+				else {
+					Util.postError(command.getResponseListener(), ServiceCommandError.getError(code));
 				}
 			}
+			
+			@Override
+			public void onFailure(IOException e) {
+				Util.postError(command.getResponseListener(), new ServiceCommandError(0, e.getMessage(), null));
+			}
 		});
 	}
 	
@@ -516,6 +497,8 @@ public class AirPlayService extends DeviceService implements MediaPlayer, MediaC
 	
 	@Override
 	public void connect() {
+		startReachability(serviceDescription.getPort());
+
 		connected = true;
 		
 		reportConnected(true);
@@ -26,6 +26,7 @@ import com.connectsdk.core.AppInfo;
 import com.connectsdk.core.Util;
 import com.connectsdk.etc.helper.DeviceServiceReachability;
 import com.connectsdk.etc.helper.HttpMessage;
+import com.connectsdk.etc.helper.HttpTransport;
 import com.connectsdk.service.capability.Launcher;
 import com.connectsdk.service.capability.listeners.ResponseListener;
 import com.connectsdk.service.command.NotSupportedServiceSubscription;
@@ -38,17 +39,9 @@ import com.connectsdk.service.sessions.LaunchSession;
 import com.connectsdk.service.sessions.LaunchSession.LaunchSessionType;
 
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.HttpParams;
-import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -75,15 +68,8 @@ public class DIALService extends DeviceService implements Launcher {
 			registeredApps.add(appId);
 	}
 	
-	HttpClient httpClient;
-
 	public DIALService(ServiceDescription serviceDescription, ServiceConfig serviceConfig) {
 		super(serviceDescription, serviceConfig);
-		
-		httpClient = new DefaultHttpClient();
-		ClientConnectionManager mgr = httpClient.getConnectionManager();
-		HttpParams params = httpClient.getParams();
-		httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, mgr.getSchemeRegistry()), params);
 	}
 
 	public static JSONObject discoveryParameters() {
@@ -381,9 +367,7 @@ public class DIALService extends DeviceService implements Launcher {
 	
 	@Override
 	public void connect() {
-	//  TODO:  Fix this for roku.  Right now it is using the InetAddress reachable function.  Need to use an HTTP Method.
-//		mServiceReachability = DeviceServiceReachability.getReachability(serviceDescription.getIpAddress(), this);
-//		mServiceReachability.start();
+		startReachability(getLocationPort());
 		
 		connected = true;
 		
@@ -418,72 +402,59 @@ public class DIALService extends DeviceService implements Launcher {
 	
 	@Override
 	public void sendCommand(final ServiceCommand<?> mCommand) {
-		Util.runInBackground(new Runnable() {
-			
-			@SuppressWarnings("unchecked")
-			@Override
-			public void run() {
-				ServiceCommand<ResponseListener<Object>> command = (ServiceCommand<ResponseListener<Object>>) mCommand;
-				Object payload = command.getPayload();
-				
-				HttpRequestBase request = command.getRequest();
-				HttpResponse response = null;
-				int code = -1;
+		@SuppressWarnings("unchecked")
+		final ServiceCommand<ResponseListener<Object>> command = (ServiceCommand<ResponseListener<Object>>) mCommand;
+		Object payload = command.getPayload();
+		
+		HttpRequestBase request = command.getRequest();
+		
+		if (payload != null && command.getHttpMethod().equalsIgnoreCase(ServiceCommand.TYPE_POST)) {
+			request.setHeader(HttpMessage.CONTENT_TYPE_HEADER, "text/plain; charset=\"utf-8\"");
+			HttpPost post = (HttpPost) request;
+			HttpEntity entity = null;
+			try {
+				if (payload instanceof String) {
+					entity = new StringEntity((String) payload);
 				
-				if (payload != null && command.getHttpMethod().equalsIgnoreCase(ServiceCommand.TYPE_POST)) {
-					request.setHeader(HttpMessage.CONTENT_TYPE_HEADER, "text/plain; charset=\"utf-8\"");
-					HttpPost post = (HttpPost) request;
-					HttpEntity entity = null;
-					try {
-						if (payload instanceof String) {
-							entity = new StringEntity((String) payload);
-						
-						} else if (payload instanceof JSONObject) {
-							entity = new StringEntity((String) payload);
-						}
-					} catch (UnsupportedEncodingException e) {
-						e.printStackTrace();
-						//  Error is handled below if entity is null;
-					}
+				} else if (payload instanceof JSONObject) {
+					entity = new StringEntity((String) payload);
+				}
+			} catch (UnsupportedEncodingException e) {
+				e.printStackTrace();
+				//  Error is handled below if entity is null;
+			}
 
-					if (entity == null) {
-						Util.postError(command.getResponseListener(), new ServiceCommandError(0, "Unknown Error while preparing to send message", null));
+			if (entity == null) {
+				Util.postError(command.getResponseListener(), new ServiceCommandError(0, "Unknown Error while preparing to send message", null));
 
-						return;
-					}
-					
-					post.setEntity(entity);
-				}
+				return;
+			}
 			
-				try {
-					response = httpClient.execute(request);
-					
-					code = response.getStatusLine().getStatusCode();
+			post.setEntity(entity);
+		}
+	
+		HttpTransport.getInstance().execute(request, new HttpTransport.ResponseListener() {
+			
+			@Override
+			public void onResponse(HttpTransport.Response response) {
+				int code = response.getStatusCode();
+				
+				if (code == 200) { 
+					Util.postSuccess(command.getResponseListener(), response.getBodyAsString());
+				} else if (code == 201) {
+					String locationPath = response.getHeader("Location");
 					
-					if ( code == 200) { 
-			            HttpEntity entity = response.getEntity();
-			            String message = EntityUtils.toString(entity, "UTF-8");
-
-						Util.postSuccess(command.getResponseListener(), message);
-					} else if (code == 201) {
-						String locationPath = response.getHeaders("Location")[0].getValue();
-						
-						Util.postSuccess(command.getResponseListener(), locationPath);
-					}
-					else {
-						Util.postError(command.getResponseListener(), ServiceCommandError.getError(code));
-					}
-				} catch (IllegalStateException e) {
-					//  TODO:  Find out why this is needed.
-					e.printStackTrace();
-				} catch (ClientProtocolException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
-				} catch (Exception ex) {
-					ex.printStackTrace();
+					Util.postSuccess(command.getResponseListener(), locationPath);
+				}
+				else {
+					Util.postError(command.getResponseListener(), ServiceCommandError.getError(code));
 				}
 			}
+			
+			@Override
+			public void onFailure(IOException e) {
+				Util.postError(command.getResponseListener(), new ServiceCommandError(0, e.getMessage(), null));
+			}
 		});
 	}
 	
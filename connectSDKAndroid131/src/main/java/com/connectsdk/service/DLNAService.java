@@ -21,36 +21,30 @@
 package com.connectsdk.service;
 
 import com.connectsdk.core.Util;
+import com.connectsdk.core.upnp.GenaSubscription;
 import com.connectsdk.core.upnp.service.Service;
 import com.connectsdk.etc.helper.DeviceServiceReachability;
 import com.connectsdk.etc.helper.HttpMessage;
+import com.connectsdk.etc.helper.HttpTransport;
 import com.connectsdk.service.capability.MediaControl;
 import com.connectsdk.service.capability.MediaPlayer;
 import com.connectsdk.service.capability.listeners.ResponseListener;
 import com.connectsdk.service.command.ServiceCommand;
 import com.connectsdk.service.command.ServiceCommandError;
 import com.connectsdk.service.command.ServiceSubscription;
+import com.connectsdk.service.command.URLServiceSubscription;
 import com.connectsdk.service.config.ServiceConfig;
 import com.connectsdk.service.config.ServiceDescription;
+import com.connectsdk.service.dlna.SoapCodec;
 import com.connectsdk.service.sessions.LaunchSession;
 import com.connectsdk.service.sessions.LaunchSession.LaunchSessionType;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.HttpParams;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.entity.ByteArrayEntity;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -61,25 +55,41 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 	
 	public static final String ID = "DLNA";
 
-	private static final String DATA = "XMLData";
-	private static final String ACTION = "SOAPAction";
-	private static final String	ACTION_CONTENT = "\"urn:schemas-upnp-org:service:AVTransport:1#%s\"";
+
+	/** Default time in milliseconds a GetPositionInfo or GetTransportInfo response is reused */
+	public static final int DEFAULT_QUERY_CACHE_TIME = 300;
+
+	// Longest time a position is extrapolated from the last RelTime before asking again
+	static final int POSITION_REFRESH_INTERVAL = 5000;
 
 	String controlURL;
-	HttpClient httpClient;
+	String avTransportEventURL;
+
+	// AVTransport state variables of instance 0, merged from LastChange events
+	final Map<String, String> transportState = new HashMap<String, String>();
+	PlayStateStatus playState;
+	GenaSubscription avTransportEvents;
+	List<URLServiceSubscription<?>> subscriptions = new ArrayList<URLServiceSubscription<?>>();
+
+	// Idempotent queries by SOAP action: listeners of the request in flight and the last responses
+	final Map<String, List<ResponseListener<Object>>> pendingQueries = new HashMap<String, List<ResponseListener<Object>>>();
+	final Map<String, byte[]> queryResponses = new HashMap<String, byte[]>();
+	final Map<String, Long> queryTimes = new HashMap<String, Long>();
+	int queryGeneration;
+	int queryCacheTime = DEFAULT_QUERY_CACHE_TIME;
+
+	// Last RelTime and TrackDuration read from the renderer, and when
+	long positionBase = -1;
+	long positionDuration;
+	long positionTime;
 
 	interface PositionInfoListener {
-		public void onGetPositionInfoSuccess(String positionInfoXml);
+		public void onGetPositionInfoSuccess(byte[] positionInfoXml);
 		public void onGetPositionInfoFailed(ServiceCommandError error);
 	}
 	
 	public DLNAService(ServiceDescription serviceDescription, ServiceConfig serviceConfig) {
 		super(serviceDescription, serviceConfig);
-
-		httpClient = new DefaultHttpClient();
-		ClientConnectionManager mgr = httpClient.getConnectionManager();
-		HttpParams params = httpClient.getParams();
-		httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, mgr.getSchemeRegistry()), params);
 	}
 	
 	public static JSONObject discoveryParameters() {
@@ -99,6 +109,7 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 	public void setServiceDescription(ServiceDescription serviceDescription) {
 		super.setServiceDescription(serviceDescription);
 		
+		boolean wasEvented = avTransportEventURL != null;
 		StringBuilder sb = new StringBuilder();
 		List<Service> serviceList = serviceDescription.getServiceList();
 
@@ -107,11 +118,17 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 				if ( serviceList.get(i).serviceType.contains("AVTransport") ) {
 					sb.append(serviceList.get(i).baseURL);
 					sb.append(serviceList.get(i).controlURL);
+
+					if (serviceList.get(i).eventSubURL != null && serviceList.get(i).eventSubURL.length() > 0)
+						avTransportEventURL = serviceList.get(i).baseURL + serviceList.get(i).eventSubURL;
 					break;
 				}
 			}
 			controlURL = sb.toString();
 		}
+
+		if (wasEvented != (avTransportEventURL != null))
+			updateCapabilities();
 	}
 	
 	/******************
@@ -129,17 +146,12 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 	
 	public void displayMedia(final String url, final String mimeType, final String title, final String description, final String iconSrc, final LaunchListener listener) {
 		final String instanceId = "0";
-	    String[] mediaElements = mimeType.split("/");
-	    String mediaType = mediaElements[0];
-	    String mediaFormat = mediaElements[1];
+	    String mMimeType = getDLNAMimeType(mimeType);
 
-	    if (mediaType == null || mediaType.length() == 0 || mediaFormat == null || mediaFormat.length() == 0) {
+	    if (mMimeType == null) {
 	        Util.postError(listener, new ServiceCommandError(0, "You must provide a valid mimeType (audio/*,  video/*, etc)", null));
 	        return;
 	    }
-
-	    mediaFormat = "mp3".equals(mediaFormat) ? "mpeg" : mediaFormat;
-	    String mMimeType = String.format("%s/%s", mediaType, mediaFormat);
 		
 		ResponseListener<Object> responseListener = new ResponseListener<Object>() {
 			
@@ -147,14 +159,13 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 			public void onSuccess(Object response) {
 				String method = "Play";
 				
-				Map<String, String> parameters = new HashMap<String, String>();
-				parameters.put("Speed", "1");
-				
-				JSONObject payload = getMethodBody(instanceId, method, parameters);
+				byte[] payload = SoapCodec.encode(SoapCodec.AV_TRANSPORT, method, "InstanceID", instanceId, "Speed", "1");
 				
 				ResponseListener<Object> playResponseListener = new ResponseListener<Object> () {
 					@Override
 					public void onSuccess(Object response) {
+						setReachabilityActive(true);
+
 						LaunchSession launchSession = new LaunchSession();
 						launchSession.setService(DLNAService.this);
 						launchSession.setSessionType(LaunchSessionType.Media);
@@ -182,13 +193,65 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 			}
 		};
 
+		invalidateQueries();
+
 		String method = "SetAVTransportURI";
-        JSONObject httpMessage = getSetAVTransportURIBody(method, instanceId, url, mMimeType, title);
+		byte[] httpMessage = SoapCodec.encodeTransportURI(method, instanceId, "CurrentURI", url, mMimeType, title);
 
 		ServiceCommand<ResponseListener<Object>> request = new ServiceCommand<ResponseListener<Object>>(DLNAService.this, method, httpMessage, responseListener);
 		request.send();
 	}
 	
+	/**
+	 * Announces the media to play when the current media ends (SetNextAVTransportURI), so the
+	 * renderer can buffer it ahead and switch without stopping. Renderers that do not support
+	 * it answer with an error. getTransportURI tells when the renderer switched.
+	 */
+	public void setNextMedia(String url, String mimeType, String title, ResponseListener<Object> listener) {
+	    String mMimeType = getDLNAMimeType(mimeType);
+
+	    if (mMimeType == null) {
+	        Util.postError(listener, new ServiceCommandError(0, "You must provide a valid mimeType (audio/*,  video/*, etc)", null));
+	        return;
+	    }
+
+		String method = "SetNextAVTransportURI";
+		byte[] payload = SoapCodec.encodeTransportURI(method, "0", "NextURI", url, mMimeType, title);
+
+		ServiceCommand<ResponseListener<Object>> request = new ServiceCommand<ResponseListener<Object>>(this, method, payload, listener);
+		request.send();
+	}
+
+	/**
+	 * URI of the media the renderer has loaded, as last evented, or null when play state is
+	 * not subscribed to.
+	 */
+	public String getTransportURI() {
+		synchronized (transportState) {
+			if (avTransportEvents == null || !avTransportEvents.isActive())
+				return null;
+
+			return getTransportURI(transportState);
+		}
+	}
+
+	private static String getTransportURI(Map<String, String> transportState) {
+		String uri = transportState.get("AVTransportURI");
+
+		return uri != null && uri.length() > 0 ? uri : transportState.get("CurrentTrackURI");
+	}
+
+	private static String getDLNAMimeType(String mimeType) {
+	    String[] mediaElements = mimeType.split("/");
+
+	    if (mediaElements.length != 2 || mediaElements[0].length() == 0 || mediaElements[1].length() == 0)
+	    	return null;
+
+	    String mediaFormat = "mp3".equals(mediaElements[1]) ? "mpeg" : mediaElements[1];
+
+	    return String.format("%s/%s", mediaElements[0], mediaFormat);
+	}
+	
 	@Override
 	public void displayImage(String url, String mimeType, String title, String description, String iconSrc, LaunchListener listener) {
 		displayMedia(url, mimeType, title, description, iconSrc, listener);
@@ -286,13 +349,12 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 
 	@Override
 	public void play(final ResponseListener<Object> listener) {
+		invalidateQueries();
+
 	  	String method = "Play";
 		String instanceId = "0";
 
-		Map<String, String> parameters = new HashMap<String, String>();
-		parameters.put("Speed", "1");
-		
-		JSONObject payload = getMethodBody(instanceId, method, parameters);
+		byte[] payload = SoapCodec.encode(SoapCodec.AV_TRANSPORT, method, "InstanceID", instanceId, "Speed", "1");
 
 		ServiceCommand<ResponseListener<Object>> request = new ServiceCommand<ResponseListener<Object>>(this, method, payload, listener);
 		request.send();
@@ -300,10 +362,12 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 
 	@Override
 	public void pause(final ResponseListener<Object> listener) {
+		invalidateQueries();
+
     	String method = "Pause";
 		String instanceId = "0";
 
-		JSONObject payload = getMethodBody(instanceId, method);
+		byte[] payload = SoapCodec.encode(SoapCodec.AV_TRANSPORT, method, "InstanceID", instanceId);
 
 		ServiceCommand<ResponseListener<Object>> request = new ServiceCommand<ResponseListener<Object>>(this, method, payload, listener);
 		request.send();
@@ -311,10 +375,13 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 
 	@Override
 	public void stop(final ResponseListener<Object> listener) {
+		setReachabilityActive(false);
+		invalidateQueries();
+
     	String method = "Stop";
 		String instanceId = "0";
 
-		JSONObject payload = getMethodBody(instanceId, method);
+		byte[] payload = SoapCodec.encode(SoapCodec.AV_TRANSPORT, method, "InstanceID", instanceId);
 
 		ServiceCommand<ResponseListener<Object>> request = new ServiceCommand<ResponseListener<Object>>(this, method, payload, listener);
 		request.send();
@@ -332,6 +399,8 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 	
 	@Override
 	public void seek(long position, ResponseListener<Object> listener) {
+		invalidateQueries();
+
     	String method = "Seek";
 		String instanceId = "0";
 		
@@ -341,29 +410,20 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 
 		String time = String.format(Locale.US, "%02d:%02d:%02d", hour, minute, second);
 		
-		Map<String, String> parameters = new HashMap<String, String>();
-		parameters.put("Unit", "REL_TIME");
-		parameters.put("Target", time);
-
-		JSONObject payload = getMethodBody(instanceId, method, parameters);
+		byte[] payload = SoapCodec.encode(SoapCodec.AV_TRANSPORT, method, "InstanceID", instanceId, "Unit", "REL_TIME", "Target", time);
 
 		ServiceCommand<ResponseListener<Object>> request = new ServiceCommand<ResponseListener<Object>>(this, method, payload, listener);
 		request.send();
 	}
 	
 	private void getPositionInfo(final PositionInfoListener listener) {
-    	String method = "GetPositionInfo";
-		String instanceId = "0";
-
-		JSONObject payload = getMethodBody(instanceId, method);
-		
 		ResponseListener<Object> responseListener = new ResponseListener<Object>() {
 			
 			@Override
 			public void onSuccess(Object response) {
 				
 				if (listener != null) {
-					listener.onGetPositionInfoSuccess((String)response);
+					listener.onGetPositionInfoSuccess((byte[]) response);
 				}
 			}
 			
@@ -375,17 +435,179 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 			}
 		};
 
+		query("GetPositionInfo", responseListener);
+	}
+
+	/**
+	 * Sends an AVTransport action without arguments that only reads state. Identical queries
+	 * share the request in flight, and a response is reused for the query cache time.
+	 */
+	private void query(final String method, ResponseListener<Object> listener) {
+		byte[] cached = null;
+		final int generation;
+
+		synchronized (pendingQueries) {
+			Long time = queryTimes.get(method);
+
+			if (time != null && now() - time < queryCacheTime) {
+				cached = queryResponses.get(method);
+			} else {
+				List<ResponseListener<Object>> waiting = pendingQueries.get(method);
+
+				if (waiting != null) {
+					waiting.add(listener);
+					return;
+				}
+
+				waiting = new ArrayList<ResponseListener<Object>>();
+				waiting.add(listener);
+				pendingQueries.put(method, waiting);
+			}
+
+			generation = queryGeneration;
+		}
+
+		if (cached != null) {
+			Util.postSuccess(listener, (Object) cached);
+			return;
+		}
+
+		byte[] payload = SoapCodec.encode(SoapCodec.AV_TRANSPORT, method, "InstanceID", "0");
+
+		ResponseListener<Object> responseListener = new ResponseListener<Object>() {
+
+			@Override
+			public void onSuccess(Object response) {
+				List<ResponseListener<Object>> waiting;
+
+				synchronized (pendingQueries) {
+					waiting = pendingQueries.remove(method);
+
+					// Commands sent meanwhile may have changed what the response describes
+					if (generation == queryGeneration) {
+						long time = now();
+
+						queryResponses.put(method, (byte[]) response);
+						queryTimes.put(method, time);
+
+						if ("GetPositionInfo".equals(method))
+							samplePosition((byte[]) response, time);
+					}
+				}
+
+				for (ResponseListener<Object> listener : waiting) {
+					if (listener != null)
+						listener.onSuccess(response);
+				}
+			}
+
+			@Override
+			public void onError(ServiceCommandError error) {
+				List<ResponseListener<Object>> waiting;
+
+				synchronized (pendingQueries) {
+					waiting = pendingQueries.remove(method);
+				}
+
+				for (ResponseListener<Object> listener : waiting) {
+					if (listener != null)
+						listener.onError(error);
+				}
+			}
+		};
+
 		ServiceCommand<ResponseListener<Object>> request = new ServiceCommand<ResponseListener<Object>>(this, method, payload, responseListener);
 		request.send();
 	}
+
+	/**
+	 * Sets the time in milliseconds a GetPositionInfo or GetTransportInfo response is reused
+	 * for identical queries. 0 sends every query, though identical queries still share the
+	 * request in flight.
+	 */
+	public void setQueryCacheTime(int queryCacheTime) {
+		synchronized (pendingQueries) {
+			this.queryCacheTime = Math.max(0, queryCacheTime);
+		}
+	}
+
+	public int getQueryCacheTime() {
+		synchronized (pendingQueries) {
+			return queryCacheTime;
+		}
+	}
+
+	/** Forgets cached query responses and the position, called when a command changes them */
+	private void invalidateQueries() {
+		synchronized (pendingQueries) {
+			queryGeneration++;
+			queryResponses.clear();
+			queryTimes.clear();
+			positionBase = -1;
+		}
+	}
+
+	private void samplePosition(byte[] positionInfoXml, long time) {
+		String[] values = SoapCodec.parseValues(positionInfoXml, "RelTime", "TrackDuration");
+
+		// NOT_IMPLEMENTED or a malformed response leaves nothing to extrapolate from
+		positionBase = isTime(values[0]) ? convertStrTimeFormatToLong(values[0]) * 1000 : -1;
+		positionDuration = isTime(values[1]) ? convertStrTimeFormatToLong(values[1]) * 1000 : 0;
+		positionTime = time;
+	}
+
+	/**
+	 * Position derived from the last RelTime while the play state is known from events, or
+	 * -1 when the renderer has to be asked.
+	 */
+	private long extrapolatePosition() {
+		PlayStateStatus status;
+
+		synchronized (transportState) {
+			status = avTransportEvents != null && avTransportEvents.isActive() ? playState : null;
+		}
+
+		if (status != PlayStateStatus.Playing && status != PlayStateStatus.Paused)
+			return -1;
+
+		synchronized (pendingQueries) {
+			long elapsed = now() - positionTime;
+
+			if (positionBase < 0 || elapsed > POSITION_REFRESH_INTERVAL)
+				return -1;
+
+			if (status == PlayStateStatus.Paused)
+				return positionBase;
+
+			long position = positionBase + elapsed;
+
+			return positionDuration > 0 ? Math.min(position, positionDuration) : position;
+		}
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
 	
 	@Override
 	public void getDuration(final DurationListener listener) {
+		String eventedDuration = null;
+
+		synchronized (transportState) {
+			if (avTransportEvents != null && avTransportEvents.isActive())
+				eventedDuration = transportState.get("CurrentTrackDuration");
+		}
+
+		if (isTime(eventedDuration)) {
+			Util.postSuccess(listener, convertStrTimeFormatToLong(eventedDuration) * 1000);
+			return;
+		}
+
 		getPositionInfo(new PositionInfoListener() {
 			
 			@Override
-			public void onGetPositionInfoSuccess(String positionInfoXml) {
-				String strDuration = parseData(positionInfoXml, "TrackDuration");
+			public void onGetPositionInfoSuccess(byte[] positionInfoXml) {
+				String strDuration = SoapCodec.parseValue(positionInfoXml, "TrackDuration");
 				
 				long milliTimes = convertStrTimeFormatToLong(strDuration) * 1000;
 				
@@ -405,11 +627,18 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 	
 	@Override
 	public void getPosition(final PositionListener listener) {
+		long position = extrapolatePosition();
+
+		if (position >= 0) {
+			Util.postSuccess(listener, position);
+			return;
+		}
+
 		getPositionInfo(new PositionInfoListener() {
 			
 			@Override
-			public void onGetPositionInfoSuccess(String positionInfoXml) {
-				String strDuration = parseData(positionInfoXml, "RelTime");
+			public void onGetPositionInfoSuccess(byte[] positionInfoXml) {
+				String strDuration = SoapCodec.parseValue(positionInfoXml, "RelTime");
 				
 				long milliTimes = convertStrTimeFormatToLong(strDuration) * 1000;
 				
@@ -427,150 +656,32 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 		});
 	}
 
-	private JSONObject getSetAVTransportURIBody(String method, String instanceId, String mediaURL, String mime, String title) { 
-		String action = "SetAVTransportURI";
-		String metadata = getMetadata(mediaURL, mime, title);
-		
-        StringBuilder sb = new StringBuilder();
-        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        sb.append("<s:Envelope s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\" xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">");
-
-        sb.append("<s:Body>");
-        sb.append("<u:" + action + " xmlns:u=\"urn:schemas-upnp-org:service:AVTransport:1\">");
-        sb.append("<InstanceID>" + instanceId + "</InstanceID>");
-        sb.append("<CurrentURI>" + mediaURL + "</CurrentURI>");
-        sb.append("<CurrentURIMetaData>"+ metadata + "</CurrentURIMetaData>");
-        
-        sb.append("</u:" + action + ">");
-        sb.append("</s:Body>");
-        sb.append("</s:Envelope>");
-
-        JSONObject obj = new JSONObject();
-        try {
-			obj.put(DATA, sb.toString());
-			obj.put(ACTION, String.format(ACTION_CONTENT, method));
-		} catch (JSONException e) {
-			e.printStackTrace();
-		}
-
-        return obj;
-	}
-	
-	private JSONObject getMethodBody(String instanceId, String method) {
-		return getMethodBody(instanceId, method, null);
-	}
-	
-	private JSONObject getMethodBody(String instanceId, String method, Map<String, String> parameters) {
-        StringBuilder sb = new StringBuilder();
-        
-        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        sb.append("<s:Envelope s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\" xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">");
-        
-        sb.append("<s:Body>");
-        sb.append("<u:" + method + " xmlns:u=\"urn:schemas-upnp-org:service:AVTransport:1\">");
-        sb.append("<InstanceID>" + instanceId + "</InstanceID>");
-        
-        if (parameters != null) {
-            for (Map.Entry<String, String> entry : parameters.entrySet()) {
-                String key = entry.getKey();
-                String value = entry.getValue();
-                
-                sb.append("<" + key + ">");
-                sb.append(value);
-                sb.append("</" + key + ">");
-            }
-        }
-        
-        sb.append("</u:" + method + ">");
-        sb.append("</s:Body>");
-        sb.append("</s:Envelope>");
-
-        JSONObject obj = new JSONObject();
-        try {
-			obj.put(DATA, sb.toString());
-			obj.put(ACTION, String.format(ACTION_CONTENT, method));
-		} catch (JSONException e) {
-			e.printStackTrace();
-		}
-
-        return obj;
-	}
-	
-	private String getMetadata(String mediaURL, String mime, String title) {
-		String id = "1000";
-		String parentID = "0";
-		String restricted = "0";
-		String objectClass = null;
-		StringBuilder sb = new StringBuilder();
-
-		sb.append("&lt;DIDL-Lite xmlns=&quot;urn:schemas-upnp-org:metadata-1-0/DIDL-Lite/&quot; ");
-		sb.append("xmlns:upnp=&quot;urn:schemas-upnp-org:metadata-1-0/upnp/&quot; ");
-		sb.append("xmlns:dc=&quot;http://purl.org/dc/elements/1.1/&quot;&gt;");
-
-		sb.append("&lt;item id=&quot;" + id + "&quot; parentID=&quot;" + parentID + "&quot; restricted=&quot;" + restricted + "&quot;&gt;");
-		sb.append("&lt;dc:title&gt;" + title + "&lt;/dc:title&gt;");
-		
-		if ( mime.startsWith("image") ) {
-			objectClass = "object.item.imageItem";
-		}
-		else if ( mime.startsWith("video") ) {
-			objectClass = "object.item.videoItem";
-		}
-		else if ( mime.startsWith("audio") ) {
-			objectClass = "object.item.audioItem";
-		}
-		sb.append("&lt;res protocolInfo=&quot;http-get:*:" + mime + ":DLNA.ORG_OP=01&quot;&gt;" + mediaURL + "&lt;/res&gt;");
-		sb.append("&lt;upnp:class&gt;" + objectClass + "&lt;/upnp:class&gt;");
-
-		sb.append("&lt;/item&gt;");
-		sb.append("&lt;/DIDL-Lite&gt;");
-		
-		return sb.toString();
-	}
-	
 	@Override
 	public void sendCommand(final ServiceCommand<?> mCommand) {
-		Util.runInBackground(new Runnable() {
+		@SuppressWarnings("unchecked")
+		final ServiceCommand<ResponseListener<Object>> command = (ServiceCommand<ResponseListener<Object>>) mCommand;
+		
+		HttpPost request = HttpMessage.getDLNAHttpPost(controlURL, command.getTarget());
+		request.setEntity(new ByteArrayEntity((byte[]) command.getPayload()));
+
+		HttpTransport.getInstance().execute(request, new HttpTransport.ResponseListener() {
 			
-			@SuppressWarnings("unchecked")
 			@Override
-			public void run() {
-				ServiceCommand<ResponseListener<Object>> command = (ServiceCommand<ResponseListener<Object>>) mCommand;
+			public void onResponse(HttpTransport.Response response) {
+				int code = response.getStatusCode();
 				
-				JSONObject payload = (JSONObject) command.getPayload();
-			
-				HttpPost request = HttpMessage.getDLNAHttpPost(controlURL, command.getTarget());
-				request.setHeader(ACTION, payload.optString(ACTION));
-				try {
-					request.setEntity(new StringEntity(payload.optString(DATA).toString()));
-				} catch (UnsupportedEncodingException e) {
-					e.printStackTrace();
+				if (code == 200) { 
+					Util.postSuccess(command.getResponseListener(), (Object) response.getBody());
 				}
-				
-				HttpResponse response = null;
-
-				try {
-					response = httpClient.execute(request);
-	
-					final int code = response.getStatusLine().getStatusCode();
-					
-					if (code == 200) { 
-			            HttpEntity entity = response.getEntity();
-			            final String message = EntityUtils.toString(entity, "UTF-8");
-			            
-						Util.postSuccess(command.getResponseListener(), message);
-					}
-					else {
-						Util.postError(command.getResponseListener(), ServiceCommandError.getError(code));
-					}
-		
-					response.getEntity().consumeContent();
-				} catch (ClientProtocolException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
+				else {
+					Util.postError(command.getResponseListener(), ServiceCommandError.getError(code));
 				}
 			}
+			
+			@Override
+			public void onFailure(IOException e) {
+				Util.postError(command.getResponseListener(), new ServiceCommandError(0, e.getMessage(), null));
+			}
 		});
 	}
 	
@@ -592,6 +703,11 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 		capabilities.add(Position);
 		capabilities.add(Duration);
 		capabilities.add(PlayState);
+
+		if (avTransportEventURL != null) {
+			capabilities.add(PlayState_Subscribe);
+			capabilities.add(Play_Next);
+		}
 		
 		setCapabilities(capabilities);
 	}
@@ -607,19 +723,20 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 		return null;
 	}
 	
-	private String parseData(String response, String key) {
-		String startTag = "<" + key + ">";
-		String endTag = "</" + key + ">";
-		
-		int start = response.indexOf(startTag);
-		int end = response.indexOf(endTag);
-		
-		String data = response.substring(start + startTag.length(), end);
-		
-		return data;
+	private static boolean isTime(String strTime) {
+		return strTime != null && strTime.indexOf(':') > 0;
 	}
 	
 	private long convertStrTimeFormatToLong(String strTime) {
+		// NOT_IMPLEMENTED, or nothing loaded
+		if (!isTime(strTime))
+			return 0;
+
+		// Drop fractions of a second, H+:MM:SS.F+
+		int fraction = strTime.indexOf('.');
+		if (fraction >= 0)
+			strTime = strTime.substring(0, fraction);
+
 		String[] tokens = strTime.split(":");
 		long time = 0;
 		
@@ -632,17 +749,198 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 	}
 
 	@Override
-	public void getPlayState(PlayStateListener listener) {
-		if (listener != null)
-			listener.onError(ServiceCommandError.notSupported());
+	public void getPlayState(final PlayStateListener listener) {
+		PlayStateStatus eventedState = null;
+
+		synchronized (transportState) {
+			if (avTransportEvents != null && avTransportEvents.isActive())
+				eventedState = playState;
+		}
+
+		if (eventedState != null) {
+			Util.postSuccess(listener, eventedState);
+			return;
+		}
+
+		query("GetTransportInfo", new ResponseListener<Object>() {
+
+			@Override
+			public void onSuccess(Object response) {
+				String transportState = SoapCodec.parseValue((byte[]) response, "CurrentTransportState");
+
+				Util.postSuccess(listener, getPlayStateStatus(transportState, null));
+			}
+
+			@Override
+			public void onError(ServiceCommandError error) {
+				Util.postError(listener, error);
+			}
+		});
 	}
 
 	@Override
 	public ServiceSubscription<PlayStateListener> subscribePlayState(PlayStateListener listener) {
-		if (listener != null)
-			listener.onError(ServiceCommandError.notSupported());
+		if (avTransportEventURL == null) {
+			Util.postError(listener, ServiceCommandError.notSupported());
+			return null;
+		}
 
-		return null;
+		URLServiceSubscription<PlayStateListener> request = new URLServiceSubscription<PlayStateListener>(this, "PlayState", null, null);
+		request.addListener(listener);
+		addSubscription(request);
+
+		return request;
+	}
+
+	private void addSubscription(URLServiceSubscription<?> subscription) {
+		GenaSubscription events = null;
+
+		synchronized (transportState) {
+			subscriptions.add(subscription);
+
+			if (avTransportEvents == null) {
+				transportState.clear();
+				playState = null;
+				avTransportEvents = new GenaSubscription(avTransportEventURL, avTransportListener);
+				events = avTransportEvents;
+			}
+		}
+
+		if (events != null) {
+			final GenaSubscription subscribe = events;
+
+			Util.runInBackground(new Runnable() {
+
+				@Override
+				public void run() {
+					subscribe.subscribe();
+				}
+			});
+		}
+	}
+
+	@Override
+	public void unsubscribe(URLServiceSubscription<?> subscription) {
+		GenaSubscription events = null;
+
+		synchronized (transportState) {
+			subscriptions.remove(subscription);
+
+			if (subscriptions.isEmpty()) {
+				events = avTransportEvents;
+				avTransportEvents = null;
+			}
+		}
+
+		if (events != null)
+			events.unsubscribe();
+	}
+
+	private GenaSubscription.Listener avTransportListener = new GenaSubscription.Listener() {
+
+		@Override
+		public void onEvent(Map<String, String> properties) {
+			String lastChange = properties.get("LastChange");
+
+			if (lastChange == null)
+				return;
+
+			Map<String, String> changes = GenaSubscription.parseLastChange(lastChange, "0");
+			PlayStateStatus status;
+
+			synchronized (transportState) {
+				String oldTrack = getTransportURI(transportState) + ' ' + transportState.get("CurrentTrackURI");
+				String oldDuration = transportState.get("CurrentTrackDuration");
+				PlayStateStatus oldStatus = playState;
+
+				transportState.putAll(changes);
+
+				if (!changes.containsKey("TransportState") && playState != null) {
+					status = playState;
+				} else {
+					status = getPlayStateStatus(transportState.get("TransportState"), oldStatus);
+				}
+				playState = status;
+
+				String track = getTransportURI(transportState) + ' ' + transportState.get("CurrentTrackURI");
+
+				if (status != oldStatus || !oldTrack.equals(track))
+					invalidateQueries();
+
+				// A new track or duration is delivered as the play state again, listeners ask for the details
+				if (status == oldStatus && oldTrack.equals(track)
+						&& equal(oldDuration, transportState.get("CurrentTrackDuration")))
+					return;
+			}
+
+			notifyPlayState(status);
+		}
+
+		@Override
+		public void onSubscriptionLost() {
+			final List<URLServiceSubscription<?>> lost;
+
+			synchronized (transportState) {
+				avTransportEvents = null;
+				playState = null;
+				lost = new ArrayList<URLServiceSubscription<?>>(subscriptions);
+			}
+
+			Util.runOnUI(new Runnable() {
+
+				@Override
+				public void run() {
+					for (URLServiceSubscription<?> subscription : lost) {
+						for (Object listener : subscription.getListeners()) {
+							((PlayStateListener) listener).onError(new ServiceCommandError(0, "Lost the event subscription of the device", null));
+						}
+					}
+				}
+			});
+		}
+	};
+
+	private void notifyPlayState(final PlayStateStatus status) {
+		final List<URLServiceSubscription<?>> notify;
+
+		synchronized (transportState) {
+			notify = new ArrayList<URLServiceSubscription<?>>(subscriptions);
+		}
+
+		Util.runOnUI(new Runnable() {
+
+			@Override
+			public void run() {
+				for (URLServiceSubscription<?> subscription : notify) {
+					for (Object listener : subscription.getListeners()) {
+						((PlayStateListener) listener).onSuccess(status);
+					}
+				}
+			}
+		});
+	}
+
+	private static PlayStateStatus getPlayStateStatus(String transportState, PlayStateStatus previous) {
+		if ("PLAYING".equals(transportState)) {
+			return PlayStateStatus.Playing;
+		} else if ("PAUSED_PLAYBACK".equals(transportState) || "PAUSED_RECORDING".equals(transportState)) {
+			return PlayStateStatus.Paused;
+		} else if ("TRANSITIONING".equals(transportState)) {
+			return PlayStateStatus.Buffering;
+		} else if ("NO_MEDIA_PRESENT".equals(transportState)) {
+			return PlayStateStatus.Idle;
+		} else if ("STOPPED".equals(transportState)) {
+			// Stopped after playing means the media ended, before that nothing was started yet
+			return previous == PlayStateStatus.Playing || previous == PlayStateStatus.Paused
+					|| previous == PlayStateStatus.Buffering || previous == PlayStateStatus.Finished
+					? PlayStateStatus.Finished : PlayStateStatus.Idle;
+		}
+
+		return PlayStateStatus.Unknown;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
 	}
 	
 	@Override
@@ -657,9 +955,7 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 	
 	@Override
 	public void connect() {
-	//  TODO:  Fix this for roku.  Right now it is using the InetAddress reachable function.  Need to use an HTTP Method.
-//		mServiceReachability = DeviceServiceReachability.getReachability(serviceDescription.getIpAddress(), this);
-//		mServiceReachability.start();
+		startReachability(getLocationPort());
 		
 		connected = true;
 		
@@ -669,6 +965,17 @@ public class DLNAService extends DeviceService implements MediaControl, MediaPla
 	@Override
 	public void disconnect() {
 		connected = false;
+
+		GenaSubscription events;
+
+		synchronized (transportState) {
+			events = avTransportEvents;
+			avTransportEvents = null;
+			subscriptions.clear();
+		}
+
+		if (events != null)
+			events.unsubscribe();
 		
 		if (mServiceReachability != null)
 			mServiceReachability.stop();
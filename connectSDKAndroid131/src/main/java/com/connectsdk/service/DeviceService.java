@@ -26,6 +26,7 @@ import com.connectsdk.core.Util;
 import com.connectsdk.device.ConnectableDevice;
 import com.connectsdk.etc.helper.DeviceServiceReachability;
 import com.connectsdk.etc.helper.DeviceServiceReachability.DeviceServiceReachabilityListener;
+import com.connectsdk.service.capability.CapabilityIndex;
 import com.connectsdk.service.capability.CapabilityMethods;
 import com.connectsdk.service.capability.ExternalInputControl;
 import com.connectsdk.service.capability.Launcher;
@@ -45,10 +46,11 @@ import org.json.JSONObject;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Matcher;
 
 /**
  * ###Overview
@@ -93,6 +95,11 @@ public class DeviceService implements DeviceServiceReachabilityListener, Service
 	 * - Physical region
 	 */
 	List<String> mCapabilities;
+
+	// @cond INTERNAL
+	// mCapabilities as a bitset, replaced on every change
+	volatile long[] mCapabilityBits = CapabilityIndex.EMPTY;
+	// @endcond
 	
 	// @cond INTERNAL
 	DeviceServiceListener listener;
@@ -287,30 +294,24 @@ public class DeviceService implements DeviceServiceReachabilityListener, Service
 	public List<String> getCapabilities() {
 		return mCapabilities;
 	}
+
+	// @cond INTERNAL
+	public long[] getCapabilityBits() {
+		return mCapabilityBits;
+	}
+	// @endcond
 	
 	protected void updateCapabilities() { }
 	
 	protected void setCapabilities(List<String> newCapabilities) {
-		List<String> oldCapabilities = mCapabilities;
+		long[] oldBits = mCapabilityBits;
+		long[] newBits = CapabilityIndex.toBits(newCapabilities);
 		
 		mCapabilities = newCapabilities;
+		mCapabilityBits = newBits;
 		
-		List<String> _lostCapabilities = new ArrayList<String>();
-		
-		for (String capability : oldCapabilities) {
-			if (!newCapabilities.contains(capability))
-				_lostCapabilities.add(capability);
-		}
-		
-		List<String> _addedCapabilities = new ArrayList<String>();
-		
-		for (String capability : newCapabilities) {
-			if (!oldCapabilities.contains(capability))
-				_addedCapabilities.add(capability);
-		}
-		
-		final List<String> lostCapabilities = _lostCapabilities;
-		final List<String> addedCapabilities = _addedCapabilities;
+		final List<String> lostCapabilities = CapabilityIndex.toList(oldBits, newBits);
+		final List<String> addedCapabilities = CapabilityIndex.toList(newBits, oldBits);
 		
 		if (this.listener != null) {
 			Util.runOnUI(new Runnable() {
@@ -333,20 +334,7 @@ public class DeviceService implements DeviceServiceReachabilityListener, Service
 	 * @param capability Capability to test against
 	 */
 	public boolean hasCapability(String capability) {
-		Matcher m = CapabilityMethods.ANY_PATTERN.matcher(capability);
-		
-		if (m.find()) {
-			String match = m.group();
-			for (String item : this.mCapabilities) {
-				if (item.indexOf(match) != -1) {
-					return true;
-				}
-			}
-			
-			return false;
-		}
-
-		return mCapabilities.contains(capability);
+		return CapabilityIndex.getQuery(capability).matches(mCapabilityBits);
 	}
 	
 	/**
@@ -501,10 +489,11 @@ public class DeviceService implements DeviceServiceReachabilityListener, Service
 	
 	// @cond INTERNAL
 	public void addCapability(final String capability) {
-		if (capability == null || capability.length() == 0 || this.mCapabilities.contains(capability))
+		if (capability == null || capability.length() == 0 || CapabilityIndex.contains(mCapabilityBits, capability))
 			return;
 
 		this.mCapabilities.add(capability);
+		mCapabilityBits = CapabilityIndex.add(mCapabilityBits, capability);
 		
 		Util.runOnUI(new Runnable() {
 			
@@ -523,13 +512,18 @@ public class DeviceService implements DeviceServiceReachabilityListener, Service
 		if (capabilities == null)
 			return;
 		
+		long[] bits = mCapabilityBits;
+		
 		for (String capability : capabilities) {
-			if (capability == null || capability.length() == 0 || mCapabilities.contains(capabilities))
+			if (capability == null || capability.length() == 0 || CapabilityIndex.contains(bits, capability))
 				continue;
 			
 			mCapabilities.add(capability);
+			bits = CapabilityIndex.add(bits, capability);
 		}
 		
+		mCapabilityBits = bits;
+		
 		Util.runOnUI(new Runnable() {
 			
 			@Override
@@ -550,6 +544,7 @@ public class DeviceService implements DeviceServiceReachabilityListener, Service
 			return;
 
 		this.mCapabilities.remove(capability);
+		mCapabilityBits = CapabilityIndex.toBits(mCapabilities);
 
 		Util.runOnUI(new Runnable() {
 			
@@ -572,6 +567,8 @@ public class DeviceService implements DeviceServiceReachabilityListener, Service
 			mCapabilities.remove(capability);
 		}
 		
+		mCapabilityBits = CapabilityIndex.toBits(mCapabilities);
+		
 		Util.runOnUI(new Runnable() {
 			
 			@Override
@@ -587,6 +584,45 @@ public class DeviceService implements DeviceServiceReachabilityListener, Service
 		removeCapabilities(Arrays.asList(capabilities));
 	}
 	
+	/**
+	 * Starts watching the given control port of the service; onLoseReachability is called once
+	 * it stops accepting connections. Does nothing when the port is not known.
+	 */
+	protected void startReachability(int port) {
+		if (port <= 0)
+			return;
+
+		if (mServiceReachability == null) {
+			mServiceReachability = DeviceServiceReachability.getReachability(serviceDescription.getIpAddress(), port, this);
+
+			if (mServiceReachability == null)
+				return;
+		}
+
+		mServiceReachability.start();
+	}
+
+	/** Probe the service more often while media is playing on it */
+	protected void setReachabilityActive(boolean active) {
+		if (mServiceReachability != null)
+			mServiceReachability.setActive(active);
+	}
+
+	/** Port of the LOCATION URL the service was discovered with, or -1 when there is none */
+	protected int getLocationPort() {
+		String location = serviceDescription.getLocationURL();
+
+		if (location == null)
+			return -1;
+
+		try {
+			URL url = new URL(location);
+			return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		} catch (MalformedURLException e) {
+			return -1;
+		}
+	}
+
 	//  Unused by default.
 	@Override public void onLoseReachability(DeviceServiceReachability reachability) { }
 	// @endcond
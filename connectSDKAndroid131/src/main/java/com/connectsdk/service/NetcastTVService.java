@@ -37,6 +37,7 @@ import com.connectsdk.discovery.DiscoveryManager;
 import com.connectsdk.discovery.DiscoveryManager.PairingLevel;
 import com.connectsdk.etc.helper.DeviceServiceReachability;
 import com.connectsdk.etc.helper.HttpMessage;
+import com.connectsdk.etc.helper.HttpTransport;
 import com.connectsdk.service.capability.ExternalInputControl;
 import com.connectsdk.service.capability.KeyControl;
 import com.connectsdk.service.capability.Launcher;
@@ -60,17 +61,9 @@ import com.connectsdk.service.sessions.LaunchSession;
 import com.connectsdk.service.sessions.LaunchSession.LaunchSessionType;
 
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.HttpParams;
-import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -124,7 +117,6 @@ public class NetcastTVService extends DeviceService implements Launcher, MediaCo
     	DISCONNECTING
     };
 	
-	HttpClient httpClient;
 	NetcastHttpServer httpServer;
 	
 	DLNAService dlnaService;
@@ -153,11 +145,6 @@ public class NetcastTVService extends DeviceService implements Launcher, MediaCo
 
 		keyboardString = new StringBuilder();
 		
-		httpClient = new DefaultHttpClient();
-		ClientConnectionManager mgr = httpClient.getConnectionManager();
-		HttpParams params = httpClient.getParams();
-		httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, mgr.getSchemeRegistry()), params);
-		
 		state = State.INITIAL;
 		
 		inputPickerSession = null;
@@ -209,7 +196,8 @@ public class NetcastTVService extends DeviceService implements Launcher, MediaCo
 				showPairingKeyOnTV();
 			}
 			
-			Util.runInBackground(new Runnable() {
+			// The server loops until it is stopped, so it gets a thread of its own instead of a scheduler lane
+			Thread thread = new Thread(new Runnable() {
 				
 				@Override
 				public void run() {
@@ -217,7 +205,8 @@ public class NetcastTVService extends DeviceService implements Launcher, MediaCo
 					httpServer.setSubscriptions(subscriptions);
 					httpServer.start();
 				}
-			});
+			}, "Netcast HTTP Server");
+			thread.start();
 		} else {
 			hConnectSuccess();
 		}
@@ -260,9 +249,7 @@ public class NetcastTVService extends DeviceService implements Launcher, MediaCo
 	}
 	
 	private void hConnectSuccess() {
-	//  TODO:  Fix this for Netcast.  Right now it is using the InetAddress reachable function.  Need to use an HTTP Method.
-//		mServiceReachability = DeviceServiceReachability.getReachability(serviceDescription.getIpAddress(), this);
-//		mServiceReachability.start();
+		startReachability(serviceDescription.getPort());
 		
 		connected = true;
 
@@ -2130,61 +2117,50 @@ public class NetcastTVService extends DeviceService implements Launcher, MediaCo
 	
 	@Override
 	public void sendCommand(final ServiceCommand<?> mCommand) {
-		Thread thread = new Thread(new Runnable() {
-			
-			@SuppressWarnings("unchecked")
-			@Override
-			public void run() {
-				final ServiceCommand<ResponseListener<Object>> command = (ServiceCommand<ResponseListener<Object>>) mCommand;
+		@SuppressWarnings("unchecked")
+		final ServiceCommand<ResponseListener<Object>> command = (ServiceCommand<ResponseListener<Object>>) mCommand;
 
-				Object payload = command.getPayload();
-				
-				HttpRequestBase request = command.getRequest();
-				request.addHeader(HttpMessage.USER_AGENT, HttpMessage.UDAP_USER_AGENT);
-				request.addHeader(HttpMessage.CONTENT_TYPE_HEADER, HttpMessage.CONTENT_TYPE_TEXT_XML);
-				HttpResponse response = null;
+		Object payload = command.getPayload();
+		
+		HttpRequestBase request = command.getRequest();
+		request.addHeader(HttpMessage.USER_AGENT, HttpMessage.UDAP_USER_AGENT);
+		request.addHeader(HttpMessage.CONTENT_TYPE_HEADER, HttpMessage.CONTENT_TYPE_TEXT_XML);
 
-				if (payload != null && command.getHttpMethod().equalsIgnoreCase(ServiceCommand.TYPE_POST)) {
-					HttpEntity entity = null;
-					
-					try {
-						if (payload instanceof String) {
-							entity = new StringEntity((String) payload);
-						} else if (payload instanceof JSONObject) {
-							entity = new StringEntity(((JSONObject) payload).toString());
-						}
-					} catch (UnsupportedEncodingException e) {
-						e.printStackTrace();
-					}
-					
-					((HttpPost) request).setEntity(entity);
+		if (payload != null && command.getHttpMethod().equalsIgnoreCase(ServiceCommand.TYPE_POST)) {
+			HttpEntity entity = null;
+			
+			try {
+				if (payload instanceof String) {
+					entity = new StringEntity((String) payload);
+				} else if (payload instanceof JSONObject) {
+					entity = new StringEntity(((JSONObject) payload).toString());
 				}
+			} catch (UnsupportedEncodingException e) {
+				e.printStackTrace();
+			}
+			
+			((HttpPost) request).setEntity(entity);
+		}
 
-				try {
-					response = httpClient.execute(request);
-					
-					final int code = response.getStatusLine().getStatusCode();
-					
-					if ( code == 200 ) { 
-			            HttpEntity entity = response.getEntity();
-			            final String message = EntityUtils.toString(entity, "UTF-8");
-			            
-			            Util.postSuccess(command.getResponseListener(), message);
-					}
-					else {
-						Util.postError(command.getResponseListener(), ServiceCommandError.getError(code));
-					}
-		
-					response.getEntity().consumeContent();
-				} catch (ClientProtocolException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
+		HttpTransport.getInstance().execute(request, new HttpTransport.ResponseListener() {
+			
+			@Override
+			public void onResponse(HttpTransport.Response response) {
+				int code = response.getStatusCode();
+				
+				if (code == 200) { 
+					Util.postSuccess(command.getResponseListener(), response.getBodyAsString());
+				}
+				else {
+					Util.postError(command.getResponseListener(), ServiceCommandError.getError(code));
 				}
 			}
+			
+			@Override
+			public void onFailure(IOException e) {
+				Util.postError(command.getResponseListener(), new ServiceCommandError(0, e.getMessage(), null));
+			}
 		});
-		
-		thread.start();
 	}
 	
 	private void addSubscription(URLServiceSubscription<?> subscription) {
@@ -27,6 +27,7 @@ import com.connectsdk.core.Util;
 import com.connectsdk.device.roku.RokuApplicationListParser;
 import com.connectsdk.etc.helper.DeviceServiceReachability;
 import com.connectsdk.etc.helper.HttpMessage;
+import com.connectsdk.etc.helper.HttpTransport;
 import com.connectsdk.service.capability.KeyControl;
 import com.connectsdk.service.capability.Launcher;
 import com.connectsdk.service.capability.MediaControl;
@@ -42,19 +43,10 @@ import com.connectsdk.service.config.ServiceConfig;
 import com.connectsdk.service.config.ServiceDescription;
 import com.connectsdk.service.sessions.LaunchSession;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.HttpParams;
-import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.xml.sax.SAXException;
@@ -89,15 +81,8 @@ public class RokuService extends DeviceService implements Launcher, MediaPlayer,
 			registeredApps.add(appId);
 	}
 
-	HttpClient httpClient;
-
 	public RokuService(ServiceDescription serviceDescription, ServiceConfig serviceConfig) {
 		super(serviceDescription, serviceConfig);
-		
-		httpClient = new DefaultHttpClient();
-		ClientConnectionManager mgr = httpClient.getConnectionManager();
-		HttpParams params = httpClient.getParams();
-		httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, mgr.getSchemeRegistry()), params);
 	}
 	
 	@Override
@@ -633,6 +618,7 @@ public class RokuService extends DeviceService implements Launcher, MediaPlayer,
 			
 			@Override
 			public void onSuccess(Object response) {
+				setReachabilityActive(true);
 				Util.postSuccess(listener, new MediaLaunchObject(new RokuLaunchSession(RokuService.this), RokuService.this));
 			}
 			
@@ -692,6 +678,7 @@ public class RokuService extends DeviceService implements Launcher, MediaPlayer,
 	
 	@Override
 	public void closeMedia(LaunchSession launchSession, ResponseListener<Object> listener) {
+		setReachabilityActive(false);
 		home(listener);
 	}
 	
@@ -812,66 +799,55 @@ public class RokuService extends DeviceService implements Launcher, MediaPlayer,
 	
 	@Override
 	public void sendCommand(final ServiceCommand<?> mCommand) {
-		Thread thread = new Thread(new Runnable() {
-			
-			@SuppressWarnings("unchecked")
-			@Override
-			public void run() {
-				ServiceCommand<ResponseListener<Object>> command = (ServiceCommand<ResponseListener<Object>>) mCommand;
-				Object payload = command.getPayload();
-				
-				HttpRequestBase request = command.getRequest();
-				HttpResponse response = null;
-				int code = -1;
+		@SuppressWarnings("unchecked")
+		final ServiceCommand<ResponseListener<Object>> command = (ServiceCommand<ResponseListener<Object>>) mCommand;
+		Object payload = command.getPayload();
+		
+		HttpRequestBase request = command.getRequest();
 
-				if (command.getHttpMethod().equalsIgnoreCase(ServiceCommand.TYPE_POST)) {
-					HttpPost post = (HttpPost) request;
-					AbstractHttpEntity entity = null;
+		if (command.getHttpMethod().equalsIgnoreCase(ServiceCommand.TYPE_POST)) {
+			HttpPost post = (HttpPost) request;
+			AbstractHttpEntity entity = null;
 
-					if (payload != null) {
-						try {
-							if (payload instanceof JSONObject) {
-								entity = new StringEntity((String) payload);
-							}
-						} catch (UnsupportedEncodingException e) {
-							e.printStackTrace();
-							//  Error is handled below if entity is null;
-						}
-	
-						if (entity == null) {
-							Util.postError(command.getResponseListener(), new ServiceCommandError(0, "Unknown Error while preparing to send message", null));
-	
-							return;
-						}
-					
-						post.setEntity(entity);
-					}
-				}
-				
+			if (payload != null) {
 				try {
-					if (httpClient != null) {
-						response = httpClient.execute(request);
-						
-						code = response.getStatusLine().getStatusCode();
-						
-						if ( code == 200 || code == 201) { 
-				            HttpEntity entity = response.getEntity();
-				            String message = EntityUtils.toString(entity, "UTF-8");
-
-							Util.postSuccess(command.getResponseListener(), message);
-						}
-						else {
-							Util.postError(command.getResponseListener(), ServiceCommandError.getError(code));
-						}
+					if (payload instanceof JSONObject) {
+						entity = new StringEntity((String) payload);
 					}
-				} catch (ClientProtocolException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
+				} catch (UnsupportedEncodingException e) {
 					e.printStackTrace();
+					//  Error is handled below if entity is null;
+				}
+
+				if (entity == null) {
+					Util.postError(command.getResponseListener(), new ServiceCommandError(0, "Unknown Error while preparing to send message", null));
+
+					return;
+				}
+			
+				post.setEntity(entity);
+			}
+		}
+		
+		HttpTransport.getInstance().execute(request, new HttpTransport.ResponseListener() {
+			
+			@Override
+			public void onResponse(HttpTransport.Response response) {
+				int code = response.getStatusCode();
+				
+				if (code == 200 || code == 201) { 
+					Util.postSuccess(command.getResponseListener(), response.getBodyAsString());
 				}
+				else {
+					Util.postError(command.getResponseListener(), ServiceCommandError.getError(code));
+				}
+			}
+			
+			@Override
+			public void onFailure(IOException e) {
+				Util.postError(command.getResponseListener(), new ServiceCommandError(0, e.getMessage(), null));
 			}
 		});
-		thread.start();
 	}
 	
 	private String requestURL(String action, String parameter) {
@@ -970,9 +946,7 @@ public class RokuService extends DeviceService implements Launcher, MediaPlayer,
 	
 	@Override
 	public void connect() {
-		//  TODO:  Fix this for roku.  Right now it is using the InetAddress reachable function.  Need to use an HTTP Method.
-//		mServiceReachability = DeviceServiceReachability.getReachability(serviceDescription.getIpAddress(), this);
-//		mServiceReachability.start();
+		startReachability(serviceDescription.getPort());
 		
 		connected = true;
 		
@@ -0,0 +1,247 @@
+/*
+ * CapabilityIndex
+ * Connect SDK
+ *
+ * Copyright (c) 2014 LG Electronics.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.connectsdk.service.capability;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+
+// @cond INTERNAL
+/**
+ * Gives every capability string a bit, so the capabilities of services, devices and
+ * CapabilityFilters are kept as bitsets and compared a word at a time.
+ *
+ * Bitsets are never changed once published, so they can be read without locking. A `.Any`
+ * wildcard compiles to the mask of every known capability starting with its prefix; a
+ * Query is compiled again when capabilities were registered after it.
+ */
+public final class CapabilityIndex {
+	public static final long[] EMPTY = new long[0];
+
+	private static final ConcurrentHashMap<String, Integer> indices = new ConcurrentHashMap<String, Integer>();
+	private static final ConcurrentHashMap<String, Query> queries = new ConcurrentHashMap<String, Query>();
+	private static volatile String[] names = new String[0];
+	private static volatile int generation;
+
+	private CapabilityIndex() { }
+
+	/** Bit of the capability, registering it when it is new */
+	public static int indexOf(String capability) {
+		Integer index = indices.get(capability);
+
+		if (index != null)
+			return index;
+
+		return register(capability);
+	}
+
+	private static synchronized int register(String capability) {
+		Integer index = indices.get(capability);
+
+		if (index != null)
+			return index;
+
+		String[] newNames = Arrays.copyOf(names, names.length + 1);
+		newNames[names.length] = capability;
+		names = newNames;
+		indices.put(capability, names.length - 1);
+		generation++;
+
+		return names.length - 1;
+	}
+
+	public static long[] toBits(Collection<String> capabilities) {
+		long[] bits = EMPTY;
+
+		for (String capability : capabilities) {
+			if (capability != null && capability.length() > 0)
+				bits = set(bits, indexOf(capability), false);
+		}
+
+		return bits;
+	}
+
+	/** Returns a copy of bits with the capability added */
+	public static long[] add(long[] bits, String capability) {
+		return set(bits, indexOf(capability), true);
+	}
+
+	public static boolean contains(long[] bits, String capability) {
+		Integer index = indices.get(capability);
+
+		return index != null && contains(bits, index);
+	}
+
+	static boolean contains(long[] bits, int index) {
+		int word = index >>> 6;
+
+		return word < bits.length && (bits[word] & (1L << index)) != 0;
+	}
+
+	public static long[] or(long[] a, long[] b) {
+		long[] result = Arrays.copyOf(a, Math.max(a.length, b.length));
+
+		for (int i = 0; i < b.length; i++) {
+			result[i] |= b[i];
+		}
+
+		return result;
+	}
+
+	/** Capabilities in bits, in the order they were registered */
+	public static List<String> toList(long[] bits) {
+		return toList(bits, EMPTY);
+	}
+
+	/** Capabilities in bits that are not in exclude */
+	public static List<String> toList(long[] bits, long[] exclude) {
+		String[] names = CapabilityIndex.names;
+		List<String> list = new ArrayList<String>();
+
+		for (int i = 0; i < bits.length; i++) {
+			long word = bits[i] & ~(i < exclude.length ? exclude[i] : 0);
+
+			while (word != 0) {
+				int index = (i << 6) + Long.numberOfTrailingZeros(word);
+				list.add(names[index]);
+				word &= word - 1;
+			}
+		}
+
+		return list;
+	}
+
+	/** Compiled single capability term, cached by its string */
+	public static Query getQuery(String capability) {
+		Query query = queries.get(capability);
+
+		if (query == null || !query.isCurrent()) {
+			query = compile(Arrays.asList(capability));
+			queries.put(capability, query);
+		}
+
+		return query;
+	}
+
+	/** Compiles capability terms that must all be present */
+	public static Query compile(Collection<String> capabilities) {
+		long[] required = EMPTY;
+		List<String> prefixes = new ArrayList<String>();
+
+		for (String capability : capabilities) {
+			Matcher m = CapabilityMethods.ANY_PATTERN.matcher(capability);
+
+			if (m.find())
+				prefixes.add(m.group());
+			else
+				required = set(required, indexOf(capability), false);
+		}
+
+		// Read before the names, so a capability registered meanwhile makes the query stale
+		int generation = CapabilityIndex.generation;
+		String[] names = CapabilityIndex.names;
+		long[][] anyOf = new long[prefixes.size()][];
+
+		for (int i = 0; i < anyOf.length; i++) {
+			long[] mask = EMPTY;
+
+			for (int index = 0; index < names.length; index++) {
+				if (names[index].startsWith(prefixes.get(i)))
+					mask = set(mask, index, false);
+			}
+
+			anyOf[i] = mask;
+		}
+
+		return new Query(generation, capabilities.size(), required, anyOf);
+	}
+
+	private static long[] set(long[] bits, int index, boolean copy) {
+		int word = index >>> 6;
+
+		if (word >= bits.length)
+			bits = Arrays.copyOf(bits, word + 1);
+		else if (copy)
+			bits = bits.clone();
+
+		bits[word] |= 1L << index;
+
+		return bits;
+	}
+
+	/**
+	 * Capability terms compiled to masks: every required bit must be set, and at least one
+	 * bit of every wildcard mask.
+	 */
+	public static final class Query {
+		final int generation;
+		final int size;
+		final long[] required;
+		final long[][] anyOf;
+
+		Query(int generation, int size, long[] required, long[][] anyOf) {
+			this.generation = generation;
+			this.size = size;
+			this.required = required;
+			this.anyOf = anyOf;
+		}
+
+		/** Number of terms the query was compiled from */
+		public int size() {
+			return size;
+		}
+
+		/** False when capabilities were registered after a query with wildcards was compiled */
+		public boolean isCurrent() {
+			return anyOf.length == 0 || generation == CapabilityIndex.generation;
+		}
+
+		public boolean matches(long[] bits) {
+			for (int i = 0; i < required.length; i++) {
+				long word = i < bits.length ? bits[i] : 0;
+
+				if ((word & required[i]) != required[i])
+					return false;
+			}
+
+			for (long[] mask : anyOf) {
+				if (!intersects(bits, mask))
+					return false;
+			}
+
+			return true;
+		}
+
+		private static boolean intersects(long[] bits, long[] mask) {
+			int length = Math.min(bits.length, mask.length);
+
+			for (int i = 0; i < length; i++) {
+				if ((bits[i] & mask[i]) != 0)
+					return true;
+			}
+
+			return false;
+		}
+	}
+}
+// @endcond
@@ -30,6 +30,7 @@ public interface MediaPlayer extends CapabilityMethods {
 	public final static String Display_Video = "MediaPlayer.Display.Video";
 	public final static String Display_Audio = "MediaPlayer.Display.Audio";
 	public final static String Close = "MediaPlayer.Close";
+	public final static String Play_Next = "MediaPlayer.Play.Next";
 	public final static String MetaData_Title = "MediaControl.MetaData.Title";
 	public final static String MetaData_Description = "MediaControl.MetaData.Description";
 	public final static String MetaData_Thumbnail = "MediaControl.MetaData.Thumbnail";
@@ -40,6 +41,7 @@ public interface MediaPlayer extends CapabilityMethods {
 	    Display_Video,
 	    Display_Audio, 
 	    Close,
+	    Play_Next,
 	    MetaData_Title,
 	    MetaData_Description,
 	    MetaData_Thumbnail,
@@ -20,6 +20,7 @@
 
 package com.connectsdk.service.config;
 
+import com.connectsdk.core.upnp.Device;
 import com.connectsdk.core.upnp.service.Service;
 
 import org.json.JSONException;
@@ -39,6 +40,7 @@ public class ServiceDescription {
 	public static final String KEY_PORT = "port";
 	public static final String KEY_VERSION = "version";
 	public static final String KEY_SERVICE_ID = "serviceId";
+	public static final String KEY_LOCATION_URL = "locationURL";
 
 	String UUID;
 	String ipAddress;
@@ -53,6 +55,8 @@ public class ServiceDescription {
 	String version;
 	List<Service> serviceList; 
 	String locationXML;
+	byte[] locationXMLData;
+	String locationURL;
 	
 	Map<String, List<String>> responseHeaders;
 	
@@ -78,6 +82,7 @@ public class ServiceDescription {
 		port = json.optInt(KEY_PORT, -1);
 		version = json.optString(KEY_VERSION, null);
 		serviceID = json.optString(KEY_SERVICE_ID, null);
+		locationURL = json.optString(KEY_LOCATION_URL, null);
 	}
 	
 	public static ServiceDescription getDescription(JSONObject json) {
@@ -204,12 +209,77 @@ public class ServiceDescription {
 		this.version = version;
 	}
 	
+	/** URL of the UPnP device description, for services found through SSDP */
+	public String getLocationURL() {
+		return locationURL;
+	}
+	
+	public void setLocationURL(String locationURL) {
+		this.locationURL = locationURL;
+	}
+	
+	/**
+	 * Copies the names, services and raw description of a parsed UPnP device description.
+	 */
+	public void setDeviceDescription(Device device) {
+		friendlyName = device.friendlyName;
+		modelName = device.modelName;
+		modelNumber = device.modelNumber;
+		modelDescription = device.modelDescription;
+		manufacturer = device.manufacturer;
+		applicationURL = device.applicationURL;
+		serviceList = device.serviceList;
+		responseHeaders = device.headers;
+		setLocationXMLData(device.locationXMLData);
+	}
+	
+	/**
+	 * The device description as text. When it was set as raw data it is decoded on the
+	 * first call.
+	 */
 	public String getLocationXML() {
+		if (locationXML == null && locationXMLData != null)
+			locationXML = Device.decodeLocationXML(locationXMLData, responseHeaders);
+		
 		return locationXML;
 	}
 	
 	public void setLocationXML(String locationXML) {
 		this.locationXML = locationXML;
+		this.locationXMLData = null;
+	}
+	
+	/**
+	 * Sets the device description as it was received, without decoding it.
+	 */
+	public void setLocationXMLData(byte[] locationXMLData) {
+		this.locationXML = null;
+		this.locationXMLData = locationXMLData;
+	}
+	
+	/**
+	 * Whether the device description contains the given ASCII text, ignoring case. Looks at
+	 * the raw data when the description was not decoded yet.
+	 */
+	public boolean locationXMLContains(String text) {
+		if (locationXML != null || locationXMLData == null) {
+			return locationXML != null && locationXML.toLowerCase().contains(text.toLowerCase());
+		}
+		
+		byte[] data = locationXMLData;
+		int length = text.length();
+		
+		for (int i = 0; i + length <= data.length; i++) {
+			int j = 0;
+			
+			while (j < length && Character.toLowerCase((char) (data[i + j] & 0xff)) == Character.toLowerCase(text.charAt(j)))
+				j++;
+			
+			if (j == length)
+				return true;
+		}
+		
+		return false;
 	}
 
 	public JSONObject toJSONObject() {
@@ -225,6 +295,7 @@ public class ServiceDescription {
 			jsonObj.putOpt(KEY_PORT, port);
 			jsonObj.putOpt(KEY_VERSION, version);
 			jsonObj.putOpt(KEY_SERVICE_ID, serviceID);
+			jsonObj.putOpt(KEY_LOCATION_URL, locationURL);
 //			if (responseHeaders != null) {
 //				jsonObj.putOpt("responseHeaders", new JSONObject() {{
 //					for (final String key : responseHeaders.keySet()) {
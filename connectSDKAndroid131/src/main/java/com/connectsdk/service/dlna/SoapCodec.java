@@ -0,0 +1,344 @@
+/*
+ * SoapCodec
+ * Connect SDK
+ *
+ * Copyright (c) 2014 LG Electronics.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.connectsdk.service.dlna;
+
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes UPnP SOAP action requests and reads values from their responses.
+ *
+ * The fixed parts of every envelope are encoded once per service type and action and
+ * copied into a per thread buffer, only argument values are escaped and encoded per call.
+ * Responses are read with a pull parser that stops at the requested elements.
+ */
+public final class SoapCodec {
+	public static final String AV_TRANSPORT = "urn:schemas-upnp-org:service:AVTransport:1";
+
+	// @cond INTERNAL
+	static final int MAX_RETAINED_BUFFER = 16 * 1024;
+
+	private static final ConcurrentHashMap<String, byte[][]> templates = new ConcurrentHashMap<String, byte[][]>();
+	private static final ConcurrentHashMap<String, byte[][]> tags = new ConcurrentHashMap<String, byte[][]>();
+
+	private static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+
+		@Override
+		protected Buffer initialValue() {
+			return new Buffer();
+		}
+	};
+
+	// DIDL-Lite item around the media URL, already escaped once as it is the text of an argument
+	private static final byte[] DIDL_START = escapedBytes("<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL-Lite/\" "
+			+ "xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\">"
+			+ "<item id=\"1000\" parentID=\"0\" restricted=\"0\"><dc:title>");
+	private static final byte[] DIDL_RES_START = escapedBytes("</dc:title><res protocolInfo=\"http-get:*:");
+	private static final byte[] DIDL_RES_MIDDLE = escapedBytes(":DLNA.ORG_OP=01\">");
+	private static final byte[] DIDL_CLASS = escapedBytes("</res><upnp:class>");
+	private static final byte[] DIDL_END = escapedBytes("</upnp:class></item></DIDL-Lite>");
+
+	private SoapCodec() { }
+	// @endcond
+
+	/**
+	 * Encodes an action request. Arguments are given as name, value pairs, in the order the
+	 * service description declares them.
+	 */
+	public static byte[] encode(String serviceType, String action, String... arguments) {
+		if (arguments.length % 2 != 0)
+			throw new IllegalArgumentException("Arguments must be name, value pairs");
+
+		byte[][] template = getTemplate(serviceType, action);
+		Buffer buffer = buffers.get();
+
+		buffer.reset();
+		buffer.write(template[0]);
+
+		for (int i = 0; i < arguments.length; i += 2) {
+			writeArgument(buffer, arguments[i], arguments[i + 1]);
+		}
+
+		buffer.write(template[1]);
+
+		return buffer.finish();
+	}
+
+	/**
+	 * Encodes SetAVTransportURI or SetNextAVTransportURI with DIDL-Lite metadata describing
+	 * the media.
+	 *
+	 * @param uriArgument CurrentURI or NextURI, the metadata argument is named after it
+	 */
+	public static byte[] encodeTransportURI(String action, String instanceId, String uriArgument, String mediaURL, String mimeType, String title) {
+		byte[][] template = getTemplate(AV_TRANSPORT, action);
+		byte[][] metadataTag = getTag(uriArgument + "MetaData");
+		Buffer buffer = buffers.get();
+
+		buffer.reset();
+		buffer.write(template[0]);
+		writeArgument(buffer, "InstanceID", instanceId);
+		writeArgument(buffer, uriArgument, mediaURL);
+
+		// The metadata is an XML document in the text of an argument, so its values are escaped twice
+		buffer.write(metadataTag[0]);
+		buffer.write(DIDL_START);
+		buffer.writeEscaped(title != null ? title : "", 2);
+		buffer.write(DIDL_RES_START);
+		buffer.writeEscaped(mimeType, 2);
+		buffer.write(DIDL_RES_MIDDLE);
+		buffer.writeEscaped(mediaURL, 2);
+		buffer.write(DIDL_CLASS);
+		buffer.writeEscaped(getObjectClass(mimeType), 2);
+		buffer.write(DIDL_END);
+		buffer.write(metadataTag[1]);
+
+		buffer.write(template[1]);
+
+		return buffer.finish();
+	}
+
+	/**
+	 * Text of the first element with the given local name, or null when the response has
+	 * none. Parsing stops at the element.
+	 */
+	public static String parseValue(byte[] response, String element) {
+		return parseValues(response, element)[0];
+	}
+
+	/**
+	 * Text of the first element with each of the given local names, in the same order.
+	 * Parsing stops once all were found.
+	 */
+	public static String[] parseValues(byte[] response, String... elements) {
+		String[] values = new String[elements.length];
+
+		if (response == null)
+			return values;
+
+		int remaining = elements.length;
+
+		try {
+			XmlPullParser parser = Xml.newPullParser();
+			parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+			parser.setInput(new ByteArrayInputStream(response), null);
+
+			for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT && remaining > 0; event = parser.next()) {
+				if (event != XmlPullParser.START_TAG)
+					continue;
+
+				String name = parser.getName();
+
+				for (int i = 0; i < elements.length; i++) {
+					if (values[i] == null && elements[i].equals(name)) {
+						values[i] = parser.nextText();
+						remaining--;
+						break;
+					}
+				}
+			}
+		} catch (XmlPullParserException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return values;
+	}
+
+	// @cond INTERNAL
+	private static void writeArgument(Buffer buffer, String name, String value) {
+		byte[][] tag = getTag(name);
+
+		buffer.write(tag[0]);
+		if (value != null)
+			buffer.writeEscaped(value, 1);
+		buffer.write(tag[1]);
+	}
+
+	private static byte[][] getTemplate(String serviceType, String action) {
+		String key = serviceType + '#' + action;
+		byte[][] template = templates.get(key);
+
+		if (template == null) {
+			template = new byte[][] {
+				utf8("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+					+ "<s:Envelope s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\" xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+					+ "<s:Body><u:" + action + " xmlns:u=\"" + serviceType + "\">"),
+				utf8("</u:" + action + "></s:Body></s:Envelope>")
+			};
+			templates.put(key, template);
+		}
+
+		return template;
+	}
+
+	private static byte[][] getTag(String name) {
+		byte[][] tag = tags.get(name);
+
+		if (tag == null) {
+			tag = new byte[][] { utf8("<" + name + ">"), utf8("</" + name + ">") };
+			tags.put(name, tag);
+		}
+
+		return tag;
+	}
+
+	private static String getObjectClass(String mimeType) {
+		if (mimeType.startsWith("image"))
+			return "object.item.imageItem";
+		else if (mimeType.startsWith("video"))
+			return "object.item.videoItem";
+		else if (mimeType.startsWith("audio"))
+			return "object.item.audioItem";
+
+		return "object.item";
+	}
+
+	private static byte[] escapedBytes(String markup) {
+		Buffer buffer = new Buffer();
+		buffer.writeEscaped(markup, 1);
+
+		return buffer.finish();
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** Growable byte buffer that encodes and escapes text as UTF-8 without intermediate strings */
+	static final class Buffer {
+		private byte[] data = new byte[1024];
+		private int size;
+
+		void write(byte[] bytes) {
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, data, size, bytes.length);
+			size += bytes.length;
+		}
+
+		/** Writes text escaped for XML, depth times over */
+		void writeEscaped(String s, int depth) {
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+
+				switch (c) {
+				case '&':
+					writeEntity("amp;", depth);
+					break;
+				case '<':
+					writeEntity("lt;", depth);
+					break;
+				case '>':
+					writeEntity("gt;", depth);
+					break;
+				case '"':
+					writeEntity("quot;", depth);
+					break;
+				case '\'':
+					writeEntity("apos;", depth);
+					break;
+				default:
+					if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+						writeCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+					} else if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') {
+						// Not allowed in XML 1.0
+					} else if (c >= 0xD800 && c <= 0xDFFF) {
+						// Unpaired surrogate, not encodable
+						writeCodePoint('?');
+					} else {
+						writeCodePoint(c);
+					}
+				}
+			}
+		}
+
+		private void writeEntity(String entity, int depth) {
+			ensure(1 + 4 * (depth - 1) + entity.length());
+			data[size++] = '&';
+
+			// Escaping an entity again only escapes its ampersand
+			for (int i = 1; i < depth; i++) {
+				data[size++] = 'a';
+				data[size++] = 'm';
+				data[size++] = 'p';
+				data[size++] = ';';
+			}
+
+			for (int i = 0; i < entity.length(); i++) {
+				data[size++] = (byte) entity.charAt(i);
+			}
+		}
+
+		private void writeCodePoint(int cp) {
+			ensure(4);
+
+			if (cp < 0x80) {
+				data[size++] = (byte) cp;
+			} else if (cp < 0x800) {
+				data[size++] = (byte) (0xC0 | (cp >> 6));
+				data[size++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (cp < 0x10000) {
+				data[size++] = (byte) (0xE0 | (cp >> 12));
+				data[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				data[size++] = (byte) (0x80 | (cp & 0x3F));
+			} else {
+				data[size++] = (byte) (0xF0 | (cp >> 18));
+				data[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				data[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				data[size++] = (byte) (0x80 | (cp & 0x3F));
+			}
+		}
+
+		private void ensure(int count) {
+			if (size + count > data.length)
+				data = Arrays.copyOf(data, Math.max(data.length * 2, size + count));
+		}
+
+		void reset() {
+			size = 0;
+		}
+
+		/** Returns the bytes written and resets the buffer for the next request */
+		byte[] finish() {
+			byte[] result = Arrays.copyOf(data, size);
+			size = 0;
+
+			// Do not keep an unusually large buffer alive per thread
+			if (data.length > MAX_RETAINED_BUFFER)
+				data = new byte[1024];
+
+			return result;
+		}
+	}
+	// @endcond
+}